@@ -14,7 +14,11 @@ public interface Format extends FormatReader, FormatWriter, Serializable {
     void setFname(String fname);
 
     enum Type {
-        LINE, KV
+        LINE, KV,
+        /**
+         * Variantes de LINE et KV qui lisent les fragments projetés en mémoire.
+         */
+        LINE_MAPPED, KV_MAPPED
     }
 
     enum OpenMode {
@@ -0,0 +1,52 @@
+package formats;
+
+import hdfs.HdfsCompression;
+import hdfs.HdfsInputStream;
+import hdfs.HdfsOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Ouverture des fichiers lus et écrits par les formats.
+ *
+ * Un nom préfixé par {@link HdfsInputStream#SCHEME} désigne un fichier HDFS,
+ * lu ou écrit en flux sans copie locale ; tout autre nom désigne un fichier
+ * local, éventuellement un fragment compressé.
+ */
+class FormatStreams {
+
+    private FormatStreams() {
+    }
+
+    /**
+     * @return Le nom du fichier HDFS désigné, null pour un fichier local
+     */
+    static String getHdfsName(String fname) {
+        return fname.startsWith(HdfsInputStream.SCHEME) ? fname.substring(HdfsInputStream.SCHEME.length()) : null;
+    }
+
+    static InputStream openInput(String fname) throws IOException {
+        String hdfsName = getHdfsName(fname);
+        if (hdfsName != null) {
+            return new HdfsInputStream(hdfsName);
+        }
+        InputStream input = new FileInputStream(fname);
+        return HdfsCompression.isCompressed(new File(fname)) ? HdfsCompression.open(input)
+                : new BufferedInputStream(input);
+    }
+
+    static OutputStream openOutput(String fname) throws IOException {
+        String hdfsName = getHdfsName(fname);
+        if (hdfsName != null) {
+            return new HdfsOutputStream(hdfsName, 1, null);
+        }
+        return new FileOutputStream(fname);
+    }
+
+}
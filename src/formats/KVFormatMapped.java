@@ -0,0 +1,125 @@
+package formats;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Variante de {@link KVFormat} qui lit les fragments projetés en mémoire (voir
+ * {@link MappedLineReader}) : le séparateur est cherché dans les octets de la
+ * ligne, et seules la clé et la valeur sont décodées. Les lignes acceptées
+ * sont les mêmes qu'avec String.split. L'écriture est celle de KVFormat.
+ *
+ * L'index compte les octets lus.
+ */
+public class KVFormatMapped implements Format {
+    private static final long serialVersionUID = 1L;
+
+    private static final byte[] SEPARATOR = KV.SEPARATOR.getBytes(Charset.defaultCharset());
+
+    private String fname;
+    private KV kv;
+
+    private transient MappedLineReader reader;
+    private transient KVFormat writer;
+    private transient long index = 0;
+    private transient Format.OpenMode mode;
+
+    public KVFormatMapped(String fname) {
+        this.fname = fname;
+    }
+
+    public void open(OpenMode mode) {
+        try {
+            this.mode = mode;
+            this.kv = new KV();
+            switch (mode) {
+                case R:
+                    reader = new MappedLineReader(fname);
+                    break;
+                case W:
+                    writer = new KVFormat(fname);
+                    writer.open(mode);
+                    break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        try {
+            switch (mode) {
+                case R:
+                    reader.close();
+                    break;
+                case W:
+                    writer.close();
+                    break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public KV read() {
+        try {
+            while (reader.next()) {
+                int length = reader.getLength();
+                index += length;
+
+                int separator = reader.indexOf(SEPARATOR, 0);
+                if (separator < 0)
+                    continue;
+                int value = separator + SEPARATOR.length;
+                int end = reader.indexOf(SEPARATOR, value);
+                if (end < 0) {
+                    end = length;
+                } else if (!this.onlySeparators(end)) {
+                    // Plus de deux jetons
+                    continue;
+                }
+                if (end == value)
+                    // Valeur vide, ignorée comme par String.split
+                    continue;
+
+                kv.k = reader.getString(0, separator);
+                kv.v = reader.getString(value, end - value);
+                return kv;
+            }
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Indique si la fin de la ligne courante n'est faite que de séparateurs, des
+     * jetons vides que String.split ignore.
+     */
+    private boolean onlySeparators(int from) {
+        int position = from;
+        while (position < reader.getLength()) {
+            if (!reader.startsWith(SEPARATOR, position))
+                return false;
+            position += SEPARATOR.length;
+        }
+        return true;
+    }
+
+    public void write(KV record) {
+        writer.write(record);
+    }
+
+    public long getIndex() {
+        return mode == Format.OpenMode.W ? writer.getIndex() : index;
+    }
+
+    public String getFname() {
+        return fname;
+    }
+
+    public void setFname(String fname) {
+        this.fname = fname;
+    }
+}
@@ -4,8 +4,6 @@ package formats;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -29,10 +27,10 @@ public class KVFormatS implements Format {
             this.mode = mode;
             switch (mode) {
                 case R:
-                    br = new BufferedReader(new InputStreamReader(new FileInputStream(fname)));
+                    br = new BufferedReader(new InputStreamReader(FormatStreams.openInput(fname)));
                     break;
                 case W:
-                    bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fname)));
+                    bw = new BufferedWriter(new OutputStreamWriter(FormatStreams.openOutput(fname)));
                     break;
             }
         } catch (IOException e) {
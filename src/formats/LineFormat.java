@@ -1,8 +1,6 @@
 package formats;
 
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
@@ -29,10 +27,10 @@ public class LineFormat implements Format {
             this.kv = new KV();
             switch (mode) {
                 case R:
-                    lnr = new LineNumberReader(new InputStreamReader(new FileInputStream(fname)));
+                    lnr = new LineNumberReader(new InputStreamReader(FormatStreams.openInput(fname)));
                     break;
                 case W:
-                    bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fname)));
+                    bw = new BufferedWriter(new OutputStreamWriter(FormatStreams.openOutput(fname)));
                     break;
             }
         } catch (IOException e) {
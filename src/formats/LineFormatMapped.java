@@ -0,0 +1,89 @@
+package formats;
+
+import java.io.IOException;
+
+/**
+ * Variante de {@link LineFormat} qui lit les fragments projetés en mémoire
+ * (voir {@link MappedLineReader}), sans passer par un Reader. L'écriture est
+ * celle de LineFormat.
+ *
+ * L'index compte les octets lus.
+ */
+public class LineFormatMapped implements Format {
+    private static final long serialVersionUID = 1L;
+
+    private String fname;
+    private KV kv;
+
+    private transient MappedLineReader reader;
+    private transient LineFormat writer;
+    private transient long index = 0;
+    private transient Format.OpenMode mode;
+
+    public LineFormatMapped(String fname) {
+        this.fname = fname;
+    }
+
+    public void open(Format.OpenMode mode) {
+        try {
+            this.mode = mode;
+            this.kv = new KV();
+            switch (mode) {
+                case R:
+                    reader = new MappedLineReader(fname);
+                    break;
+                case W:
+                    writer = new LineFormat(fname);
+                    writer.open(mode);
+                    break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() {
+        try {
+            switch (mode) {
+                case R:
+                    reader.close();
+                    break;
+                case W:
+                    writer.close();
+                    break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public KV read() {
+        try {
+            if (!reader.next())
+                return null;
+            kv.k = Long.toString(reader.getLineNumber());
+            kv.v = reader.getString(0, reader.getLength());
+            index += reader.getLength();
+            return kv;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void write(KV record) {
+        writer.write(record);
+    }
+
+    public long getIndex() {
+        return mode == Format.OpenMode.W ? writer.getIndex() : index;
+    }
+
+    public String getFname() {
+        return fname;
+    }
+
+    public void setFname(String fname) {
+        this.fname = fname;
+    }
+}
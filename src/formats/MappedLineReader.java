@@ -0,0 +1,204 @@
+package formats;
+
+import hdfs.HdfsCompression;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lecture ligne par ligne d'un fragment projeté en mémoire, pour
+ * {@link LineFormatMapped} et {@link KVFormatMapped}.
+ *
+ * Les fins de ligne sont cherchées directement dans les octets du fichier,
+ * sans les décoder : seuls les morceaux de ligne demandés sont convertis en
+ * String. Les fins de ligne reconnues sont celles de BufferedReader (\n, \r et
+ * \r\n), et le jeu de caractères par défaut doit être compatible avec l'ASCII
+ * (UTF-8, ISO-8859-1...) pour que les séparateurs soient reconnus octet par
+ * octet.
+ *
+ * Le fichier est projeté par fenêtres de {@link #MAP_WINDOW} octets, pour
+ * les fragments trop grands pour un seul MappedByteBuffer. Un fragment
+ * compressé ne peut pas être projeté : il est décompressé en mémoire.
+ */
+class MappedLineReader implements Closeable {
+
+    /**
+     * Taille des fenêtres de projection du fichier.
+     */
+    static final int MAP_WINDOW = 1 << 26;
+
+    /**
+     * Fichier projeté, null si le fragment a été décompressé en mémoire.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Taille des données du fragment.
+     */
+    private final long size;
+
+    /**
+     * Fenêtre courante.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Position de la fenêtre dans le fichier.
+     */
+    private long base = 0;
+
+    /**
+     * Début de la prochaine ligne dans la fenêtre.
+     */
+    private int position = 0;
+
+    /**
+     * Octets de la ligne courante.
+     */
+    private byte[] line = new byte[256];
+    private int length = 0;
+
+    /**
+     * Numéro de la ligne courante, à partir de 0.
+     */
+    private long lineNumber = -1;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    MappedLineReader(String fname) throws IOException {
+        File file = new File(fname);
+        if (HdfsCompression.isCompressed(file)) {
+            try (InputStream input = HdfsCompression.open(new FileInputStream(file))) {
+                this.buffer = ByteBuffer.wrap(input.readAllBytes());
+            }
+            this.channel = null;
+            this.size = this.buffer.limit();
+        } else {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = this.channel.size();
+            this.map(0, MAP_WINDOW);
+        }
+    }
+
+    /**
+     * Projette une fenêtre du fichier.
+     */
+    private void map(long base, long window) throws IOException {
+        this.base = base;
+        this.position = 0;
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(window, this.size - base));
+    }
+
+    /**
+     * Passe à la ligne suivante.
+     *
+     * @return false à la fin du fragment
+     */
+    boolean next() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        int end = this.position;
+        int limit = buffer.limit();
+        while (true) {
+            while (end < limit) {
+                byte b = buffer.get(end);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                end++;
+            }
+
+            // Ligne coupée par la fin de la fenêtre, ou \r\n à cheval : on projette depuis le début de la ligne
+            boolean cut = end == limit || (end == limit - 1 && buffer.get(end) == '\r');
+            if (!cut || this.channel == null || this.base + limit >= this.size) {
+                break;
+            }
+            if (this.position == 0 && limit == Integer.MAX_VALUE) {
+                throw new IOException("Ligne trop longue dans " + this.size + " octets");
+            }
+            int scanned = end - this.position;
+            long window = this.position == 0 ? Math.min(2L * limit, Integer.MAX_VALUE) : MAP_WINDOW;
+            this.map(this.base + this.position, Math.max(window, MAP_WINDOW));
+            buffer = this.buffer;
+            limit = buffer.limit();
+            end = scanned;
+        }
+
+        if (end == this.position && end == limit) {
+            return false;
+        }
+
+        this.length = end - this.position;
+        if (this.line.length < this.length) {
+            this.line = new byte[Math.max(this.length, 2 * this.line.length)];
+        }
+        buffer.get(this.position, this.line, 0, this.length);
+
+        if (end < limit) {
+            end += buffer.get(end) == '\r' && end + 1 < limit && buffer.get(end + 1) == '\n' ? 2 : 1;
+        }
+        this.position = end;
+        this.lineNumber++;
+        return true;
+    }
+
+    /**
+     * @return La taille en octets de la ligne courante, sans sa fin de ligne
+     */
+    int getLength() {
+        return this.length;
+    }
+
+    long getLineNumber() {
+        return this.lineNumber;
+    }
+
+    /**
+     * Décode un morceau de la ligne courante.
+     */
+    String getString(int offset, int length) {
+        return new String(this.line, offset, length, this.charset);
+    }
+
+    /**
+     * @return La position d'un motif dans la ligne courante à partir de from, -1
+     *         s'il n'y est pas
+     */
+    int indexOf(byte[] pattern, int from) {
+        for (int i = from; i <= this.length - pattern.length; i++) {
+            if (this.startsWith(pattern, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indique si un motif se trouve à une position de la ligne courante.
+     */
+    boolean startsWith(byte[] pattern, int at) {
+        if (at + pattern.length > this.length) {
+            return false;
+        }
+        for (int j = 0; j < pattern.length; j++) {
+            if (this.line[at + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+
+}
@@ -5,22 +5,45 @@ import java.io.Serializable;
 
 public class FragmentInfo implements Serializable {
     private static final long serialVersionUID = -1636990109710437159L;
+
+    /**
+     * Marque ajoutée avant l'extension .part du nom d'un fragment compressé :
+     * la compression est connue sans lire le fragment, et un fragment non
+     * compressé peut commencer par n'importe quels octets.
+     */
+    final public static String COMPRESSED_MARK = ".z";
+
     public String filename;
     public int id;
     public boolean lastPart;
     public HdfsNodeInfo node;
     public String root;
+    /** Taille du fragment en octets, -1 si elle est inconnue. */
+    public long size;
+    /** Codec de compression du fragment, null s'il n'est pas compressé. */
+    public String codec;
 
     public FragmentInfo(String filename, int id, boolean lastPart, HdfsNodeInfo node, String root) {
+        this(filename, id, lastPart, node, root, -1);
+    }
+
+    public FragmentInfo(String filename, int id, boolean lastPart, HdfsNodeInfo node, String root, long size) {
+        this(filename, id, lastPart, node, root, size, null);
+    }
+
+    public FragmentInfo(String filename, int id, boolean lastPart, HdfsNodeInfo node, String root, long size,
+            String codec) {
         this.filename = filename;
         this.id = id;
         this.lastPart = lastPart;
         this.node = node;
         this.root = root;
+        this.size = size;
+        this.codec = codec;
     }
 
     public String getFragmentName() {
-        return filename + "." + id + (lastPart ? ".final" : "") + ".part";
+        return makeFragmentName(this.filename, this.id, this.lastPart, this.codec != null);
     }
 
     public String getAbsolutePath() {
@@ -28,6 +51,20 @@ public class FragmentInfo implements Serializable {
     }
 
     public static String makeFragmentName(String filename, int id, boolean lastPart) {
-        return new FragmentInfo(filename, id, lastPart, null, null).getFragmentName();
+        return makeFragmentName(filename, id, lastPart, false);
+    }
+
+    /**
+     * @param compressed Le fragment est-il stocké compressé ?
+     */
+    public static String makeFragmentName(String filename, int id, boolean lastPart, boolean compressed) {
+        return filename + "." + id + (lastPart ? ".final" : "") + (compressed ? COMPRESSED_MARK : "") + ".part";
+    }
+
+    /**
+     * Indique si un fragment est stocké compressé, d'après le nom de son fichier.
+     */
+    public static boolean isCompressed(String fragmentName) {
+        return fragmentName.endsWith(COMPRESSED_MARK + ".part");
     }
 }
@@ -2,26 +2,86 @@ package hdfs;
 
 /**
  * Les actions possibles dans HDFS.
+ *
+ * Chaque action possède un code fixe, utilisé comme opcode par le protocole
+ * binaire (voir {@link HdfsMessage}) : l'ordre des constantes peut donc changer
+ * sans casser la compatibilité.
  */
 public enum HdfsAction {
     /** Reconstition d'un fichier fragmenté. */
-    READ,
+    READ(1),
     /** Sauvegarde d'un fichier fragmenté. */
-    WRITE,
+    WRITE(2),
     /** Suppression d'un fichier fragmenté. */
-    DELETE,
+    DELETE(3),
     /** Requête d'un nouveau noeud à initialiser. */
-    NEW_NODE,
+    NEW_NODE(4),
     /** Requête de vérification d'activité. */
-    PING,
+    PING(5),
     /** Réponse de vérification d'activité. */
-    PONG,
+    PONG(6),
     /** Le ping provient d'un noeud inconnu. */
-    UNKNOWN_NODE,
+    UNKNOWN_NODE(7),
     /** On veut connaître la liste des fragments d'un fichier. */
-    LIST_FRAGMENTS,
+    LIST_FRAGMENTS(8),
     /** On veut mettre à jour la liste des fichiers. */
-    FORCE_RESCAN,
+    FORCE_RESCAN(9),
     /** On veut récupérer l'ensemble des noeuds connectés. */
-    LIST_NODES
+    LIST_NODES(10),
+    /** Morceau d'un flux de données. */
+    DATA(11),
+    /** Fin d'un flux de données. */
+    END(12),
+    /** Réponse d'erreur, accompagnée d'un message. */
+    ERROR(13),
+    /** Rapport incrémental des fragments ajoutés et disparus d'un noeud. */
+    BLOCK_REPORT(14),
+    /** Copie d'un fragment vers d'autres noeuds, demandée par le NameServer. */
+    REPLICATE(15),
+    /** On veut connaître les noeuds qui recevraient les fragments d'un fichier. */
+    PLACEMENT(16),
+    /** Suppression d'un seul fragment d'un fichier sur un noeud. */
+    DELETE_FRAGMENT(17),
+    /** On veut rééquilibrer la répartition des fragments entre les noeuds. */
+    REBALANCE(18),
+    /** Réservation d'un fichier dont le client envoie lui-même les fragments aux noeuds. */
+    ALLOCATE(19),
+    /** Répliques enregistrées par les noeuds, qui terminent (ou abandonnent) une écriture réservée. */
+    COMMIT(20);
+
+    /**
+     * Code de l'action sur le réseau.
+     */
+    private final byte code;
+
+    private HdfsAction(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return this.code;
+    }
+
+    /**
+     * Indique si l'action ouvre un échange, par opposition aux réponses et aux
+     * flux de données.
+     */
+    public boolean isRequest() {
+        return this != PONG && this != UNKNOWN_NODE && this != DATA && this != END && this != ERROR;
+    }
+
+    /**
+     * Retrouve une action à partir de son code.
+     *
+     * @param code Code reçu
+     * @return L'action correspondante, null si le code est inconnu
+     */
+    public static HdfsAction fromCode(byte code) {
+        for (HdfsAction action : values()) {
+            if (action.code == code) {
+                return action;
+            }
+        }
+        return null;
+    }
 }
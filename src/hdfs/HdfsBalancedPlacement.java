@@ -0,0 +1,60 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Placement par défaut : les fragments d'un fichier sont répartis également
+ * entre les noeuds, et à égalité les noeuds sont tirés au hasard avec une
+ * probabilité qui croît avec leur espace libre et décroît avec leur charge.
+ *
+ * Le tirage évite que toutes les écritures simultanées choisissent le même
+ * noeud, le moins chargé au moment de leur dernier battement de coeur.
+ */
+public class HdfsBalancedPlacement implements HdfsPlacementPolicy {
+
+    /**
+     * Poids minimal d'un noeud, pour qu'un noeud presque plein reste
+     * utilisable s'il est le seul disponible.
+     */
+    final public static double MIN_WEIGHT = 0.01;
+
+    private final Random random = new Random();
+
+    @Override
+    public List<HdfsNodeInfo> rank(String fileName, List<HdfsNodeInfo> candidates,
+            Map<HdfsNodeInfo, Integer> fileFragments, Map<HdfsNodeInfo, HdfsNodeStats> stats) {
+
+        long maxFreeSpace = 0;
+        for (HdfsNodeInfo node : candidates) {
+            maxFreeSpace = Math.max(maxFreeSpace, stats.getOrDefault(node, HdfsNodeStats.UNKNOWN).getFreeSpace());
+        }
+
+        // Tirage pondéré sans remise : clé u^(1/poids), les plus grandes clés d'abord
+        Map<HdfsNodeInfo, Double> keys = new HashMap<>();
+        for (HdfsNodeInfo node : candidates) {
+            double weight = weight(stats.getOrDefault(node, HdfsNodeStats.UNKNOWN), maxFreeSpace);
+            keys.put(node, Math.pow(this.random.nextDouble(), 1 / weight));
+        }
+
+        List<HdfsNodeInfo> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparingInt((HdfsNodeInfo node) -> fileFragments.getOrDefault(node, 0))
+                .thenComparing(Comparator.comparingDouble((HdfsNodeInfo node) -> keys.get(node)).reversed()));
+        return ranked;
+    }
+
+    /**
+     * Poids d'un noeud : part de l'espace libre du noeud le mieux pourvu, divisée
+     * par le nombre de requêtes en cours plus un.
+     */
+    static double weight(HdfsNodeStats stats, long maxFreeSpace) {
+        double space = stats.getFreeSpace() < 0 || maxFreeSpace <= 0 ? 1
+                : (double) stats.getFreeSpace() / maxFreeSpace;
+        return Math.max(MIN_WEIGHT, space) / (1 + stats.getActiveRequests());
+    }
+
+}
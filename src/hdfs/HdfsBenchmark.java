@@ -0,0 +1,759 @@
+package hdfs;
+
+import formats.Format;
+import formats.KVFormat;
+import formats.KVFormatMapped;
+import formats.LineFormat;
+import formats.LineFormatMapped;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesures de performances de HDFS, à lancer sur un cluster démarré.
+ */
+public class HdfsBenchmark {
+
+    /**
+     * Nombre de threads qui envoient les requêtes de la mesure des connexions.
+     */
+    private static final int CLIENT_THREADS = 8;
+
+    /**
+     * Compare le débit des opérations de métadonnées entre le protocole binaire
+     * et l'ancien protocole par sérialisation Java.
+     *
+     * La mesure du protocole binaire est répétée avec plusieurs threads qui se
+     * partagent la même connexion persistante.
+     *
+     * @param operations Nombre d'opérations par protocole
+     * @param threads    Nombre de requêtes simultanées
+     */
+    public static void metadata(int operations, int threads) {
+        // Préchauffage
+        for (int i = 0; i < operations / 10; i++) {
+            HdfsClient.listNodes();
+            legacyListNodes();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            HdfsClient.listNodes();
+        }
+        printRate("Protocole binaire", operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < operations; i++) {
+            executor.submit(HdfsClient::listNodes);
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        printRate("Binaire x" + threads, operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            legacyListNodes();
+        }
+        printRate("Sérialisation Java", operations, System.nanoTime() - start);
+    }
+
+    /**
+     * Compare le débit de lecture d'un fragment entre le chemin par flux, où les
+     * données passent par les buffers de la JVM, et le chemin sans copie par
+     * {@link FileChannel#transferTo} et {@link FileChannel#transferFrom}.
+     *
+     * Un serveur local joue le rôle du noeud : la mesure ne dépend pas d'un
+     * cluster démarré.
+     *
+     * @param megabytes Taille du fragment, en Mo
+     * @param rounds    Nombre de lectures par chemin
+     */
+    public static void transfer(int megabytes, int rounds) {
+        try {
+            Path source = Files.createTempFile("hdfs-benchmark", ".part");
+            Path destination = Files.createTempFile("hdfs-benchmark", ".out");
+            source.toFile().deleteOnExit();
+            destination.toFile().deleteOnExit();
+
+            byte[] line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n".getBytes();
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(source))) {
+                for (long written = 0; written < megabytes * 1048576L; written += line.length) {
+                    output.write(line);
+                }
+            }
+            long size = Files.size(source);
+
+            // Noeud local
+            ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            ExecutorService executor = Executors.newCachedThreadPool();
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Socket sock = server.socket().accept();
+                            executor.submit(new Runnable() {
+                                public void run() {
+                                    try {
+                                        HdfsConnection.serve(sock, executor, HdfsBenchmark::serveFragment);
+                                    } catch (IOException e) {
+                                    }
+                                }
+                            });
+                        }
+                    } catch (IOException e) {
+                        // Serveur fermé
+                    }
+                }
+            });
+
+            try (HdfsConnection connection = HdfsConnection.connect("127.0.0.1", server.socket().getLocalPort())) {
+                // Préchauffage
+                readFragment(connection, source, destination, false);
+                readFragment(connection, source, destination, true);
+
+                for (boolean zeroCopy : new boolean[] { false, true }) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < rounds; i++) {
+                        readFragment(connection, source, destination, zeroCopy);
+                    }
+                    printThroughput(zeroCopy ? "Sans copie" : "Flux", size * rounds, System.nanoTime() - start);
+                }
+            } finally {
+                server.close();
+                executor.shutdownNow();
+            }
+
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
+
+    /**
+     * Mesure le coût des connexions ouvertes sur une boucle d'événements
+     * ({@link HdfsEventLoop}), puis sur un serveur qui lit chaque connexion avec
+     * un thread dédié, comme le NameServer avant la boucle.
+     *
+     * De plus en plus de clients restent connectés en même temps et envoient
+     * chacun des requêtes PING ; pour chaque palier sont affichés le nombre de
+     * threads et la mémoire utilisée par la JVM. Un serveur local répond aux
+     * requêtes : la mesure ne dépend pas d'un cluster démarré. Les requêtes
+     * sont traitées par des threads du mode choisi par {@link HdfsExecutors}.
+     *
+     * @param clients  Nombre maximal de connexions simultanées
+     * @param requests Nombre de requêtes par connexion et par palier
+     */
+    public static void connections(int clients, int requests) {
+        ExecutorService pingers = Executors.newFixedThreadPool(CLIENT_THREADS);
+        try {
+            for (boolean eventLoop : new boolean[] { true, false }) {
+                ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0),
+                        clients);
+                ExecutorService executor = Executors.newCachedThreadPool();
+                ExecutorService workers = HdfsExecutors.newWorkerPool("hdfs-worker", HdfsNameServer.WORKERS);
+                HdfsEventLoop loop = null;
+                if (eventLoop) {
+                    loop = new HdfsEventLoop(server, HdfsEventLoop.DEFAULT_IO_THREADS, workers,
+                            HdfsBenchmark::pong, null);
+                    executor.submit(loop);
+                } else {
+                    executor.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                while (true) {
+                                    Socket sock = server.socket().accept();
+                                    executor.submit(new Runnable() {
+                                        public void run() {
+                                            try {
+                                                HdfsConnection.serve(sock, executor, HdfsBenchmark::pong);
+                                            } catch (IOException e) {
+                                            }
+                                        }
+                                    });
+                                }
+                            } catch (IOException e) {
+                                // Serveur fermé
+                            }
+                        }
+                    });
+                }
+
+                List<Socket> sockets = new ArrayList<>();
+                try {
+                    String label = eventLoop ? "Boucle d'événements" : "Thread par connexion";
+                    int port = server.socket().getLocalPort();
+                    for (int step = 1; sockets.size() < clients; step = Math.min(step * 10, clients)) {
+                        while (sockets.size() < step) {
+                            sockets.add(openPinger(port));
+                        }
+                        long nanos = pingAll(pingers, sockets, requests);
+                        System.gc();
+                        Runtime runtime = Runtime.getRuntime();
+                        System.out.printf("%-20s %6d connexions : %5d threads, %7.1f Mo, %10.1f op/s%n", label,
+                                sockets.size(), ManagementFactory.getThreadMXBean().getThreadCount(),
+                                (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0,
+                                sockets.size() * (long) requests * 1e9 / nanos);
+                    }
+                } finally {
+                    for (Socket sock : sockets) {
+                        sock.close();
+                    }
+                    server.close();
+                    if (loop != null) {
+                        loop.close();
+                    }
+                    executor.shutdownNow();
+                    workers.shutdownNow();
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                }
+            }
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pingers.shutdown();
+        }
+    }
+
+    /**
+     * Ouvre une connexion binaire sans thread de lecture, pour que les clients
+     * ne faussent pas le nombre de threads mesuré.
+     */
+    private static Socket openPinger(int port) throws IOException {
+        Socket sock = new Socket("127.0.0.1", port);
+        sock.setTcpNoDelay(true);
+        DataOutputStream output = new DataOutputStream(sock.getOutputStream());
+        output.writeInt(HdfsConnection.MAGIC);
+        output.writeByte(HdfsConnection.VERSION);
+        if (sock.getInputStream().read() != HdfsConnection.VERSION) {
+            sock.close();
+            throw new HdfsRuntimeException("Version du protocole refusée");
+        }
+        return sock;
+    }
+
+    /**
+     * Envoie des requêtes PING sur toutes les connexions, réparties entre les
+     * threads clients : chaque thread envoie une requête sur chacune de ses
+     * connexions puis lit les réponses.
+     *
+     * @return La durée de la mesure, en ns
+     */
+    private static long pingAll(ExecutorService pingers, List<Socket> sockets, int requests) {
+        List<Future<?>> tasks = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            List<Socket> slice = new ArrayList<>();
+            for (int i = t; i < sockets.size(); i += CLIENT_THREADS) {
+                slice.add(sockets.get(i));
+            }
+            tasks.add(pingers.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (int r = 0; r < requests; r++) {
+                        for (Socket sock : slice) {
+                            DataOutputStream output = new DataOutputStream(
+                                    new BufferedOutputStream(sock.getOutputStream(), 64));
+                            output.writeInt(r + 1);
+                            new HdfsMessage(HdfsAction.PING).writeTo(output);
+                            output.flush();
+                        }
+                        for (Socket sock : slice) {
+                            DataInputStream input = new DataInputStream(
+                                    new BufferedInputStream(sock.getInputStream(), 64));
+                            if (input.readInt() != r + 1) {
+                                throw new IOException("Réponse d'une autre requête");
+                            }
+                            HdfsMessage.readFrom(input).expect(HdfsAction.PONG);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new HdfsRuntimeException(e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Réponse du serveur local de la mesure des connexions.
+     */
+    private static void pong(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
+    }
+
+    /**
+     * Compare le coût des tâches bloquantes selon le mode des exécuteurs des
+     * démons ({@link HdfsExecutors}) : toutes les tâches sont soumises d'un coup
+     * et attendent chacune comme une requête qui attend le réseau. Sont affichés
+     * le débit et le nombre maximal de threads de la JVM, les threads virtuels
+     * n'étant pas comptés.
+     *
+     * @param tasks  Nombre de tâches
+     * @param millis Durée d'attente de chaque tâche, en ms
+     */
+    public static void executors(int tasks, int millis) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (HdfsExecutors.Mode mode : HdfsExecutors.Mode.values()) {
+            String label = mode == HdfsExecutors.Mode.VIRTUAL ? "Threads virtuels" : "Threads classiques";
+            if (mode == HdfsExecutors.Mode.VIRTUAL && !HdfsExecutors.isVirtualAvailable()) {
+                System.out.printf("%-20s indisponibles sur cette JVM (Java 21 requis)%n", label);
+                continue;
+            }
+
+            for (int round = 0; round < 2; round++) {
+                // Le premier tour sert de préchauffage
+                ExecutorService executor = HdfsExecutors.newTaskExecutor("hdfs-benchmark", mode);
+                CountDownLatch done = new CountDownLatch(tasks);
+                threads.resetPeakThreadCount();
+                long start = System.nanoTime();
+                for (int i = 0; i < tasks; i++) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                Thread.sleep(millis);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            done.countDown();
+                        }
+                    });
+                }
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    executor.shutdown();
+                }
+                long nanos = System.nanoTime() - start;
+                if (round > 0) {
+                    System.out.printf("%-20s %8d tâches en %6d ms, %10.1f tâches/s, %6d threads au plus%n", label,
+                            tasks, nanos / 1000000, tasks * 1e9 / nanos, threads.getPeakThreadCount());
+                }
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mesure le passage à l'échelle du catalogue des fichiers : chaque thread
+     * écrit les fragments de ses propres fichiers et lit la liste des fragments
+     * des fichiers des autres threads.
+     *
+     * La mesure est faite avec de plus en plus de threads, pour le catalogue
+     * concurrent et pour le même catalogue protégé par un verrou global.
+     *
+     * @param operations Nombre d'opérations par thread
+     * @param maxThreads Nombre maximal de threads
+     */
+    public static void namespace(int operations, int maxThreads) {
+        List<HdfsNodeInfo> nodes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            nodes.add(new HdfsNodeInfo("10.0.0." + i, 4000 + i, "/tmp/node" + i));
+        }
+
+        for (boolean globalLock : new boolean[] { true, false }) {
+            // Préchauffage
+            stressNamespace(new HdfsNamespace(), nodes, operations, 2, globalLock);
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                long nanos = stressNamespace(new HdfsNamespace(), nodes, operations, threads, globalLock);
+                printRate((globalLock ? "Verrou global x" : "Concurrent x") + threads, operations * threads, nanos);
+            }
+        }
+    }
+
+    /**
+     * Lance threads threads sur le catalogue.
+     *
+     * @return La durée de la mesure, en ns
+     */
+    private static long stressNamespace(HdfsNamespace namespace, List<HdfsNodeInfo> nodes, int operations,
+            int threads, boolean globalLock) {
+        Object lock = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            tasks.add(executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        // Un fichier de 16 fragments est écrit toutes les 32 opérations
+                        String own = "file-" + thread + "-" + i / 32;
+                        if (i % 2 == 0) {
+                            int fragment = i / 2 % 16;
+                            if (globalLock) {
+                                synchronized (lock) {
+                                    namespace.addFragment(own, fragment, 4194304);
+                                    namespace.addReplicas(own, fragment, nodes.subList(fragment % 6, fragment % 6 + 3));
+                                }
+                            } else {
+                                namespace.addFragment(own, fragment, 4194304);
+                                namespace.addReplicas(own, fragment, nodes.subList(fragment % 6, fragment % 6 + 3));
+                            }
+                        } else {
+                            String other = "file-" + (thread + 1) % threads + "-" + Math.max(0, i / 32 - 1);
+                            if (globalLock) {
+                                synchronized (lock) {
+                                    namespace.listFragments(other);
+                                    namespace.isFileComplete(other);
+                                }
+                            } else {
+                                namespace.listFragments(other);
+                                namespace.isFileComplete(other);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new HdfsRuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Lit un fragment sur le noeud local, par flux ou sans copie.
+     */
+    private static void readFragment(HdfsConnection connection, Path source, Path destination, boolean zeroCopy)
+            throws IOException {
+        try (HdfsExchange exchange = connection.openExchange()) {
+            if (zeroCopy) {
+                try (FileChannel output = FileChannel.open(destination, StandardOpenOption.WRITE)) {
+                    exchange.receiveInto(output, 0);
+                    exchange.send(new HdfsMessage(HdfsAction.READ).putString(source.toString()).putBoolean(true));
+                    exchange.receive(HdfsAction.PONG);
+
+                    HdfsMessage message;
+                    while ((message = exchange.receive()).getAction() == HdfsAction.DATA) {
+                        // Trame déjà écrite dans le fichier
+                    }
+                    message.expect(HdfsAction.END);
+                }
+            } else {
+                exchange.send(new HdfsMessage(HdfsAction.READ).putString(source.toString()).putBoolean(false));
+                exchange.receive(HdfsAction.PONG);
+
+                try (InputStream input = exchange.dataInputStream();
+                        OutputStream output = new BufferedOutputStream(new FileOutputStream(destination.toFile()))) {
+                    input.transferTo(output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Envoi d'un fragment par le noeud local, par flux comme avant l'envoi sans
+     * copie, ou par {@link HdfsExchange#sendFile}.
+     */
+    private static void serveFragment(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        Path source = Path.of(request.getString());
+        boolean zeroCopy = request.getBoolean();
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(Files.size(source)));
+
+        if (zeroCopy) {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                exchange.sendFile(channel, 0, channel.size());
+            }
+            exchange.send(new HdfsMessage(HdfsAction.END));
+        } else {
+            try (OutputStream output = exchange.dataOutputStream()) {
+                Files.copy(source, output);
+            }
+        }
+    }
+
+    /**
+     * Mesure le taux de compression d'un fichier par un codec et les débits de
+     * compression et de décompression, découpé en fragments comme par le
+     * NameServer.
+     *
+     * @param file   Fichier à compresser
+     * @param codec  Nom du codec
+     * @param rounds Nombre de mesures
+     */
+    public static void compression(String file, String codec, int rounds) {
+        HdfsCodec selected = HdfsCompression.forName(codec);
+        if (selected == null) {
+            System.err.println("Codec inconnu : " + codec);
+            return;
+        }
+        try {
+            byte[] data = Files.readAllBytes(Path.of(file));
+            List<ByteArrayOutputStream> fragments = new ArrayList<>();
+            for (int offset = 0; offset < data.length; offset += HdfsNameServer.BUFFER_SIZE) {
+                ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+                fragment.write(data, offset, Math.min(HdfsNameServer.BUFFER_SIZE, data.length - offset));
+                fragments.add(fragment);
+            }
+
+            byte[] buffer = new byte[HdfsCompression.BLOCK_SIZE];
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                List<ByteArrayOutputStream> compressed = new ArrayList<>();
+                for (ByteArrayOutputStream fragment : fragments) {
+                    compressed.add(HdfsCompression.compress(selected, fragment));
+                }
+                long compressing = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (ByteArrayOutputStream fragment : compressed) {
+                    try (InputStream input = HdfsCompression
+                            .open(new ByteArrayInputStream(fragment.toByteArray()))) {
+                        while (input.read(buffer) >= 0) {
+                        }
+                    }
+                }
+                long decompressing = System.nanoTime() - start;
+
+                long size = compressed.stream().mapToLong(ByteArrayOutputStream::size).sum();
+                System.out.printf("Taux de compression  %8.2f (%d -> %d octets)%n", data.length / (double) size,
+                        data.length, size);
+                printThroughput("Compression", data.length, compressing);
+                printThroughput("Décompression", data.length, decompressing);
+            }
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
+
+    /**
+     * Mesure les débits de calcul de la parité d'une bande et de sa
+     * reconstruction après la perte de m fragments, les pires cas du codage.
+     *
+     * @param scheme Codage, de la forme rs-k-m
+     * @param rounds Nombre de mesures
+     */
+    public static void erasure(String scheme, int rounds) {
+        HdfsReedSolomon codec = HdfsReedSolomon.forName(scheme);
+        if (codec == null) {
+            System.err.println("Codage inconnu : " + scheme);
+            return;
+        }
+        int k = codec.getDataFragments();
+        int m = codec.getParityFragments();
+        int length = HdfsNameServer.BUFFER_SIZE;
+        Random random = new Random(0);
+        byte[][] data = new byte[k][length];
+        for (byte[] fragment : data) {
+            random.nextBytes(fragment);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            byte[][] parity = new byte[m][length];
+            for (int i = 0; i < k; i++) {
+                codec.encode(i, data[i], length, parity);
+            }
+            long encoding = System.nanoTime() - start;
+
+            // Perte des m premiers fragments de données
+            byte[][] members = new byte[k + m][];
+            for (int i = m; i < k; i++) {
+                members[i] = data[i];
+            }
+            for (int j = 0; j < m; j++) {
+                members[k + j] = parity[j];
+            }
+            start = System.nanoTime();
+            try {
+                codec.decode(members, length);
+            } catch (IOException e) {
+                throw new HdfsRuntimeException(e);
+            }
+            long decoding = System.nanoTime() - start;
+
+            printThroughput("Parité " + codec.getName(), (long) k * length, encoding);
+            printThroughput("Reconstruction", (long) k * length, decoding);
+        }
+    }
+
+    /**
+     * Mesure le débit de lecture d'un fragment par les formats, comme pendant la
+     * phase map : avec un Reader (LINE, KV) et projeté en mémoire (LINE_MAPPED,
+     * KV_MAPPED).
+     *
+     * @param file   Fragment à lire
+     * @param rounds Nombre de mesures
+     */
+    public static void formats(String file, int rounds) {
+        long size = new File(file).length();
+        List<Format> formats = List.of(new LineFormat(file), new LineFormatMapped(file), new KVFormat(file),
+                new KVFormatMapped(file));
+        for (int round = 0; round < rounds; round++) {
+            for (Format format : formats) {
+                long start = System.nanoTime();
+                format.open(Format.OpenMode.R);
+                long records = 0;
+                while (format.read() != null) {
+                    records++;
+                }
+                format.close();
+                long nanos = System.nanoTime() - start;
+                printThroughput(format.getClass().getSimpleName(), size, nanos);
+                if (round == rounds - 1) {
+                    System.out.println("  " + records + " enregistrements");
+                }
+            }
+        }
+    }
+
+    /**
+     * Requête LIST_NODES telle que l'envoyaient les anciens clients.
+     */
+    private static void legacyListNodes() {
+        try (Socket sock = new Socket(HdfsNameServer.DEFAULT_HOST, HdfsNameServer.DEFAULT_PORT)) {
+            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
+            out.writeObject(HdfsAction.LIST_NODES);
+            new ObjectInputStream(sock.getInputStream()).readObject();
+            out.writeObject(HdfsAction.PONG);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
+
+    /**
+     * Affiche un débit en Go/s.
+     */
+    private static void printThroughput(String label, long bytes, long nanos) {
+        System.out.printf("%-20s %8d Mo en %6d ms, %10.2f Go/s%n", label, bytes / 1048576, nanos / 1000000,
+                bytes / (double) nanos);
+    }
+
+    /**
+     * Affiche un débit en opérations par seconde.
+     */
+    private static void printRate(String label, int operations, long nanos) {
+        System.out.printf("%-20s %8d op en %6d ms, %10.1f op/s%n", label, operations, nanos / 1000000,
+                operations * 1e9 / nanos);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+
+        switch (args[0]) {
+            case "metadata":
+                metadata(args.length < 2 ? 10000 : Integer.parseInt(args[1]),
+                        args.length < 3 ? 8 : Integer.parseInt(args[2]));
+                break;
+            case "namespace":
+                namespace(args.length < 2 ? 200000 : Integer.parseInt(args[1]),
+                        args.length < 3 ? 8 : Integer.parseInt(args[2]));
+                break;
+            case "compression":
+                if (args.length < 2) {
+                    usage();
+                    return;
+                }
+                compression(args[1], args.length < 3 ? "deflate" : args[2],
+                        args.length < 4 ? 3 : Integer.parseInt(args[3]));
+                break;
+            case "erasure":
+                erasure(args.length < 2 ? HdfsReedSolomon.DEFAULT_SCHEME : args[1],
+                        args.length < 3 ? 3 : Integer.parseInt(args[2]));
+                break;
+            case "formats":
+                if (args.length < 2) {
+                    usage();
+                    return;
+                }
+                formats(args[1], args.length < 3 ? 3 : Integer.parseInt(args[2]));
+                break;
+            case "connections":
+                connections(args.length < 2 ? 1000 : Integer.parseInt(args[1]),
+                        args.length < 3 ? 10 : Integer.parseInt(args[2]));
+                break;
+            case "executors":
+                executors(args.length < 2 ? 10000 : Integer.parseInt(args[1]),
+                        args.length < 3 ? 10 : Integer.parseInt(args[2]));
+                break;
+            case "transfer":
+                transfer(args.length < 2 ? 256 : Integer.parseInt(args[1]),
+                        args.length < 3 ? 5 : Integer.parseInt(args[2]));
+                break;
+            default:
+                usage();
+        }
+    }
+
+    /**
+     * Affiche une aide textuelle.
+     */
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println("  * HdfsBenchmark metadata <operations? = 10000> <threads? = 8>");
+        System.out.println("  * HdfsBenchmark namespace <operations? = 200000> <threads? = 8>");
+        System.out.println("  * HdfsBenchmark transfer <megabytes? = 256> <rounds? = 5>");
+        System.out.println("  * HdfsBenchmark connections <clients? = 1000> <requests? = 10>");
+        System.out.println("  * HdfsBenchmark executors <tasks? = 10000> <millis? = 10>");
+        System.out.println("  * HdfsBenchmark compression <file> <codec? = deflate> <rounds? = 3>");
+        System.out.println("  * HdfsBenchmark formats <file> <rounds? = 3>");
+        System.out.println("  * HdfsBenchmark erasure <scheme? = " + HdfsReedSolomon.DEFAULT_SCHEME
+                + "> <rounds? = 3>");
+    }
+
+}
@@ -0,0 +1,177 @@
+package hdfs;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Réserve bornée de buffers directs de taille fixe, partagée par les
+ * transferts en cours.
+ *
+ * Les buffers sont alloués à la demande jusqu'à la capacité de la réserve,
+ * puis réutilisés : un transfert qui en demande un alors qu'ils sont tous
+ * utilisés attend qu'un autre transfert en rende un, ce qui ralentit la
+ * réception au lieu d'augmenter la mémoire utilisée.
+ *
+ * Un transfert ne doit demander un nouveau buffer que s'il peut rendre ceux
+ * qu'il possède déjà sans en attendre d'autre.
+ */
+public class HdfsBufferPool {
+
+    /**
+     * Nombre de buffers par défaut.
+     */
+    final public static int DEFAULT_CAPACITY = 32;
+
+    /**
+     * Occupation de la réserve à un instant donné.
+     */
+    public static final class Usage {
+
+        /**
+         * Taille d'un buffer, en octets.
+         */
+        public final int bufferSize;
+
+        /**
+         * Buffers utilisés, alloués et nombre maximal de buffers.
+         */
+        public final int inUse;
+        public final int allocated;
+        public final int capacity;
+
+        /**
+         * Nombre de demandes qui ont dû attendre un buffer.
+         */
+        public final long waits;
+
+        public Usage(int bufferSize, int inUse, int allocated, int capacity, long waits) {
+            this.bufferSize = bufferSize;
+            this.inUse = inUse;
+            this.allocated = allocated;
+            this.capacity = capacity;
+            this.waits = waits;
+        }
+
+        public String toString() {
+            return this.inUse + "/" + this.capacity + " buffers de " + this.bufferSize / 1024 + " Ko utilisés, "
+                    + this.allocated + " alloués, " + this.waits + " attentes";
+        }
+    }
+
+    private final int bufferSize;
+    private final int capacity;
+
+    /**
+     * Buffers alloués et disponibles.
+     */
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    private int allocated = 0;
+    private long waits = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = this.lock.newCondition();
+
+    /**
+     * @param bufferSize Taille d'un buffer, en octets
+     * @param capacity   Nombre maximal de buffers
+     */
+    public HdfsBufferPool(int bufferSize, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacité invalide : " + capacity);
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Prend un buffer vide, en attendant qu'un buffer soit rendu si la réserve
+     * est épuisée.
+     *
+     * @return Un buffer prêt à être rempli, à rendre avec {@link #release}
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        this.lock.lock();
+        try {
+            if (this.free.isEmpty() && this.allocated == this.capacity) {
+                this.waits++;
+                try {
+                    while (this.free.isEmpty()) {
+                        this.released.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (!this.free.isEmpty()) {
+                return this.free.pop().clear();
+            }
+            this.allocated++;
+        } finally {
+            this.lock.unlock();
+        }
+        return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+
+    /**
+     * Prend un buffer vide sans attendre, pour un thread qui ne doit pas
+     * bloquer. Une demande refusée est comptée comme une attente.
+     *
+     * @return Un buffer prêt à être rempli, à rendre avec {@link #release}, null
+     *         si la réserve est épuisée
+     */
+    public ByteBuffer tryAcquire() {
+        this.lock.lock();
+        try {
+            if (!this.free.isEmpty()) {
+                return this.free.pop().clear();
+            }
+            if (this.allocated == this.capacity) {
+                this.waits++;
+                return null;
+            }
+            this.allocated++;
+        } finally {
+            this.lock.unlock();
+        }
+        return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+
+    /**
+     * Rend un buffer pris avec {@link #acquire} ou {@link #tryAcquire}, qui ne
+     * doit plus être utilisé.
+     */
+    public void release(ByteBuffer buffer) {
+        this.lock.lock();
+        try {
+            this.free.push(buffer);
+            this.released.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public Usage getUsage() {
+        this.lock.lock();
+        try {
+            return new Usage(this.bufferSize, this.allocated - this.free.size(), this.allocated, this.capacity,
+                    this.waits);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public String toString() {
+        return this.getUsage().toString();
+    }
+
+}
@@ -9,67 +9,126 @@ package hdfs;
 import formats.Format;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Un client HDFS, qui distribue des fragments de fichiers aux noeuds HDFS.
  */
 public class HdfsClient {
 
+    /**
+     * Connexions persistantes partagées par toutes les requêtes du client.
+     */
+    private static final HdfsConnectionPool pool = new HdfsConnectionPool();
+
+    /**
+     * Listes de fragments déjà demandées au NameServer.
+     */
+    private static final HdfsLocationCache locations = new HdfsLocationCache(HdfsLocationCache.DEFAULT_LEASE);
+
+    /**
+     * Nombre de fragments téléchargés simultanément lors d'une lecture.
+     */
+    final public static int READ_WINDOW = 4;
+
+    /**
+     * Écart maximal (en octets) entre deux plages d'une lecture vectorisée lues
+     * en une seule requête.
+     */
+    final public static int COALESCE_GAP = 65536;
+
+    /**
+     * Taille au-delà de laquelle des plages proches ne sont plus regroupées.
+     */
+    final public static int MAX_COALESCED_LENGTH = HdfsNameServer.BUFFER_SIZE;
+
+    /**
+     * Nombre de fragments envoyés simultanément aux noeuds lors d'une écriture.
+     */
+    final public static int WRITE_STREAMS = 4;
+
     /**
      * Lecture et reconstitution d'un fichier sauvegardé sur les noeuds.
      *
+     * Les fragments sont téléchargés en parallèle directement depuis les noeuds
+     * et écrits à leur position dans le fichier local. Si un noeud ne répond pas,
+     * le fragment est redemandé à une autre réplique. Si aucune ne répond, les
+     * répliques sont redemandées au NameServer, qui reconstruit au besoin les
+     * fragments d'un fichier codé à effacement.
+     *
      * @param hdfsFname        Nom du fichier distant
      * @param localFSDestFname Nom du fichier local dans lequel écrire
      */
     public static void HdfsRead(String hdfsFname, String localFSDestFname) {
         Objects.requireNonNull(localFSDestFname);
 
-        try (BufferedOutputStream file = new BufferedOutputStream(new FileOutputStream(localFSDestFname))) {
+        ExecutorService executor = Executors.newFixedThreadPool(READ_WINDOW);
+        try (FileChannel channel = FileChannel.open(Path.of(localFSDestFname), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
 
-            // Connexion au premier noeud
-            Socket sock = newNameServerSocket();
-            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-
-            // On lui envoie que l'on veut lire un fichier
+            // On demande au NameServer où se trouvent les fragments
             File f = new File(hdfsFname);
-            out.writeObject(HdfsAction.READ);
-            out.writeObject(f.getName());
-
-            ObjectInputStream serverInputStream = new ObjectInputStream(new BufferedInputStream(sock.getInputStream()));
-
-            // Réception des erreurs
-            HdfsRuntimeException exception = (HdfsRuntimeException) serverInputStream.readObject();
-            if (exception != null) {
-                throw exception;
+            List<List<FragmentInfo>> fragments = listFragments(f.getName());
+            if (fragments == null || fragments.isEmpty()) {
+                throw new HdfsRuntimeException("Fichier inexistant ou incomplet");
             }
 
-            int number_of_fragments = serverInputStream.readInt();
-            int size = serverInputStream.readInt();
-            ByteArrayInputStream buffer = null;
+            // Position de chaque fragment dans le fichier reconstitué
+            long[] offsets = getOffsets(fragments);
 
-            int i = 1;
-
-            while (size > 0) {
-                System.out.print("\r" + i + "/" + number_of_fragments + " fragments");
-                buffer = new ByteArrayInputStream(serverInputStream.readNBytes(size));
-                buffer.transferTo(file);
-                size = serverInputStream.readInt();
-                i++;
+            int numberOfFragments = fragments.size();
+            AtomicInteger done = new AtomicInteger();
+            List<Future<?>> tasks = new ArrayList<>(numberOfFragments);
+            for (int i = 0; i < numberOfFragments; i++) {
+                int index = i;
+                List<FragmentInfo> replicas = fragments.get(i);
+                long offset = offsets[i];
+                tasks.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        try {
+                            readFragment(replicas, channel, offset);
+                        } catch (IOException e) {
+                            // La liste utilisée était peut-être périmée
+                            locations.invalidate(f.getName());
+                            List<List<FragmentInfo>> current = listFragments(f.getName());
+                            if (current == null || current.size() != numberOfFragments) {
+                                throw e;
+                            }
+                            readFragment(current.get(index), channel, offset);
+                        }
+                        System.out.print("\r" + done.incrementAndGet() + "/" + numberOfFragments + " fragments");
+                        return null;
+                    }
+                }));
             }
 
-            System.out.println();
-
-            if (size < 0) {
-                throw new HdfsRuntimeException("Le fichier ne peut pas être téléchargé en entier");
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HdfsRuntimeException) {
+                        throw (HdfsRuntimeException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
             }
 
-            out.writeObject(HdfsAction.PONG);
-            sock.close();
+            System.out.println();
 
         } catch (IOException e) {
             System.err.println("La lecture a échoué, suppression du fichier local.");
@@ -78,8 +137,6 @@ public class HdfsClient {
             } catch (IOException e2) {
             }
             throw new HdfsRuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new HdfsRuntimeException(e);
         } catch (HdfsRuntimeException e) {
             System.err.println("Erreur reçue : " + e.getMessage());
             try {
@@ -87,8 +144,241 @@ public class HdfsClient {
             } catch (IOException e2) {
             }
             throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Calcule la position de chaque fragment dans le fichier à partir de la
+     * taille des fragments.
+     *
+     * @return Les positions, suivies de la taille du fichier
+     * @throws HdfsRuntimeException Si un fragment n'a pas de réplique ou pas de
+     *                              taille connue
+     */
+    static long[] getOffsets(List<List<FragmentInfo>> fragments) {
+        long[] offsets = new long[fragments.size() + 1];
+        for (int i = 0; i < fragments.size(); i++) {
+            List<FragmentInfo> replicas = fragments.get(i);
+            if (replicas.isEmpty() || replicas.get(0).size < 0) {
+                throw new HdfsRuntimeException("Fichier inexistant ou incomplet");
+            }
+            offsets[i + 1] = offsets[i] + replicas.get(0).size;
+        }
+        return offsets;
+    }
+
+    /**
+     * Lit une plage d'octets d'un fichier distant, sans télécharger le reste du
+     * fichier : seuls les fragments concernés sont lus, et les noeuds n'envoient
+     * que la partie demandée.
+     *
+     * @param hdfsFname Nom du fichier distant
+     * @param offset    Position du premier octet
+     * @param length    Nombre d'octets
+     * @return Les octets lus, moins que demandé si la plage dépasse la fin du
+     *         fichier
+     */
+    public static byte[] HdfsPread(String hdfsFname, long offset, int length) {
+        return HdfsPread(hdfsFname, List.of(new HdfsRange(offset, length))).get(0);
+    }
+
+    /**
+     * Lit plusieurs plages d'octets d'un fichier distant. Les plages proches
+     * (moins de {@link #COALESCE_GAP} octets d'écart) sont regroupées en une
+     * seule lecture, et les lectures se font en parallèle.
+     *
+     * @param hdfsFname Nom du fichier distant
+     * @param ranges    Plages à lire, dans n'importe quel ordre
+     * @return Les octets de chaque plage, dans l'ordre des plages, tronqués à la
+     *         fin du fichier
+     */
+    public static List<byte[]> HdfsPread(String hdfsFname, List<HdfsRange> ranges) {
+        if (ranges.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<List<FragmentInfo>> fragments = listFragments(hdfsFname);
+        if (fragments == null || fragments.isEmpty()) {
+            throw new HdfsRuntimeException("Fichier inexistant ou incomplet");
+        }
+        long[] offsets = getOffsets(fragments);
+
+        List<HdfsRange> merged = HdfsRange.coalesce(ranges, COALESCE_GAP, MAX_COALESCED_LENGTH);
+        Map<HdfsRange, Future<byte[]>> reads = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(READ_WINDOW, merged.size()));
+        try {
+            for (HdfsRange range : merged) {
+                reads.put(range, executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return readRange(hdfsFname, fragments, offsets, range);
+                    }
+                }));
+            }
+
+            List<byte[]> result = new ArrayList<>(ranges.size());
+            for (HdfsRange range : ranges) {
+                HdfsRange read = merged.stream().filter(candidate -> candidate.contains(range)).findFirst().get();
+                byte[] data = reads.get(read).get();
+                int start = (int) Math.min(range.offset - read.offset, data.length);
+                result.add(Arrays.copyOfRange(data, start, Math.min(start + range.length, data.length)));
+            }
+            return result;
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HdfsRuntimeException) {
+                throw (HdfsRuntimeException) e.getCause();
+            }
+            throw new HdfsRuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HdfsRuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lit une plage d'un fichier, tronquée à la fin du fichier, dans les
+     * fragments qu'elle recouvre. Si aucune réplique d'un fragment ne répond,
+     * les répliques sont redemandées au NameServer.
+     */
+    static byte[] readRange(String hdfsFname, List<List<FragmentInfo>> fragments, long[] offsets,
+            HdfsRange range) throws IOException {
+        long start = Math.min(range.offset, offsets[fragments.size()]);
+        long end = Math.min(range.getEnd(), offsets[fragments.size()]);
+        byte[] data = new byte[(int) (end - start)];
+
+        for (int i = 0; i < fragments.size(); i++) {
+            long from = Math.max(start, offsets[i]);
+            long to = Math.min(end, offsets[i + 1]);
+            if (from >= to) {
+                continue;
+            }
+            try {
+                readSlice(fragments.get(i), from - offsets[i], data, (int) (from - start), (int) (to - from));
+            } catch (IOException e) {
+                locations.invalidate(hdfsFname);
+                List<List<FragmentInfo>> current = listFragments(hdfsFname);
+                if (current == null || current.size() != fragments.size()) {
+                    throw e;
+                }
+                readSlice(current.get(i), from - offsets[i], data, (int) (from - start), (int) (to - from));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Lit une partie d'un fragment depuis l'une de ses répliques. Le noeud
+     * n'envoie que cette partie, décompressée.
+     *
+     * @param replicas Répliques du fragment, essayées dans l'ordre
+     * @param offset   Position dans le fragment
+     * @param data     Tableau dans lequel écrire les octets lus
+     * @param position Position dans le tableau
+     * @param length   Nombre d'octets
+     * @throws IOException Si aucune réplique n'a pu être lue
+     */
+    static void readSlice(List<FragmentInfo> replicas, long offset, byte[] data, int position, int length)
+            throws IOException {
+        IOException failure = new IOException("Aucune réplique disponible");
+        for (FragmentInfo replica : replicas) {
+            try (HdfsExchange exchange = pool.open(replica.node)) {
+                exchange.send(new HdfsMessage(HdfsAction.READ).putString(replica.filename).putInt(replica.id)
+                        .putLong(offset).putLong(length));
+                if (exchange.receive(HdfsAction.PONG).getLong() != length) {
+                    throw new IOException("Fragment plus court que prévu");
+                }
+                try (InputStream input = exchange.dataInputStream()) {
+                    if (input.readNBytes(data, position, length) != length || input.read() >= 0) {
+                        throw new IOException("Plage incomplète");
+                    }
+                }
+                return;
+            } catch (IOException | HdfsRuntimeException e) {
+                failure = new IOException("Fragment " + replica.id + " illisible sur " + replica.node, e);
+            }
         }
+        throw failure;
+    }
 
+    /**
+     * Télécharge un fragment depuis l'une de ses répliques et l'écrit à sa
+     * position dans le fichier local.
+     *
+     * @param replicas Répliques du fragment, essayées dans l'ordre
+     * @param channel  Fichier local
+     * @param offset   Position du fragment dans le fichier local
+     * @throws IOException Si aucune réplique n'a pu être lue
+     */
+    private static void readFragment(List<FragmentInfo> replicas, FileChannel channel, long offset)
+            throws IOException {
+        IOException failure = new IOException("Aucune réplique disponible");
+        for (FragmentInfo replica : replicas) {
+            if (replica.codec != null) {
+                try {
+                    readCompressedFragment(replica, channel, offset);
+                    return;
+                } catch (IOException | HdfsRuntimeException e) {
+                    failure = new IOException("Fragment " + replica.id + " illisible sur " + replica.node, e);
+                    continue;
+                }
+            }
+            try (HdfsExchange exchange = pool.open(replica.node)) {
+                // Les données sont écrites dans le fichier à leur arrivée, sans
+                // déborder sur la place du fragment suivant
+                exchange.receiveInto(channel, offset, replica.size);
+                exchange.send(new HdfsMessage(HdfsAction.READ).putString(replica.filename).putInt(replica.id));
+                if (exchange.receive(HdfsAction.PONG).getLong() != replica.size) {
+                    throw new IOException("Taille du fragment inattendue");
+                }
+
+                // Trames déjà écrites dans le fichier : seule leur longueur est lue
+                long received = 0;
+                HdfsMessage message;
+                while ((message = exchange.receive()).getAction() == HdfsAction.DATA) {
+                    message.getLong();
+                    received += message.getInt();
+                }
+                message.expect(HdfsAction.END);
+                if (received != replica.size) {
+                    throw new IOException("Fragment incomplet");
+                }
+                return;
+            } catch (IOException | HdfsRuntimeException e) {
+                failure = new IOException("Fragment " + replica.id + " illisible sur " + replica.node, e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Télécharge un fragment compressé, et l'écrit décompressé à sa position dans
+     * le fichier local au fur et à mesure de la réception.
+     */
+    private static void readCompressedFragment(FragmentInfo replica, FileChannel channel, long offset)
+            throws IOException {
+        try (HdfsExchange exchange = pool.open(replica.node)) {
+            exchange.send(new HdfsMessage(HdfsAction.READ).putString(replica.filename).putInt(replica.id));
+            exchange.receive(HdfsAction.PONG);
+
+            byte[] buffer = new byte[HdfsCompression.BLOCK_SIZE];
+            long position = offset;
+            try (InputStream input = HdfsCompression.open(exchange.dataInputStream())) {
+                int n;
+                while ((n = input.read(buffer)) >= 0) {
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                    while (bytes.hasRemaining()) {
+                        position += channel.write(bytes, position);
+                    }
+                }
+            }
+            if (position - offset != replica.size) {
+                throw new IOException("Fragment incomplet");
+            }
+        }
     }
 
     /**
@@ -99,66 +389,375 @@ public class HdfsClient {
      * @param repFactor          Facteur de duplication
      */
     public static void HdfsWrite(Format.Type fmt, String localFSSourceFname, int repFactor) {
-        try {
-            // Connexion au serveur de nom
-            Socket sock = newNameServerSocket();
-            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
-
-            // On l'informe qu'on veut écrire un fichier
-            File f = new File(localFSSourceFname);
-            out.writeObject(HdfsAction.WRITE);
-            out.writeObject(f.getName());
-            out.writeInt(repFactor);
-            out.flush();
-
-            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(sock.getInputStream()));
-            HdfsRuntimeException exception = (HdfsRuntimeException) in.readObject();
-
-            if (exception != null) {
-                throw exception;
+        HdfsWrite(fmt, localFSSourceFname, repFactor, null);
+    }
+
+    /**
+     * Écriture d'un fichier local vers les noeuds HDFS, dont les fragments sont
+     * stockés et transférés compressés. La lecture par HdfsRead et par les
+     * formats les décompresse.
+     *
+     * @param fmt                Ignoré, conservé pour rétro-compatibilité
+     * @param localFSSourceFname Fichier local
+     * @param repFactor          Facteur de duplication
+     * @param codec              Nom du codec de compression (par exemple
+     *                           "deflate"), null pour ne pas compresser
+     */
+    public static void HdfsWrite(Format.Type fmt, String localFSSourceFname, int repFactor, String codec) {
+        HdfsWrite(fmt, localFSSourceFname, repFactor, codec, WRITE_STREAMS);
+    }
+
+    /**
+     * Écriture d'un fichier local vers les noeuds HDFS, en choisissant le nombre
+     * de fragments envoyés simultanément.
+     *
+     * Le fichier est découpé localement en fragments alignés sur les fins de
+     * ligne, le NameServer ne fait que choisir les noeuds de chaque fragment :
+     * les fragments sont envoyés directement aux noeuds, et le débit augmente
+     * avec leur nombre.
+     *
+     * @param fmt                Ignoré, conservé pour rétro-compatibilité
+     * @param localFSSourceFname Fichier local
+     * @param repFactor          Facteur de duplication
+     * @param codec              Nom du codec de compression, null pour ne pas
+     *                           compresser
+     * @param streams            Nombre de fragments envoyés simultanément
+     */
+    public static void HdfsWrite(Format.Type fmt, String localFSSourceFname, int repFactor, String codec,
+            int streams) {
+        if (streams <= 0) {
+            throw new IllegalArgumentException("Nombre d'envois simultanés invalide : " + streams);
+        }
+        writeDirect(localFSSourceFname, repFactor, codec, streams);
+    }
+
+    /**
+     * Écriture d'un fichier local vers les noeuds HDFS, codé à effacement au
+     * lieu d'être répliqué : chaque bande de k fragments est complétée par m
+     * fragments de parité, tous sur des noeuds différents. Le fichier survit à la
+     * perte de m noeuds pour un surcoût de stockage de (k + m) / k.
+     *
+     * @param fmt                Ignoré, conservé pour rétro-compatibilité
+     * @param localFSSourceFname Fichier local
+     * @param scheme             Codage, de la forme rs-k-m (par exemple
+     *                           {@link HdfsReedSolomon#DEFAULT_SCHEME})
+     * @param codec              Nom du codec de compression, null pour ne pas
+     *                           compresser
+     */
+    public static void HdfsWriteErasureCoded(Format.Type fmt, String localFSSourceFname, String scheme,
+            String codec) {
+        write(localFSSourceFname, 1, codec, Objects.requireNonNull(scheme));
+    }
+
+    /**
+     * Envoie un fichier local au NameServer, qui le découpe et le distribue aux
+     * noeuds. Utilisé pour les fichiers codés à effacement, dont la parité est
+     * calculée par le NameServer.
+     */
+    private static void write(String localFSSourceFname, int repFactor, String codec, String erasure) {
+        File f = new File(localFSSourceFname);
+        try (HdfsOutputStream output = new HdfsOutputStream(f.getName(), repFactor, codec, erasure)) {
+            Files.copy(f.toPath(), output);
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        } catch (HdfsRuntimeException e) {
+            System.err.println("Erreur reçue : " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Découpe un fichier local en fragments alignés sur les fins de ligne, puis
+     * envoie les fragments directement aux noeuds choisis par le NameServer.
+     *
+     * Le NameServer réserve le fichier et enregistre les fragments, puis attend
+     * une requête COMMIT avec les noeuds qui les ont enregistrés : le fichier
+     * n'existe sur HDFS qu'une fois tous les fragments envoyés.
+     */
+    private static void writeDirect(String localFSSourceFname, int repFactor, String codec, int streams) {
+        File f = new File(localFSSourceFname);
+        String hdfsFname = f.getName();
+        HdfsCodec compression = codec == null ? null : HdfsCompression.forName(codec);
+        locations.invalidate(hdfsFname);
+
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+
+            // Découpage local : seules les tailles des fragments sont envoyées
+            long[] offsets = splitFile(channel);
+            int numberOfFragments = offsets.length - 1;
+            HdfsMessage request = new HdfsMessage(HdfsAction.ALLOCATE).putString(hdfsFname).putInt(repFactor)
+                    .putString(codec).putInt(numberOfFragments);
+            for (int i = 0; i < numberOfFragments; i++) {
+                request.putLong(offsets[i + 1] - offsets[i]);
+            }
+            HdfsMessage placement;
+            try (HdfsExchange exchange = newNameServerExchange()) {
+                exchange.send(request);
+                placement = exchange.receive(HdfsAction.PONG);
             }
+            long allocation = placement.getLong();
 
-            // On envoie le fichier
-            Files.copy(f.toPath(), out);
-            out.flush();
-            sock.shutdownOutput();
+            AtomicInteger done = new AtomicInteger();
+            List<Future<List<HdfsNodeInfo>>> tasks = new ArrayList<>(numberOfFragments);
+            for (int i = 0, n = placement.getInt(); i < n; i++) {
+                int id = i;
+                List<HdfsNodeInfo> chain = placement.getNodes();
+                tasks.add(executor.submit(new Callable<List<HdfsNodeInfo>>() {
+                    public List<HdfsNodeInfo> call() throws IOException {
+                        List<HdfsNodeInfo> stored = uploadFragment(hdfsFname, id, id == numberOfFragments - 1,
+                                channel, offsets[id], offsets[id + 1] - offsets[id], compression, chain);
+                        if (stored.isEmpty()) {
+                            throw new IOException("Aucun noeud n'a enregistré le fragment " + id);
+                        }
+                        System.out.print("\r" + done.incrementAndGet() + "/" + numberOfFragments + " fragments");
+                        return stored;
+                    }
+                }));
+            }
 
-            Object response = in.readObject();
-            if (response != HdfsAction.PONG) {
-                throw new HdfsRuntimeException("Le serveur a rencontré une erreur lors du téléchargement");
+            try {
+                HdfsMessage commit = new HdfsMessage(HdfsAction.COMMIT).putLong(allocation);
+                for (Future<List<HdfsNodeInfo>> task : tasks) {
+                    commit.putNodes(task.get());
+                }
+                if (!tasks.isEmpty()) {
+                    System.out.println();
+                    try (HdfsExchange exchange = newNameServerExchange()) {
+                        exchange.send(commit);
+                        exchange.receive(HdfsAction.PONG);
+                    }
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                // Aucun fragment ne doit arriver sur un noeud après la suppression du fichier
+                cancelUploads(executor, tasks);
+                abandonAllocation(allocation);
+                throw e instanceof ExecutionException ? new IOException(e.getCause()) : new IOException(e);
             }
-            sock.close();
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             throw new HdfsRuntimeException(e);
         } catch (HdfsRuntimeException e) {
             System.err.println("Erreur reçue : " + e.getMessage());
             throw e;
+        } finally {
+            executor.shutdownNow();
+            locations.invalidate(hdfsFname);
         }
     }
 
+    /**
+     * Annule les envois de fragments en cours et attend qu'ils soient tous
+     * terminés.
+     */
+    private static void cancelUploads(ExecutorService executor, List<? extends Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Abandonne une écriture réservée : le NameServer supprime le fichier. S'il
+     * n'est pas joignable, la réservation expirera d'elle-même.
+     */
+    private static void abandonAllocation(long allocation) {
+        try (HdfsExchange exchange = newNameServerExchange()) {
+            exchange.send(new HdfsMessage(HdfsAction.COMMIT).putLong(allocation));
+            exchange.receive(HdfsAction.PONG);
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Abandon de l'écriture impossible : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Découpe un fichier en fragments d'au moins BUFFER_SIZE octets terminés par
+     * une fin de ligne, sans dépasser MAX_FRAGMENT_SIZE : les mêmes fragments que
+     * ceux découpés par le NameServer. Seule la fin de chaque fragment est lue.
+     *
+     * @return La position de chaque fragment, suivie de la taille du fichier
+     */
+    static long[] splitFile(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> offsets = new ArrayList<>();
+        ByteBuffer chunk = ByteBuffer.allocate(HdfsConnection.CHUNK_SIZE);
+
+        long start = 0;
+        while (start < size) {
+            offsets.add(start);
+            long limit = Math.min(start + HdfsNameServer.MAX_FRAGMENT_SIZE, size);
+            long end = limit;
+
+            // Recherche de la première fin de ligne après BUFFER_SIZE octets
+            long position = start + HdfsNameServer.BUFFER_SIZE;
+            search: while (position < limit) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), limit - position));
+                int n = channel.read(chunk, position);
+                if (n < 0) {
+                    throw new IOException("Fichier tronqué pendant le découpage");
+                }
+                for (int i = 0; i < n; i++) {
+                    if (chunk.get(i) == '\n') {
+                        end = position + i + 1;
+                        break search;
+                    }
+                }
+                position += n;
+            }
+            start = end;
+        }
+
+        offsets.add(size);
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Envoie un fragment au premier noeud de sa chaîne, qui l'enregistre tout en
+     * le retransmettant aux suivants. Si un noeud échoue, l'envoi reprend au
+     * noeud qui le suit dans la chaîne ; le NameServer complètera les répliques
+     * manquantes.
+     *
+     * @param codec Codec de compression, null pour envoyer le fragment tel quel
+     * @return Les noeuds qui ont enregistré le fragment
+     */
+    private static List<HdfsNodeInfo> uploadFragment(String hdfsFname, int id, boolean lastPart,
+            FileChannel channel, long offset, long length, HdfsCodec codec, List<HdfsNodeInfo> chain) {
+
+        List<HdfsNodeInfo> stored = new ArrayList<>(chain.size());
+        int next = 0;
+        // Un envoi annulé n'essaie pas les noeuds suivants
+        while (next < chain.size() && !Thread.currentThread().isInterrupted()) {
+
+            List<HdfsNodeInfo> rest = chain.subList(next, chain.size());
+            int count = 0;
+            try (HdfsExchange exchange = pool.open(rest.get(0))) {
+
+                exchange.setTimeout(1000 * rest.size());
+                exchange.send(new HdfsMessage(HdfsAction.WRITE).putString(hdfsFname).putInt(id)
+                        .putBoolean(lastPart).putNodes(rest.subList(1, rest.size())).putBoolean(codec != null));
+                if (codec == null) {
+                    exchange.sendFile(channel, offset, length);
+                    exchange.send(new HdfsMessage(HdfsAction.END));
+                } else {
+                    try (OutputStream output = exchange.dataOutputStream()) {
+                        HdfsCompression.compress(codec, openRange(channel, offset, length), length, output);
+                    }
+                }
+
+                count = exchange.receive(HdfsAction.PONG).getInt();
+                stored.addAll(rest.subList(0, count));
+                if (count < rest.size()) {
+                    System.err.println("Chaîne de réplication interrompue au noeud " + rest.get(count));
+                }
+
+            } catch (IOException | HdfsRuntimeException e) {
+                System.err.println("Envoi du fragment " + id + " au noeud " + rest.get(0) + " impossible : "
+                        + e.getMessage());
+            }
+
+            // On ignore le noeud défaillant et on reprend aux suivants
+            next += count + 1;
+
+        }
+        return stored;
+    }
+
+    /**
+     * @return Un flux sur une partie d'un fichier, lu par positions absolues pour
+     *         que plusieurs flux partagent le même canal
+     */
+    static InputStream openRange(FileChannel channel, long offset, long length) {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (this.position >= this.end) {
+                    return -1;
+                }
+                int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.end - this.position)),
+                        this.position);
+                if (n > 0) {
+                    this.position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Informe le NameServer qu'on veut écrire un fichier.
+     *
+     * @return L'échange sur lequel envoyer le contenu du fichier
+     */
+    static HdfsExchange openWrite(String hdfsFname, int repFactor, String codec, String erasure)
+            throws IOException {
+        locations.invalidate(hdfsFname);
+        HdfsExchange exchange = newNameServerExchange();
+        try {
+            HdfsMessage request = new HdfsMessage(HdfsAction.WRITE).putString(hdfsFname).putInt(repFactor);
+            if (codec != null || erasure != null) {
+                request.putString(codec == null ? "" : codec);
+            }
+            if (erasure != null) {
+                request.putString(erasure);
+            }
+            exchange.send(request);
+            exchange.receive(HdfsAction.PONG);
+            return exchange;
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Oublie la liste des fragments d'un fichier qui vient d'être écrit.
+     */
+    static void invalidateLocations(String hdfsFname) {
+        locations.invalidate(hdfsFname);
+    }
+
     /**
      * Demande la suppression d'un fichier distant.
      *
      * @param hdfsFname
      */
     public static void HdfsDelete(String hdfsFname) {
-        try {
-            // Connexion au premier noeud
-            Socket sock = newNameServerSocket();
-            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
+        locations.invalidate(hdfsFname);
+        try (HdfsExchange exchange = newNameServerExchange()) {
 
             // On l'informe qu'on veut supprimer un fichier
-            out.writeObject(HdfsAction.DELETE);
-            out.writeObject(hdfsFname);
+            exchange.send(new HdfsMessage(HdfsAction.DELETE).putString(hdfsFname));
+            exchange.receive(HdfsAction.PONG);
 
-            Object response = new ObjectInputStream(sock.getInputStream()).readObject();
-            if (response != HdfsAction.PONG) {
-                throw new HdfsRuntimeException("Le serveur a rencontré une erreur lors de la suppression");
-            }
-            sock.close();
-
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             throw new HdfsRuntimeException(e);
         }
     }
@@ -168,58 +767,153 @@ public class HdfsClient {
      *
      * Remarque : un fichier peut être répliqué, d'où List<List<FragmentInfo>>
      *
+     * La liste est gardée en cache (voir {@link HdfsLocationCache}) : elle n'est
+     * pas redemandée pendant son bail, puis seulement revalidée auprès du
+     * NameServer tant qu'elle ne change pas.
+     *
      * @param hdfsFilename
-     * @return
+     * @return La liste des fragments, null si le fichier est inconnu
      */
     public static List<List<FragmentInfo>> listFragments(String hdfsFilename) {
-        try {
-            Socket sock = newNameServerSocket();
-            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
+        HdfsLocationCache.Entry cached = locations.get(hdfsFilename);
+        if (cached != null && cached.isLeased()) {
+            return cached.fragments;
+        }
 
-            // On l'informe qu'on veut la liste des fragments
-            out.writeObject(HdfsAction.LIST_FRAGMENTS);
-            out.writeObject(hdfsFilename);
+        try (HdfsExchange exchange = newNameServerExchange()) {
 
-            ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
+            // On l'informe qu'on veut la liste des fragments, en donnant la version connue
+            exchange.send(new HdfsMessage(HdfsAction.LIST_FRAGMENTS).putString(hdfsFilename)
+                    .putLong(cached == null ? 0 : cached.version));
+            HdfsMessage response = exchange.receive(HdfsAction.PONG);
 
-            List<List<FragmentInfo>> lst = new ArrayList<>();
-            for (Object i : (List<?>) in.readObject()) {
-                if (i == null) {
-                    lst.add(null);
-                } else {
-                    lst.add(((List<?>) i).stream().map(obj -> (FragmentInfo) obj).collect(Collectors.toList()));
+            int numberOfFragments = response.getInt();
+            if (numberOfFragments == HdfsNameServer.NOT_MODIFIED && cached != null) {
+                locations.renew(hdfsFilename, cached);
+                return cached.fragments;
+            }
+            if (numberOfFragments < 0) {
+                locations.invalidate(hdfsFilename);
+                return null;
+            }
+
+            List<List<FragmentInfo>> lst = new ArrayList<>(numberOfFragments);
+            for (int i = 0; i < numberOfFragments; i++) {
+                int replicas = response.getInt();
+                List<FragmentInfo> fragments = new ArrayList<>(replicas);
+                for (int j = 0; j < replicas; j++) {
+                    fragments.add(response.getFragment());
                 }
+                lst.add(Collections.unmodifiableList(fragments));
             }
 
-            out.writeObject(HdfsAction.PONG);
-            return Collections.unmodifiableList(lst);
+            lst = Collections.unmodifiableList(lst);
+            locations.put(hdfsFilename, lst, response.hasRemaining() ? response.getLong() : 0);
+            return lst;
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             System.err.println("Une erreur de connexion a eu lieu lors de la récupération des fragments.");
             throw new HdfsRuntimeException(e);
         }
     }
 
+    /**
+     * Demande au NameServer où il placerait les fragments d'un fichier, selon sa
+     * politique de placement. Rien n'est réservé : le placement permet à un job
+     * de lancer ses tâches sur les noeuds qui recevront ses résultats.
+     *
+     * @param hdfsFname Nom du fichier
+     * @param fragments Nombre de fragments
+     * @param repFactor Facteur de réplication
+     * @return Pour chaque fragment, les noeuds qui recevraient ses répliques
+     */
+    public static List<List<HdfsNodeInfo>> choosePlacement(String hdfsFname, int fragments, int repFactor) {
+        try (HdfsExchange exchange = newNameServerExchange()) {
+
+            exchange.send(new HdfsMessage(HdfsAction.PLACEMENT).putString(hdfsFname).putInt(fragments)
+                    .putInt(repFactor));
+            HdfsMessage response = exchange.receive(HdfsAction.PONG);
+
+            int n = response.getInt();
+            List<List<HdfsNodeInfo>> placement = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                placement.add(Collections.unmodifiableList(response.getNodes()));
+            }
+            return Collections.unmodifiableList(placement);
+
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
+
     public static Set<HdfsNodeInfo> listNodes() {
-        try {
-            Socket sock = newNameServerSocket();
-            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
+        try (HdfsExchange exchange = newNameServerExchange()) {
 
-            // On l'informe qu'on veut la liste des fragments
-            out.writeObject(HdfsAction.LIST_NODES);
+            // On l'informe qu'on veut la liste des noeuds
+            exchange.send(new HdfsMessage(HdfsAction.LIST_NODES));
+            return Collections.unmodifiableSet(new HashSet<>(exchange.receive(HdfsAction.PONG).getNodes()));
 
-            ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
 
-            Set<HdfsNodeInfo> set = new HashSet<>();
-            for (Object i : (List<?>) in.readObject()) {
-                Objects.requireNonNull(i);
-                set.add((HdfsNodeInfo) i);
-            }
+    /**
+     * @return Les noeuds connectés avec leur dernière charge connue (espace libre,
+     *         requêtes en cours, cache des fragments)
+     */
+    public static Map<HdfsNodeInfo, HdfsNodeStats> listNodeStats() {
+        HdfsMessage response = requestNodes();
+        Map<HdfsNodeInfo, HdfsNodeStats> stats = new LinkedHashMap<>();
+        for (HdfsNodeInfo node : response.getNodes()) {
+            stats.put(node, HdfsNodeStats.UNKNOWN);
+        }
+        for (HdfsNodeInfo node : stats.keySet()) {
+            stats.put(node, response.getNodeStats());
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * @return L'occupation des buffers de transfert du NameServer, null si le
+     *         NameServer ne la donne pas
+     */
+    public static HdfsBufferPool.Usage getNameServerBufferUsage() {
+        return getNameServerUsages().get(0);
+    }
+
+    /**
+     * @return L'occupation des buffers des trames reçues par la boucle
+     *         d'événements du NameServer, null si le NameServer ne la donne pas
+     */
+    public static HdfsBufferPool.Usage getNameServerEventLoopUsage() {
+        return getNameServerUsages().get(1);
+    }
+
+    /**
+     * @return L'occupation des buffers de transfert puis de ceux de la boucle
+     *         d'événements du NameServer, null pour celles qu'il ne donne pas
+     */
+    private static List<HdfsBufferPool.Usage> getNameServerUsages() {
+        HdfsMessage response = requestNodes();
+        List<HdfsNodeInfo> nodes = response.getNodes();
+        for (int i = 0; i < nodes.size(); i++) {
+            response.getNodeStats();
+        }
+        HdfsBufferPool.Usage transfers = response.getBufferUsage();
+        return Arrays.asList(transfers, response.getBufferUsage());
+    }
 
-            out.writeObject(HdfsAction.PONG);
-            return Collections.unmodifiableSet(set);
+    /**
+     * @return La réponse du NameServer à une demande de la liste des noeuds
+     */
+    private static HdfsMessage requestNodes() {
+        try (HdfsExchange exchange = newNameServerExchange()) {
 
-        } catch (IOException | ClassNotFoundException e) {
+            exchange.send(new HdfsMessage(HdfsAction.LIST_NODES));
+            return exchange.receive(HdfsAction.PONG);
+
+        } catch (IOException e) {
             throw new HdfsRuntimeException(e);
         }
     }
@@ -228,28 +922,42 @@ public class HdfsClient {
      * Provoque un rafraichissement de la liste des fichiers.
      */
     public static void requestRefresh() {
-        try {
-            Socket sock = newNameServerSocket();
+        // Les listes en cache seront revalidées auprès du nouveau catalogue
+        locations.expireAll();
+        try (HdfsExchange exchange = newNameServerExchange()) {
 
             // On force le rafraîchissement du catalogue
-            ObjectOutputStream out = new ObjectOutputStream(sock.getOutputStream());
-            out.writeObject(HdfsAction.FORCE_RESCAN);
+            exchange.send(new HdfsMessage(HdfsAction.FORCE_RESCAN));
+            exchange.receive(HdfsAction.PONG);
 
-            Object response = new ObjectInputStream(sock.getInputStream()).readObject();
-            if (response != HdfsAction.PONG) {
-                throw new HdfsRuntimeException("Le serveur a rencontré une erreur lors du rafraîchissement");
-            }
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
+    /**
+     * Demande au NameServer de rééquilibrer la répartition des fragments entre
+     * les noeuds.
+     *
+     * @return Le nombre de fragments déplacés
+     */
+    public static int requestRebalance() {
+        locations.expireAll();
+        try (HdfsExchange exchange = newNameServerExchange()) {
+
+            exchange.send(new HdfsMessage(HdfsAction.REBALANCE));
+            return exchange.receive(HdfsAction.PONG).getInt();
+
+        } catch (IOException e) {
             throw new HdfsRuntimeException(e);
         }
     }
 
     /**
-     * @return Une socket ouverte sur le NameServer HDFS
+     * @return Un échange ouvert sur la connexion persistante au NameServer HDFS
      */
-    private static Socket newNameServerSocket() throws IOException {
-        return new Socket(HdfsNameServer.DEFAULT_HOST, HdfsNameServer.DEFAULT_PORT);
+    private static HdfsExchange newNameServerExchange() throws IOException {
+        return pool.open(HdfsNameServer.DEFAULT_HOST, HdfsNameServer.DEFAULT_PORT);
     }
 
     /**
@@ -268,20 +976,55 @@ public class HdfsClient {
             case "rescan":
                 requestRefresh();
                 break;
+            case "rebalance":
+                System.out.println(requestRebalance() + " fragments déplacés");
+                break;
+            case "nodes":
+                for (Map.Entry<HdfsNodeInfo, HdfsNodeStats> node : listNodeStats().entrySet()) {
+                    System.out.println(node.getKey() + " : " + node.getValue());
+                }
+                List<HdfsBufferPool.Usage> usages = getNameServerUsages();
+                if (usages.get(0) != null) {
+                    System.out.println("NameServer : " + usages.get(0));
+                }
+                if (usages.get(1) != null) {
+                    System.out.println("Boucle d'événements du NameServer : " + usages.get(1));
+                }
+                break;
             case "read":
                 HdfsRead(args[1], args.length < 3 ? null : args[2]);
                 System.out.println("Téléchargement réalisé avec succès");
                 break;
+            case "pread":
+                if (args.length < 4) {
+                    usage();
+                    return;
+                }
+                byte[] data = HdfsPread(args[1], Long.parseLong(args[2]), Integer.parseInt(args[3]));
+                System.out.write(data, 0, data.length);
+                System.out.println();
+                break;
             case "delete":
                 HdfsDelete(args[1]);
                 System.out.println("Suppresion réalisée avec succès");
                 break;
+            case "write-ec":
+                if (args.length < 2) {
+                    usage();
+                    return;
+                }
+                HdfsWriteErasureCoded(Format.Type.KV, args[1],
+                        args.length < 3 ? HdfsReedSolomon.DEFAULT_SCHEME : args[2], args.length < 4 ? null : args[3]);
+                System.out.println("Upload réalisé avec succès");
+                break;
             case "write":
                 if (args.length < 2) {
                     usage();
                     return;
                 }
-                HdfsWrite(Format.Type.KV, args[1], args.length < 3 ? 1 : Integer.parseInt(args[2]));
+                HdfsWrite(Format.Type.KV, args[1], args.length < 3 ? 1 : Integer.parseInt(args[2]),
+                        args.length < 4 || args[3].equals("none") ? null : args[3],
+                        args.length < 5 ? WRITE_STREAMS : Integer.parseInt(args[4]));
                 System.out.println("Upload réalisé avec succès");
         }
     }
@@ -292,9 +1035,15 @@ public class HdfsClient {
     private static void usage() {
         System.out.println("Usage:");
         System.out.println("  * HdfsClient read <file> <dest>");
-        System.out.println("  * HdfsClient write <file> <rep? = 1>");
+        System.out.println("  * HdfsClient pread <file> <offset> <length>");
+        System.out.println("  * HdfsClient write <file> <rep? = 1> <codec? = none, deflate> <streams? = "
+                + WRITE_STREAMS + ">");
+        System.out.println("  * HdfsClient write-ec <file> <scheme? = " + HdfsReedSolomon.DEFAULT_SCHEME
+                + "> <codec? = none, deflate>");
         System.out.println("  * HdfsClient delete <file>");
         System.out.println("  * HdfsClient rescan");
+        System.out.println("  * HdfsClient rebalance");
+        System.out.println("  * HdfsClient nodes");
     }
 
 }
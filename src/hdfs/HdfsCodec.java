@@ -0,0 +1,48 @@
+package hdfs;
+
+import java.io.IOException;
+
+/**
+ * Algorithme de compression des blocs d'un fragment (voir
+ * {@link HdfsCompression}).
+ *
+ * Un codec est identifié par un nom, choisi à l'écriture d'un fichier, et par
+ * un code écrit dans l'en-tête de chaque fragment compressé. Les
+ * implémentations doivent pouvoir être utilisées par plusieurs threads.
+ */
+public interface HdfsCodec {
+
+    /**
+     * @return Le code du codec dans l'en-tête des fragments, unique et non nul
+     */
+    byte getId();
+
+    /**
+     * @return Le nom du codec, choisi à l'écriture d'un fichier
+     */
+    String getName();
+
+    /**
+     * Compresse un bloc.
+     *
+     * @param input  Données à compresser
+     * @param offset Début des données
+     * @param length Longueur des données
+     * @param output Destination, de taille length
+     * @return La taille des données compressées, -1 si elles ne tiennent pas dans
+     *         output
+     */
+    int compress(byte[] input, int offset, int length, byte[] output);
+
+    /**
+     * Décompresse un bloc.
+     *
+     * @param input        Données compressées
+     * @param length       Longueur des données compressées
+     * @param output       Destination
+     * @param outputLength Taille des données décompressées
+     * @throws IOException Si les données sont corrompues
+     */
+    void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException;
+
+}
@@ -0,0 +1,309 @@
+package hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compression par blocs des fragments.
+ *
+ * Un fragment compressé commence par un en-tête [MAGIC (4 octets)][code du
+ * codec (1 octet)][taille décompressée (8 octets)], suivi de blocs
+ * [taille décompressée (4 octets)][taille stockée (4 octets)][données]. Un bloc
+ * dont les deux tailles sont égales est stocké tel quel, quand la compression ne
+ * le réduit pas.
+ *
+ * Les blocs se décompressent l'un après l'autre, en flux, par {@link #open},
+ * qui refuse un fragment qui n'est pas compressé. Le contenu n'est jamais
+ * examiné pour le deviner : le nom du fichier d'un fragment compressé porte la
+ * marque {@link FragmentInfo#COMPRESSED_MARK}, et les formats choisissent de
+ * décompresser ou non d'après ce nom (voir {@link #isCompressed(File)} et
+ * {@link FragmentInfo#isCompressed(String)}).
+ */
+public final class HdfsCompression {
+
+    /**
+     * Nombre magique en tête d'un fragment compressé ("HDZB").
+     */
+    final public static int MAGIC = 0x48445A42;
+
+    /**
+     * Taille de l'en-tête d'un fragment compressé.
+     */
+    final public static int HEADER_SIZE = 13;
+
+    /**
+     * Taille maximale des données d'un bloc avant compression.
+     */
+    final public static int BLOCK_SIZE = 65536;
+
+    /**
+     * Codecs disponibles, par nom et par code.
+     */
+    private static final Map<String, HdfsCodec> BY_NAME = new ConcurrentHashMap<>();
+    private static final Map<Byte, HdfsCodec> BY_ID = new ConcurrentHashMap<>();
+
+    static {
+        register(new HdfsDeflateCodec());
+    }
+
+    private HdfsCompression() {
+    }
+
+    /**
+     * Ajoute un codec, utilisable ensuite par son nom à l'écriture d'un fichier.
+     * Il doit être enregistré dans le NameServer et dans les lecteurs.
+     */
+    public static void register(HdfsCodec codec) {
+        BY_NAME.put(codec.getName(), codec);
+        BY_ID.put(codec.getId(), codec);
+    }
+
+    /**
+     * @return Le codec de ce nom, null si le nom est null ou inconnu
+     */
+    public static HdfsCodec forName(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+
+    /**
+     * Compresse un fragment.
+     *
+     * @param codec Codec à utiliser
+     * @param raw   Données du fragment
+     * @return Le fragment compressé, avec son en-tête
+     */
+    public static ByteArrayOutputStream compress(HdfsCodec codec, ByteArrayOutputStream raw) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.size() / 2 + HEADER_SIZE);
+        try {
+            compress(codec, new ByteArrayInputStream(raw.toByteArray()), raw.size(), compressed);
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+        return compressed;
+    }
+
+    /**
+     * Compresse un fragment au fur et à mesure de sa lecture, bloc par bloc.
+     *
+     * @param codec  Codec à utiliser
+     * @param raw    Données du fragment
+     * @param length Taille du fragment
+     * @param output Flux dans lequel écrire le fragment compressé, avec son
+     *               en-tête. Il n'est pas fermé.
+     */
+    public static void compress(HdfsCodec codec, InputStream raw, long length, OutputStream output)
+            throws IOException {
+        byte[] input = new byte[BLOCK_SIZE];
+        byte[] block = new byte[BLOCK_SIZE];
+        DataOutputStream data = new DataOutputStream(output);
+
+        data.writeInt(MAGIC);
+        data.writeByte(codec.getId());
+        data.writeLong(length);
+        long total = 0;
+        int n;
+        while ((n = raw.readNBytes(input, 0, BLOCK_SIZE)) > 0) {
+            int size = codec.compress(input, 0, n, block);
+            data.writeInt(n);
+            if (size < 0 || size >= n) {
+                data.writeInt(n);
+                data.write(input, 0, n);
+            } else {
+                data.writeInt(size);
+                data.write(block, 0, size);
+            }
+            total += n;
+        }
+        data.flush();
+
+        if (total != length) {
+            throw new IOException("Fragment de " + total + " octets au lieu de " + length);
+        }
+    }
+
+    /**
+     * Ouvre un fragment compressé en lecture. Le contenu n'est jamais examiné
+     * pour deviner s'il est compressé : c'est à l'appelant de le savoir, par le
+     * codec du fichier ou le nom du fragment (voir {@link #isCompressed}).
+     *
+     * @param input Contenu du fragment tel que stocké
+     * @return Le contenu décompressé
+     * @throws IOException Si le fragment n'est pas compressé ou utilise un codec
+     *                     inconnu
+     */
+    public static InputStream open(InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(input, BLOCK_SIZE));
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Fragment compressé invalide");
+            }
+            byte id = data.readByte();
+            HdfsCodec codec = BY_ID.get(id);
+            if (codec == null) {
+                throw new IOException("Codec de compression inconnu : " + id);
+            }
+            data.readLong();
+            return new BlockInputStream(data, codec);
+        } catch (EOFException e) {
+            throw new IOException("Fragment compressé tronqué", e);
+        }
+    }
+
+    /**
+     * Indique si un fragment stocké est compressé, d'après le nom de son
+     * fichier.
+     */
+    public static boolean isCompressed(File fragment) {
+        return FragmentInfo.isCompressed(fragment.getName());
+    }
+
+    /**
+     * @return La taille des données d'un fragment une fois décompressé, lue dans
+     *         l'en-tête d'un fragment compressé
+     */
+    public static long getRawLength(File fragment) {
+        if (!isCompressed(fragment)) {
+            return fragment.length();
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(fragment))) {
+            input.readInt();
+            input.readByte();
+            return input.readLong();
+        } catch (IOException e) {
+            return fragment.length();
+        }
+    }
+
+    /**
+     * Flux des données décompressées d'un fragment, bloc par bloc.
+     */
+    private static class BlockInputStream extends InputStream {
+
+        private final DataInputStream input;
+        private final HdfsCodec codec;
+        private final byte[] stored = new byte[BLOCK_SIZE];
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int position = 0;
+        private int length = 0;
+
+        private BlockInputStream(DataInputStream input, HdfsCodec codec) {
+            this.input = input;
+            this.codec = codec;
+        }
+
+        /**
+         * Décompresse le bloc suivant.
+         *
+         * @return false à la fin du fragment
+         */
+        private boolean nextBlock() throws IOException {
+            int rawLength;
+            try {
+                rawLength = this.input.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            int storedLength = this.readStoredLength(rawLength);
+            this.loadBlock(rawLength, storedLength);
+            return true;
+        }
+
+        /**
+         * Lit la taille stockée du bloc dont la taille décompressée vient d'être
+         * lue.
+         */
+        private int readStoredLength(int rawLength) throws IOException {
+            int storedLength = this.input.readInt();
+            if (rawLength < 0 || rawLength > BLOCK_SIZE || storedLength < 0 || storedLength > rawLength) {
+                throw new IOException("Bloc compressé invalide");
+            }
+            return storedLength;
+        }
+
+        /**
+         * Décompresse le bloc dont les tailles viennent d'être lues.
+         */
+        private void loadBlock(int rawLength, int storedLength) throws IOException {
+            if (storedLength == rawLength) {
+                this.input.readFully(this.block, 0, rawLength);
+            } else {
+                this.input.readFully(this.stored, 0, storedLength);
+                this.codec.decompress(this.stored, storedLength, this.block, rawLength);
+            }
+            this.position = 0;
+            this.length = rawLength;
+        }
+
+        /**
+         * Saute des données décompressées. Les blocs entièrement sautés ne sont
+         * pas décompressés, ce qui permet de lire une partie d'un fragment sans
+         * décompresser ce qui la précède.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, this.length - this.position));
+            this.position += skipped;
+            while (skipped < n) {
+                int rawLength;
+                try {
+                    rawLength = this.input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int storedLength = this.readStoredLength(rawLength);
+                if (skipped + rawLength <= n) {
+                    this.input.skipNBytes(storedLength);
+                    skipped += rawLength;
+                } else {
+                    this.loadBlock(rawLength, storedLength);
+                    this.position = (int) (n - skipped);
+                    skipped = n;
+                }
+            }
+            return skipped;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (this.position == this.length) {
+                if (!this.nextBlock()) {
+                    return -1;
+                }
+            }
+            return this.block[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.position == this.length) {
+                if (!this.nextBlock()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, this.length - this.position);
+            System.arraycopy(this.block, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.input.close();
+        }
+    }
+
+}
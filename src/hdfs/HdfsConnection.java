@@ -0,0 +1,751 @@
+package hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connexion persistante utilisant le protocole binaire HDFS.
+ *
+ * À l'ouverture, le client envoie [MAGIC (4 octets)][version (1 octet)] et le
+ * serveur répond avec la version acceptée, 0 s'il la refuse. Les échanges se
+ * font ensuite par trames [identifiant de requête (4 octets)][{@link HdfsMessage}].
+ * Plusieurs requêtes ({@link HdfsExchange}) peuvent être en cours en même temps
+ * sur une même connexion : un thread de lecture distribue les trames reçues
+ * selon leur identifiant.
+ *
+ * Lorsque la socket a un canal ({@link SocketChannel}), les fichiers sont
+ * envoyés et reçus sans copie dans la mémoire de la JVM.
+ *
+ * Côté serveur, une connexion peut aussi être lue par un {@link HdfsEventLoop}
+ * au lieu d'un thread de lecture dédié : son canal est alors non bloquant, et
+ * les trames lui sont transmises par {@link #dispatch}.
+ */
+public class HdfsConnection implements Closeable {
+
+    /**
+     * Nombre magique ouvrant une connexion binaire ("HDFS").
+     */
+    final public static int MAGIC = 0x48444653;
+
+    /**
+     * Version du protocole binaire.
+     */
+    final public static byte VERSION = 2;
+
+    /**
+     * Taille maximale d'une trame DATA.
+     */
+    final public static int CHUNK_SIZE = 65536;
+
+    /**
+     * Traitement des requêtes reçues par un serveur.
+     */
+    public interface Handler {
+        /**
+         * Traite une requête. L'échange est fermé au retour de la méthode.
+         *
+         * @param exchange Échange ouvert par la requête
+         * @param request  Premier message de l'échange
+         */
+        void handle(HdfsExchange exchange, HdfsMessage request) throws IOException;
+
+        /**
+         * Ouvre le fichier dans lequel écrire directement les données de la
+         * requête (voir {@link HdfsExchange#receiveInto}). Appelé par le thread de
+         * lecture avant {@link #handle}, pour qu'aucune trame DATA ne soit reçue
+         * en mémoire.
+         *
+         * @param request Premier message de l'échange
+         * @return Le fichier, null pour recevoir les données en mémoire
+         */
+        default FileChannel openSink(HdfsMessage request) throws IOException {
+            return null;
+        }
+    }
+
+    /**
+     * Flux entrant lu directement sur le canal de la socket, qui permet de copier
+     * une partie du flux vers un fichier sans passer par la mémoire de la JVM.
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private final SocketChannel channel;
+
+        /**
+         * Octets lus sur le canal et pas encore consommés.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE + 9).flip();
+
+        private ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Remplit le buffer s'il est vide.
+         *
+         * @return false à la fin du flux
+         */
+        private boolean fill() throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                this.buffer.clear();
+                int n = this.channel.read(this.buffer);
+                this.buffer.flip();
+                return n > 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.fill() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.fill()) {
+                return -1;
+            }
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * Copie les count prochains octets du flux dans un fichier.
+         */
+        private void transferTo(FileChannel file, long position, long count) throws IOException {
+            long done = 0;
+
+            // Octets déjà lus sur le canal
+            if (this.buffer.hasRemaining()) {
+                ByteBuffer buffered = this.buffer.slice();
+                buffered.limit((int) Math.min(count, buffered.remaining()));
+                while (buffered.hasRemaining()) {
+                    done += file.write(buffered, position + done);
+                }
+                this.buffer.position(this.buffer.position() + (int) done);
+            }
+
+            // Le reste est copié par le noyau, qui n'écrit pas au-delà de la fin du
+            // fichier : celui-ci est d'abord prolongé, les fragments d'une lecture
+            // pouvant arriver dans le désordre
+            if (done < count && file.size() < position + count) {
+                file.write(ByteBuffer.allocate(1), position + count - 1);
+            }
+            while (done < count) {
+                long n = file.transferFrom(this.channel, position + done, count - done);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * Flux sortant écrit sur un canal non bloquant, qui attend que le canal
+     * accepte à nouveau des données quand le tampon du noyau est plein.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            HdfsConnection.this.writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /**
+     * Flux sortant dont les écritures ne sont pas synchronized : elles sont déjà
+     * protégées par le verrou du flux sortant de la connexion.
+     */
+    private static class FrameOutputStream extends DataOutputStream {
+
+        private FrameOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.written += len;
+        }
+    }
+
+    /**
+     * Socket sous-jacente.
+     */
+    private final Socket socket;
+
+    /**
+     * Flux entrant, lu uniquement par le thread de lecture, null si la
+     * connexion est lue par une boucle d'événements.
+     */
+    private final DataInputStream input;
+
+    /**
+     * Flux entrant lu sur le canal de la socket, null si la socket n'a pas de
+     * canal ou si le flux a été fourni par l'appelant.
+     */
+    private final ChannelInputStream channelInput;
+
+    /**
+     * Flux sortant, partagé par les échanges.
+     */
+    private final DataOutputStream output;
+
+    /**
+     * Verrou du flux sortant, tenu pendant l'écriture d'une trame entière.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Échanges en cours, par identifiant.
+     */
+    private final Map<Integer, HdfsExchange> exchanges = new ConcurrentHashMap<>();
+
+    /**
+     * Prochain identifiant de requête émise.
+     */
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * Date de fin du dernier échange, en ms.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Appelé à chaque trame lue par un échange, null si la connexion a un
+     * thread de lecture.
+     */
+    private final Runnable onConsumed;
+
+    /**
+     * Sélecteur utilisé pour attendre qu'un canal non bloquant accepte à nouveau
+     * des données, ouvert à la première attente.
+     */
+    private volatile Selector writeSelector;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Crée une connexion sur une socket.
+     *
+     * @param input Flux entrant de la socket, null pour lire directement sur son
+     *              canal
+     */
+    private HdfsConnection(Socket socket, InputStream input) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.socket.setKeepAlive(true);
+        if (input == null && socket.getChannel() != null) {
+            this.channelInput = new ChannelInputStream(socket.getChannel());
+            input = this.channelInput;
+        } else {
+            this.channelInput = null;
+            if (input == null) {
+                input = new BufferedInputStream(socket.getInputStream());
+            }
+        }
+        this.input = new DataInputStream(input);
+        this.output = new FrameOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 9));
+        this.onConsumed = null;
+    }
+
+    /**
+     * Crée une connexion sur un canal non bloquant lu par une boucle
+     * d'événements. Le tampon de sortie est réduit, une connexion de ce type
+     * ayant rarement plus d'une requête en cours.
+     *
+     * @param onConsumed Appelé à chaque trame lue par un échange, pour reprendre
+     *                   la lecture d'une connexion dont un échange était plein
+     */
+    private HdfsConnection(SocketChannel channel, Runnable onConsumed) throws IOException {
+        this.socket = channel.socket();
+        this.socket.setTcpNoDelay(true);
+        this.socket.setKeepAlive(true);
+        this.input = null;
+        this.channelInput = null;
+        this.output = new FrameOutputStream(new BufferedOutputStream(new ChannelOutputStream(), 1024));
+        this.onConsumed = onConsumed;
+    }
+
+    /**
+     * Ouvre une connexion vers un serveur HDFS et négocie la version.
+     */
+    public static HdfsConnection connect(String host, int port) throws IOException {
+        Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+        try {
+            HdfsConnection connection = new HdfsConnection(socket, null);
+            connection.output.writeInt(MAGIC);
+            connection.output.writeByte(VERSION);
+            connection.output.flush();
+            if (connection.input.readByte() != VERSION) {
+                throw new HdfsRuntimeException("Version du protocole refusée par " + host + ":" + port);
+            }
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    connection.readLoop(null, null);
+                }
+            }, "hdfs-connection-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+
+            return connection;
+        } catch (IOException | HdfsRuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sert une connexion entrante jusqu'à sa fermeture, côté serveur. Les
+     * données sont lues directement sur le canal de la socket s'il existe.
+     *
+     * @param socket   Socket acceptée
+     * @param executor Exécuteur des requêtes reçues
+     * @param handler  Traitement des requêtes
+     * @throws IOException Si le client ne parle pas le protocole binaire
+     */
+    public static void serve(Socket socket, ExecutorService executor, Handler handler) throws IOException {
+        serve(socket, null, executor, handler);
+    }
+
+    /**
+     * Sert une connexion entrante jusqu'à sa fermeture, côté serveur.
+     *
+     * @param socket   Socket acceptée
+     * @param input    Flux entrant de la socket, éventuellement déjà inspecté,
+     *                 null pour lire directement sur son canal
+     * @param executor Exécuteur des requêtes reçues
+     * @param handler  Traitement des requêtes
+     * @throws IOException Si le client ne parle pas le protocole binaire
+     */
+    public static void serve(Socket socket, InputStream input, ExecutorService executor, Handler handler)
+            throws IOException {
+        HdfsConnection connection = new HdfsConnection(socket, input);
+        int magic = connection.input.readInt();
+        byte version = connection.input.readByte();
+        if (magic != MAGIC || version != VERSION) {
+            connection.output.writeByte(0);
+            connection.output.flush();
+            connection.close();
+            throw new IOException("Poignée de main invalide (version " + version + ")");
+        }
+        connection.output.writeByte(VERSION);
+        connection.output.flush();
+        connection.readLoop(executor, handler);
+    }
+
+    /**
+     * Accepte une connexion entrante lue par une boucle d'événements, dont la
+     * poignée de main a déjà été lue.
+     *
+     * @param channel    Canal non bloquant de la socket acceptée
+     * @param magic      Nombre magique reçu
+     * @param version    Version demandée par le client
+     * @param onConsumed Appelé à chaque trame lue par un échange
+     * @throws IOException Si le client ne parle pas le protocole binaire
+     */
+    static HdfsConnection accept(SocketChannel channel, int magic, byte version, Runnable onConsumed)
+            throws IOException {
+        HdfsConnection connection = new HdfsConnection(channel, onConsumed);
+        if (magic != MAGIC || version != VERSION) {
+            connection.output.writeByte(0);
+            connection.output.flush();
+            connection.close();
+            throw new IOException("Poignée de main invalide (version " + version + ")");
+        }
+        connection.output.writeByte(VERSION);
+        connection.output.flush();
+        return connection;
+    }
+
+    /**
+     * Indique si le flux commence par l'en-tête de la sérialisation Java, c'est à
+     * dire s'il provient d'un client antérieur au protocole binaire. Le flux n'est
+     * pas consommé.
+     */
+    public static boolean isLegacyStream(BufferedInputStream input) throws IOException {
+        input.mark(2);
+        int first = input.read();
+        int second = input.read();
+        input.reset();
+        return first == 0xAC && second == 0xED;
+    }
+
+    /**
+     * Distribue les trames reçues aux échanges jusqu'à la fermeture de la
+     * connexion. Côté serveur, une requête d'identifiant inconnu ouvre un échange
+     * traité par l'exécuteur ; les autres trames d'identifiant inconnu sont des
+     * restes d'échanges terminés et sont ignorées.
+     *
+     * Les trames DATA destinées à un échange qui reçoit dans un fichier y sont
+     * écrites par ce thread ; une erreur d'écriture ferme la connexion.
+     */
+    private void readLoop(ExecutorService executor, Handler handler) {
+        try {
+            while (true) {
+                int id = this.input.readInt();
+                HdfsAction action = HdfsMessage.readAction(this.input);
+                int length = HdfsMessage.readLength(this.input);
+                HdfsExchange exchange = this.exchanges.get(id);
+
+                if (exchange != null && action == HdfsAction.DATA && exchange.getSink() != null) {
+                    exchange.deliver(this.receiveInto(exchange, length));
+                    continue;
+                }
+
+                HdfsMessage message = HdfsMessage.readPayload(action, length, this.input);
+
+                if (exchange == null && handler != null && action.isRequest()) {
+                    this.startRequest(id, message, executor, handler);
+                } else if (exchange != null) {
+                    exchange.deliver(message);
+                }
+            }
+        } catch (IOException e) {
+            // Connexion fermée par l'un des deux côtés
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Transmet une trame lue par une boucle d'événements, sans bloquer : une
+     * requête d'identifiant inconnu ouvre un échange traité par l'exécuteur, les
+     * autres trames sont déposées dans la file de leur échange. Les trames DATA
+     * sont toujours reçues en mémoire ; une trame ignorée rend son buffer à sa
+     * réserve (voir {@link HdfsMessage#release}).
+     *
+     * @return false si la file de l'échange est pleine : la trame devra être
+     *         transmise à nouveau après l'appel de onConsumed
+     */
+    boolean dispatch(int id, HdfsMessage message, ExecutorService executor, Handler handler) {
+        HdfsExchange exchange = this.exchanges.get(id);
+        if (exchange == null && message.getAction().isRequest()) {
+            this.startRequest(id, message, executor, handler);
+            return true;
+        } else if (exchange == null) {
+            message.release();
+            return true;
+        }
+        return exchange.tryDeliver(message);
+    }
+
+    /**
+     * Ouvre l'échange d'une requête reçue et confie son traitement à
+     * l'exécuteur.
+     */
+    private void startRequest(int id, HdfsMessage message, ExecutorService executor, Handler handler) {
+        HdfsExchange request = new HdfsExchange(this, id);
+        if (this.input != null) {
+            try {
+                FileChannel sink = handler.openSink(message);
+                if (sink != null) {
+                    request.receiveInto(sink, 0);
+                }
+            } catch (IOException e) {
+                System.err.println("Requête " + message.getAction() + " : fichier inaccessible, " + e.getMessage());
+            }
+            message.rewind();
+        }
+        this.exchanges.put(id, request);
+        executor.submit(new Runnable() {
+            public void run() {
+                try (request) {
+                    handler.handle(request, message);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Requête " + message.getAction() + " interrompue : " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Signale qu'un échange a lu une trame ou s'est terminé.
+     */
+    void consumed() {
+        if (this.onConsumed != null) {
+            this.onConsumed.run();
+        }
+    }
+
+    /**
+     * Écrit une trame DATA dans le fichier de l'échange.
+     *
+     * @return Le message transmis à l'échange à la place de la trame
+     */
+    private HdfsMessage receiveInto(HdfsExchange exchange, int length) throws IOException {
+        FileChannel file = exchange.getSink();
+        long position = exchange.advanceSink(length);
+
+        if (position < 0) {
+            HdfsMessage.readPayload(HdfsAction.DATA, length, this.input);
+            return HdfsMessage.error("Données au-delà de la taille annoncée");
+        } else if (this.channelInput != null) {
+            this.channelInput.transferTo(file, position, length);
+        } else {
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            this.input.readFully(bytes.array());
+            while (bytes.hasRemaining()) {
+                file.write(bytes, position + bytes.position());
+            }
+        }
+
+        return HdfsMessage.wrap(HdfsAction.DATA, ByteBuffer.allocate(12).putLong(position).putInt(length).flip());
+    }
+
+    /**
+     * Ouvre un nouvel échange sur la connexion.
+     */
+    public HdfsExchange openExchange() throws IOException {
+        if (this.closed) {
+            throw new IOException("Connexion fermée");
+        }
+        HdfsExchange exchange = new HdfsExchange(this, this.nextId.getAndIncrement());
+        this.exchanges.put(exchange.getId(), exchange);
+        return exchange;
+    }
+
+    /**
+     * Envoie un message d'un échange.
+     */
+    void send(int id, HdfsMessage message) throws IOException {
+        this.writeLock.lock();
+        try {
+            if (this.closed) {
+                throw new IOException("Connexion fermée");
+            }
+            this.output.writeInt(id);
+            message.writeTo(this.output);
+            this.output.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Envoie une trame DATA d'un échange, sans passer par un HdfsMessage.
+     */
+    void sendData(int id, byte[] bytes, int offset, int length) throws IOException {
+        this.writeLock.lock();
+        try {
+            if (this.closed) {
+                throw new IOException("Connexion fermée");
+            }
+            this.output.writeInt(id);
+            this.output.writeByte(HdfsAction.DATA.getCode());
+            this.output.writeInt(length);
+            this.output.write(bytes, offset, length);
+            this.output.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Envoie une partie d'un fichier en trames DATA. Si la socket a un canal, les
+     * données sont copiées par le noyau du fichier vers la socket.
+     *
+     * @throws EOFException Si le fichier est plus court que prévu
+     */
+    void sendFile(int id, FileChannel file, long position, long count) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        ByteBuffer buffer = channel == null ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+
+        this.writeLock.lock();
+        try {
+            if (this.closed) {
+                throw new IOException("Connexion fermée");
+            }
+            while (count > 0) {
+                int length = (int) Math.min(count, CHUNK_SIZE);
+                this.output.writeInt(id);
+                this.output.writeByte(HdfsAction.DATA.getCode());
+                this.output.writeInt(length);
+
+                if (channel != null) {
+                    this.output.flush();
+                    for (long done = 0; done < length;) {
+                        long n = file.transferTo(position + done, length - done, channel);
+                        if (n <= 0) {
+                            if (channel.isBlocking() || position + done >= file.size()) {
+                                throw new EOFException("Fichier tronqué");
+                            }
+                            this.awaitWritable();
+                        }
+                        done += n;
+                    }
+                } else {
+                    buffer.clear().limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (file.read(buffer, position + buffer.position()) < 0) {
+                            throw new EOFException("Fichier tronqué");
+                        }
+                    }
+                    this.output.write(buffer.array(), 0, length);
+                }
+
+                position += length;
+                count -= length;
+            }
+            this.output.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Envoie le contenu d'un buffer en trames DATA. Si la socket a un canal, un
+     * buffer direct est écrit sans copie dans la mémoire de la JVM.
+     */
+    void sendBuffer(int id, ByteBuffer data) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        byte[] buffer = channel == null ? new byte[CHUNK_SIZE] : null;
+
+        this.writeLock.lock();
+        try {
+            if (this.closed) {
+                throw new IOException("Connexion fermée");
+            }
+            while (data.hasRemaining()) {
+                int length = Math.min(data.remaining(), CHUNK_SIZE);
+                this.output.writeInt(id);
+                this.output.writeByte(HdfsAction.DATA.getCode());
+                this.output.writeInt(length);
+
+                if (channel != null) {
+                    this.output.flush();
+                    this.writeFully(data.slice().limit(length));
+                    data.position(data.position() + length);
+                } else {
+                    data.get(buffer, 0, length);
+                    this.output.write(buffer, 0, length);
+                }
+            }
+            this.output.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Écrit tout le buffer sur le canal de la socket, en attendant qu'il
+     * accepte à nouveau des données s'il est non bloquant.
+     */
+    private void writeFully(ByteBuffer data) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        while (data.hasRemaining()) {
+            if (channel.write(data) == 0) {
+                this.awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * Attend qu'un canal non bloquant accepte à nouveau des données. Appelé
+     * avec le verrou du flux sortant.
+     *
+     * @throws IOException Si la connexion est fermée pendant l'attente
+     */
+    private void awaitWritable() throws IOException {
+        if (this.writeSelector == null) {
+            this.writeSelector = Selector.open();
+            this.socket.getChannel().register(this.writeSelector, SelectionKey.OP_WRITE);
+        }
+        try {
+            while (this.writeSelector.select(1000) == 0) {
+                if (this.closed) {
+                    throw new IOException("Connexion fermée");
+                }
+            }
+            this.writeSelector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new IOException("Connexion fermée");
+        }
+    }
+
+    /**
+     * Retire un échange terminé.
+     */
+    void release(HdfsExchange exchange) {
+        this.exchanges.remove(exchange.getId());
+        this.lastUsed = System.currentTimeMillis();
+        this.consumed();
+    }
+
+    /**
+     * Indique si la connexion n'a servi à aucun échange depuis la date donnée.
+     */
+    boolean isIdleSince(long date) {
+        return this.exchanges.isEmpty() && this.lastUsed < date;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Adresse de l'hôte distant, telle que vue par ce côté de la connexion.
+     */
+    public String getRemoteHost() {
+        return this.socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Ferme la connexion et interrompt les échanges en cours.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.socket.close();
+            if (this.writeSelector != null) {
+                this.writeSelector.close();
+            }
+        } catch (IOException e) {
+        }
+        for (HdfsExchange exchange : new ArrayList<>(this.exchanges.values())) {
+            exchange.fail();
+        }
+        this.exchanges.clear();
+    }
+
+}
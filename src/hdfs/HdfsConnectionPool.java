@@ -0,0 +1,116 @@
+package hdfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ensemble de connexions persistantes, une par serveur distant.
+ *
+ * Les requêtes vers un même serveur partagent la même connexion, qui est
+ * fermée après {@link #KEEP_ALIVE} ms sans échange.
+ */
+public class HdfsConnectionPool {
+
+    /**
+     * Durée (en ms) pendant laquelle une connexion inutilisée reste ouverte.
+     */
+    final public static long KEEP_ALIVE = 60000;
+
+    /**
+     * Emplacement d'une connexion, verrouillé pendant son ouverture.
+     */
+    private static class Slot {
+        private final ReentrantLock lock = new ReentrantLock();
+        private HdfsConnection connection;
+    }
+
+    /**
+     * Connexions par adresse hôte:port.
+     */
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Crée un pool et lance la fermeture périodique des connexions inutilisées.
+     */
+    public HdfsConnectionPool() {
+        new Timer("hdfs-pool-reaper", true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                HdfsConnectionPool.this.closeIdle(System.currentTimeMillis() - KEEP_ALIVE);
+            }
+        }, KEEP_ALIVE / 2, KEEP_ALIVE / 2);
+    }
+
+    /**
+     * Renvoie la connexion vers un serveur, en l'ouvrant si nécessaire.
+     */
+    private HdfsConnection getConnection(String host, int port) throws IOException {
+        Slot slot = this.slots.computeIfAbsent(host + ":" + port, key -> new Slot());
+        slot.lock.lock();
+        try {
+            if (slot.connection == null || slot.connection.isClosed()) {
+                slot.connection = HdfsConnection.connect(host, port);
+            }
+            return slot.connection;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**
+     * Ouvre un échange vers un serveur.
+     */
+    public HdfsExchange open(String host, int port) throws IOException {
+        HdfsConnection connection = this.getConnection(host, port);
+        try {
+            return connection.openExchange();
+        } catch (IOException e) {
+            // La connexion a été fermée entre-temps, on en ouvre une nouvelle
+            connection.close();
+            return this.getConnection(host, port).openExchange();
+        }
+    }
+
+    /**
+     * Ouvre un échange vers un noeud.
+     */
+    public HdfsExchange open(HdfsNodeInfo node) throws IOException {
+        return this.open(node.getHost(), node.getPort());
+    }
+
+    /**
+     * Ferme la connexion vers un serveur, par exemple après sa déconnexion.
+     */
+    public void close(HdfsNodeInfo node) {
+        Slot slot = this.slots.remove(node.getHost() + ":" + node.getPort());
+        if (slot != null && slot.connection != null) {
+            slot.connection.close();
+        }
+    }
+
+    /**
+     * Ferme les connexions inutilisées depuis la date donnée.
+     */
+    private void closeIdle(long date) {
+        for (Entry<String, Slot> entry : this.slots.entrySet()) {
+            Slot slot = entry.getValue();
+            slot.lock.lock();
+            try {
+                if (slot.connection == null || slot.connection.isClosed() || slot.connection.isIdleSince(date)) {
+                    if (slot.connection != null) {
+                        slot.connection.close();
+                    }
+                    this.slots.remove(entry.getKey(), slot);
+                }
+            } finally {
+                slot.lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package hdfs;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec Deflate de java.util.zip, au niveau de compression le plus rapide.
+ */
+public class HdfsDeflateCodec implements HdfsCodec {
+
+    /**
+     * Compresseur de chaque thread, réutilisé d'un bloc à l'autre.
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    /**
+     * Décompresseur de chaque thread.
+     */
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(byte[] input, int offset, int length, byte[] output) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int size = deflater.deflate(output, 0, output.length);
+        return deflater.finished() ? size : -1;
+    }
+
+    @Override
+    public void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input, 0, length);
+        try {
+            int size = 0;
+            while (size < outputLength && !inflater.finished()) {
+                int n = inflater.inflate(output, size, outputLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != outputLength) {
+                throw new IOException("Bloc compressé tronqué");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bloc compressé invalide", e);
+        }
+    }
+
+}
@@ -0,0 +1,582 @@
+package hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Boucle d'événements qui sert les connexions binaires d'un serveur avec un
+ * petit nombre de threads, quel que soit le nombre de connexions ouvertes.
+ *
+ * Chaque thread d'entrée-sortie surveille une partie des connexions avec un
+ * {@link Selector}, découpe les octets reçus en trames et les transmet à leur
+ * {@link HdfsConnection}. Les requêtes, qui peuvent bloquer, sont traitées par
+ * des exécuteurs séparés, choisis selon leur action (voir
+ * {@link RequestExecutors}). Lorsqu'un échange ne lit pas ses trames assez vite, la
+ * lecture de sa connexion est suspendue jusqu'à ce qu'il ait rattrapé son
+ * retard, sans bloquer les autres connexions.
+ *
+ * Les trames DATA sont reçues dans les buffers d'une réserve de la boucle,
+ * rendus par les échanges une fois la trame lue : la réception d'un fichier
+ * n'alloue pas de mémoire par trame. Lorsque la réserve est épuisée, les trames
+ * sont copiées dans des tableaux alloués pour l'occasion, sans bloquer le
+ * thread.
+ *
+ * Les connexions des clients antérieurs au protocole binaire sont repassées en
+ * mode bloquant et confiées à un {@link LegacyHandler}.
+ */
+public class HdfsEventLoop implements Runnable, Closeable {
+
+    /**
+     * Nombre de threads d'entrée-sortie par défaut.
+     */
+    final public static int DEFAULT_IO_THREADS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Taille du buffer de lecture d'un thread, qui contient au moins une trame
+     * DATA complète.
+     */
+    final public static int READ_BUFFER_SIZE = HdfsConnection.CHUNK_SIZE + 9;
+
+    /**
+     * Nombre de buffers de la réserve des trames DATA reçues, qui contient au
+     * moins la file d'un échange.
+     */
+    final public static int FRAME_BUFFERS = 2 * HdfsExchange.QUEUE_SIZE;
+
+    /**
+     * Traitement des connexions des clients antérieurs au protocole binaire.
+     */
+    public interface LegacyHandler {
+        /**
+         * Traite une connexion, appelé par l'exécuteur des requêtes.
+         *
+         * @param socket Socket en mode bloquant
+         * @param input  Flux entrant de la socket, en-tête compris
+         */
+        void handle(Socket socket, BufferedInputStream input) throws IOException;
+    }
+
+    /**
+     * Exécuteurs auxquels les requêtes sont confiées, selon leur action : les
+     * requêtes courtes et urgentes ne doivent pas attendre derrière de longs
+     * transferts.
+     */
+    public interface RequestExecutors {
+        /**
+         * @return L'exécuteur des requêtes de cette action
+         */
+        ExecutorService forRequest(HdfsAction action);
+
+        /**
+         * @return L'exécuteur des connexions des clients antérieurs au protocole
+         *         binaire, occupé pendant toute la connexion
+         */
+        ExecutorService forLegacy();
+    }
+
+    private final ServerSocketChannel server;
+    private final RequestExecutors executors;
+    private final HdfsConnection.Handler handler;
+    private final LegacyHandler legacy;
+    private final IoThread[] threads;
+
+    /**
+     * Buffers des trames DATA reçues, partagés par les threads.
+     */
+    private final HdfsBufferPool frames = new HdfsBufferPool(HdfsConnection.CHUNK_SIZE, FRAME_BUFFERS);
+
+    /**
+     * Prochain thread auquel confier une connexion acceptée.
+     */
+    private int next = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param server    Serveur dont les connexions sont acceptées
+     * @param ioThreads Nombre de threads d'entrée-sortie
+     * @param executor  Exécuteur de toutes les requêtes reçues
+     * @param handler   Traitement des requêtes
+     * @param legacy    Traitement des clients antérieurs au protocole binaire,
+     *                  null pour les refuser
+     */
+    public HdfsEventLoop(ServerSocketChannel server, int ioThreads, ExecutorService executor,
+            HdfsConnection.Handler handler, LegacyHandler legacy) throws IOException {
+        this(server, ioThreads, new RequestExecutors() {
+            public ExecutorService forRequest(HdfsAction action) {
+                return executor;
+            }
+
+            public ExecutorService forLegacy() {
+                return executor;
+            }
+        }, handler, legacy);
+    }
+
+    /**
+     * @param executors Exécuteurs des requêtes reçues, selon leur action
+     */
+    public HdfsEventLoop(ServerSocketChannel server, int ioThreads, RequestExecutors executors,
+            HdfsConnection.Handler handler, LegacyHandler legacy) throws IOException {
+        this.server = server;
+        this.executors = executors;
+        this.handler = handler;
+        this.legacy = legacy;
+        this.threads = new IoThread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            this.threads[i] = new IoThread();
+        }
+        this.server.configureBlocking(false);
+        this.server.register(this.threads[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Sert les connexions jusqu'à l'appel de {@link #close}. Le premier thread
+     * d'entrée-sortie, qui accepte aussi les connexions, est le thread appelant.
+     */
+    @Override
+    public void run() {
+        for (int i = 1; i < this.threads.length; i++) {
+            Thread thread = new Thread(this.threads[i], "hdfs-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.threads[0].run();
+    }
+
+    /**
+     * Arrête la boucle et ferme les connexions qu'elle lit. Le serveur n'est pas
+     * fermé.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (IoThread thread : this.threads) {
+            thread.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return L'occupation de la réserve des trames DATA reçues, les demandes
+     *         refusées comptant comme des attentes
+     */
+    public HdfsBufferPool.Usage getUsage() {
+        return this.frames.getUsage();
+    }
+
+    /**
+     * Accepte les connexions en attente et les répartit entre les threads.
+     */
+    private void accept() {
+        while (true) {
+            try {
+                SocketChannel channel = this.server.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                IoThread thread = this.threads[this.next++ % this.threads.length];
+                thread.execute(new Runnable() {
+                    public void run() {
+                        thread.register(channel);
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Une connexion en erreur a été ignorée.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Thread d'entrée-sortie, qui lit les connexions qui lui ont été confiées.
+     */
+    private class IoThread implements Runnable {
+
+        private final Selector selector;
+
+        /**
+         * Tâches à exécuter par ce thread, qui seul modifie ses connexions.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Buffer de lecture partagé par les connexions du thread.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private IoThread() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Confie une tâche au thread, exécutée après sa prochaine sélection.
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Session session = new Session(this, channel);
+                session.key = channel.register(this.selector, SelectionKey.OP_READ, session);
+            } catch (ClosedChannelException e) {
+                // Connexion fermée par le client avant d'être lue
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!HdfsEventLoop.this.closed) {
+                try {
+                    this.selector.select();
+                } catch (IOException e) {
+                    System.err.println("Boucle d'événements : " + e.getMessage());
+                    continue;
+                }
+
+                // Les clés annulées ont été retirées par la sélection
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        HdfsEventLoop.this.accept();
+                    } else if (key.isReadable()) {
+                        ((Session) key.attachment()).read();
+                    }
+                }
+            }
+
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Session) key.attachment()).close();
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * État d'une connexion, modifié uniquement par son thread d'entrée-sortie.
+     */
+    private class Session {
+
+        private final IoThread thread;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        /**
+         * Connexion, null tant que la poignée de main n'a pas été lue.
+         */
+        private HdfsConnection connection = null;
+
+        /**
+         * Octets reçus qui ne forment pas encore une trame complète, en mode
+         * écriture, null s'il n'y en a pas. Le buffer est assez grand pour la
+         * trame en cours.
+         */
+        private ByteBuffer pending = null;
+
+        /**
+         * Trame DATA en cours de réception, lue directement dans un buffer de la
+         * réserve, en mode écriture, null s'il n'y en a pas.
+         */
+        private int frameId;
+        private ByteBuffer frame = null;
+
+        /**
+         * Trame en attente d'une place dans la file de son échange.
+         */
+        private int stalledId;
+        private volatile HdfsMessage stalled = null;
+
+        /**
+         * Indique qu'une reprise de la lecture a été demandée au thread.
+         */
+        private final AtomicBoolean resumeScheduled = new AtomicBoolean(false);
+
+        /**
+         * Indique que la connexion n'est plus lue par la boucle.
+         */
+        private boolean detached = false;
+
+        private Session(IoThread thread, SocketChannel channel) {
+            this.thread = thread;
+            this.channel = channel;
+        }
+
+        /**
+         * Lit les octets disponibles et traite les trames complètes.
+         */
+        private void read() {
+            ByteBuffer buffer;
+            if (this.frame != null) {
+                buffer = this.frame;
+            } else {
+                buffer = this.pending != null ? this.pending : this.thread.buffer.clear();
+            }
+            try {
+                if (this.channel.read(buffer) < 0) {
+                    this.close();
+                    return;
+                }
+            } catch (IOException e) {
+                // Connexion fermée par le client
+                this.close();
+                return;
+            }
+
+            if (buffer != this.frame) {
+                this.consume(buffer.flip());
+            } else if (!this.frame.hasRemaining()) {
+                HdfsMessage message = HdfsMessage.wrap(HdfsAction.DATA, this.frame.flip(),
+                        HdfsEventLoop.this.frames);
+                this.frame = null;
+                this.dispatch(this.frameId, message);
+            }
+        }
+
+        /**
+         * Traite les trames complètes du buffer et conserve le reste.
+         *
+         * @param buffer Octets reçus, en mode lecture
+         */
+        private void consume(ByteBuffer buffer) {
+            try {
+                this.process(buffer);
+                if (this.detached) {
+                    return;
+                }
+
+                if (!buffer.hasRemaining()) {
+                    this.pending = null;
+                } else {
+                    int needed = this.getFrameSize(buffer);
+                    if (buffer == this.pending && buffer.capacity() >= needed) {
+                        buffer.compact();
+                    } else {
+                        this.pending = ByteBuffer.allocate(Math.max(needed, buffer.remaining())).put(buffer);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Données invalides, connexion annulée.");
+                this.close();
+            }
+        }
+
+        /**
+         * @return La taille de la trame qui commence au début du buffer, ou de
+         *         son en-tête s'il n'est pas encore complet
+         * @throws IOException Si la longueur de la trame est invalide
+         */
+        private int getFrameSize(ByteBuffer buffer) throws IOException {
+            if (this.connection == null) {
+                return 5;
+            }
+            if (buffer.remaining() < 9) {
+                return 9;
+            }
+            return 9 + HdfsMessage.checkLength(buffer.getInt(buffer.position() + 5));
+        }
+
+        /**
+         * Lit la poignée de main puis les trames complètes du buffer, jusqu'à ce
+         * qu'une trame ne puisse pas être transmise.
+         */
+        private void process(ByteBuffer buffer) throws IOException {
+            while (this.stalled == null) {
+                if (this.connection == null) {
+                    if (buffer.remaining() < 2) {
+                        return;
+                    }
+                    if ((buffer.get(buffer.position()) & 0xFF) == 0xAC
+                            && (buffer.get(buffer.position() + 1) & 0xFF) == 0xED) {
+                        if (HdfsEventLoop.this.legacy == null) {
+                            throw new IOException("Client antérieur au protocole binaire refusé");
+                        }
+                        this.handOff(buffer);
+                        return;
+                    }
+                    if (buffer.remaining() < 5) {
+                        return;
+                    }
+                    this.connection = HdfsConnection.accept(this.channel, buffer.getInt(), buffer.get(),
+                            this::scheduleResume);
+                    continue;
+                }
+
+                if (buffer.remaining() < 9) {
+                    return;
+                }
+                int start = buffer.position();
+                int id = buffer.getInt(start);
+                HdfsAction action = HdfsMessage.toAction(buffer.get(start + 4));
+                int length = HdfsMessage.checkLength(buffer.getInt(start + 5));
+                ByteBuffer frame = null;
+                if (action == HdfsAction.DATA && length <= HdfsEventLoop.this.frames.getBufferSize()) {
+                    frame = HdfsEventLoop.this.frames.tryAcquire();
+                }
+                if (buffer.remaining() < 9 + length && frame == null) {
+                    return;
+                }
+
+                buffer.position(start + 9);
+                HdfsMessage message;
+                if (frame == null) {
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    message = HdfsMessage.wrap(action, ByteBuffer.wrap(payload));
+                } else if (buffer.remaining() < length) {
+                    // Le reste de la trame sera lu directement dans le buffer
+                    this.frameId = id;
+                    this.frame = frame.limit(length).put(buffer);
+                    return;
+                } else {
+                    int end = buffer.limit();
+                    frame.put(buffer.limit(buffer.position() + length)).flip();
+                    buffer.limit(end);
+                    message = HdfsMessage.wrap(action, frame, HdfsEventLoop.this.frames);
+                }
+                this.dispatch(id, message);
+            }
+        }
+
+        /**
+         * Transmet une trame à la connexion, ou suspend la lecture jusqu'à ce
+         * que la file de son échange ait de la place.
+         */
+        private void dispatch(int id, HdfsMessage message) {
+            if (!this.connection.dispatch(id, message, HdfsEventLoop.this.executors.forRequest(message.getAction()),
+                    HdfsEventLoop.this.handler)) {
+                // La lecture reprendra quand l'échange aura lu une trame
+                this.stalledId = id;
+                this.stalled = message;
+                this.key.interestOps(0);
+                this.scheduleResume();
+            }
+        }
+
+        /**
+         * Demande au thread de tenter à nouveau de transmettre la trame en
+         * attente. Appelé par les échanges, depuis n'importe quel thread.
+         */
+        private void scheduleResume() {
+            if (this.stalled != null && this.resumeScheduled.compareAndSet(false, true)) {
+                this.thread.execute(new Runnable() {
+                    public void run() {
+                        Session.this.resume();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Transmet la trame en attente, puis les trames déjà reçues, et reprend
+         * la lecture si elles ont toutes été transmises.
+         */
+        private void resume() {
+            this.resumeScheduled.set(false);
+            if (this.stalled == null || !this.key.isValid()) {
+                return;
+            }
+            if (!this.connection.dispatch(this.stalledId, this.stalled,
+                    HdfsEventLoop.this.executors.forRequest(this.stalled.getAction()), HdfsEventLoop.this.handler)) {
+                return;
+            }
+            this.stalled = null;
+            if (this.pending != null) {
+                this.consume(this.pending.flip());
+            }
+            if (this.stalled == null && this.key.isValid()) {
+                this.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Confie la connexion d'un client antérieur au protocole binaire à
+         * l'exécuteur, une fois le canal retiré du sélecteur et repassé en mode
+         * bloquant.
+         */
+        private void handOff(ByteBuffer buffer) {
+            byte[] header = new byte[buffer.remaining()];
+            buffer.get(header);
+            this.detached = true;
+            this.pending = null;
+            this.key.cancel();
+            this.thread.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Session.this.channel.configureBlocking(true);
+                    } catch (IOException e) {
+                        Session.this.close();
+                        return;
+                    }
+                    HdfsEventLoop.this.executors.forLegacy().submit(new Runnable() {
+                        public void run() {
+                            Socket socket = Session.this.channel.socket();
+                            try {
+                                BufferedInputStream input = new BufferedInputStream(new SequenceInputStream(
+                                        new ByteArrayInputStream(header), socket.getInputStream()));
+                                HdfsEventLoop.this.legacy.handle(socket, input);
+                            } catch (IOException e) {
+                                System.err.println("Données invalides, connexion annulée.");
+                                Session.this.close();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void close() {
+            this.detached = true;
+            this.pending = null;
+            if (this.frame != null) {
+                HdfsEventLoop.this.frames.release(this.frame);
+                this.frame = null;
+            }
+            if (this.stalled != null) {
+                this.stalled.release();
+                this.stalled = null;
+            }
+            if (this.connection != null) {
+                this.connection.close();
+            } else {
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+}
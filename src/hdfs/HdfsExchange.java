@@ -0,0 +1,401 @@
+package hdfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Une requête et ses réponses, identifiées par un numéro sur une
+ * {@link HdfsConnection} partagée.
+ *
+ * Chaque échange doit être lu par son propre thread : la file de réception est
+ * bornée, et un échange qui n'est pas lu finit par bloquer la connexion.
+ */
+public class HdfsExchange implements Closeable {
+
+    /**
+     * Nombre de trames en attente de lecture avant de bloquer la connexion.
+     */
+    final public static int QUEUE_SIZE = 64;
+
+    /**
+     * Marqueur de fermeture de la connexion.
+     */
+    private static final HdfsMessage CLOSED = HdfsMessage.error("Connexion fermée");
+
+    /**
+     * Connexion portant l'échange.
+     */
+    private final HdfsConnection connection;
+
+    /**
+     * Identifiant de l'échange sur la connexion.
+     */
+    private final int id;
+
+    /**
+     * Trames reçues et non lues.
+     */
+    private final BlockingQueue<HdfsMessage> inbox = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /**
+     * Délai maximal d'attente d'une trame, en ms, 0 pour attendre indéfiniment.
+     */
+    private int timeout = 0;
+
+    /**
+     * Fichier dans lequel sont écrites les trames DATA reçues, null pour les
+     * recevoir en mémoire.
+     */
+    private volatile FileChannel sink;
+
+    /**
+     * Position dans le fichier de la prochaine trame DATA reçue.
+     */
+    private long sinkPosition;
+
+    /**
+     * Position dans le fichier que les trames DATA reçues ne doivent pas
+     * dépasser.
+     */
+    private long sinkLimit;
+
+    private volatile boolean closed = false;
+
+    HdfsExchange(HdfsConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    /**
+     * Dépose une trame reçue, en bloquant le thread de lecture si la file est
+     * pleine.
+     */
+    void deliver(HdfsMessage message) {
+        try {
+            while (!this.closed) {
+                if (this.inbox.offer(message, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Dépose une trame reçue sans bloquer.
+     *
+     * @return false si la file est pleine, la trame n'ayant pas été déposée
+     */
+    boolean tryDeliver(HdfsMessage message) {
+        if (this.closed) {
+            message.release();
+            return true;
+        }
+        if (!this.inbox.offer(message)) {
+            return false;
+        }
+        if (this.closed) {
+            // Échange fermé pendant le dépôt
+            this.discard();
+        }
+        return true;
+    }
+
+    /**
+     * Interrompt l'échange suite à la fermeture de la connexion.
+     */
+    void fail() {
+        this.discard();
+        this.inbox.offer(CLOSED);
+    }
+
+    /**
+     * Vide la file des trames reçues, en rendant leurs buffers à leur réserve.
+     */
+    private void discard() {
+        HdfsMessage message;
+        while ((message = this.inbox.poll()) != null) {
+            message.release();
+        }
+    }
+
+    /**
+     * Envoie un message.
+     */
+    public void send(HdfsMessage message) throws IOException {
+        this.connection.send(this.id, message);
+    }
+
+    /**
+     * Envoie un message d'erreur.
+     */
+    public void sendError(String message) throws IOException {
+        this.send(HdfsMessage.error(message));
+    }
+
+    /**
+     * Attend le prochain message.
+     *
+     * @throws SocketTimeoutException Si le délai d'attente est dépassé
+     * @throws IOException            Si la connexion a été fermée
+     */
+    public HdfsMessage receive() throws IOException {
+        HdfsMessage message;
+        try {
+            if (this.timeout > 0) {
+                message = this.inbox.poll(this.timeout, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    throw new SocketTimeoutException("Pas de réponse après " + this.timeout + " ms");
+                }
+            } else {
+                message = this.inbox.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        if (message == CLOSED) {
+            this.inbox.offer(CLOSED);
+            throw new IOException("Connexion fermée");
+        }
+        this.connection.consumed();
+        return message;
+    }
+
+    /**
+     * Attend le prochain message, en vérifiant son action.
+     *
+     * @throws HdfsRuntimeException Si une erreur est reçue à la place
+     */
+    public HdfsMessage receive(HdfsAction expected) throws IOException {
+        return this.receive().expect(expected);
+    }
+
+    /**
+     * Flux sortant découpé en trames DATA, fermé par une trame END. Fermer ce
+     * flux ne ferme pas l'échange.
+     */
+    public OutputStream dataOutputStream() {
+        return new OutputStream() {
+            private final byte[] buffer = new byte[HdfsConnection.CHUNK_SIZE];
+            private int count = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (this.count == this.buffer.length) {
+                    this.flush();
+                }
+                this.buffer[this.count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (this.count == this.buffer.length) {
+                        this.flush();
+                    }
+                    int n = Math.min(len, this.buffer.length - this.count);
+                    System.arraycopy(b, off, this.buffer, this.count, n);
+                    this.count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (this.count > 0) {
+                    HdfsExchange.this.connection.sendData(HdfsExchange.this.id, this.buffer, 0, this.count);
+                    this.count = 0;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!this.closed) {
+                    this.closed = true;
+                    this.flush();
+                    HdfsExchange.this.send(new HdfsMessage(HdfsAction.END));
+                }
+            }
+        };
+    }
+
+    /**
+     * Flux entrant qui lit des trames DATA jusqu'à la trame END.
+     *
+     * Une trame ERROR reçue au milieu du flux est levée comme IOException. Un flux
+     * qui n'a pas été lu jusqu'au bout rend l'échange inutilisable ; le fermer
+     * rend à sa réserve le buffer de la trame en cours de lecture.
+     */
+    public InputStream dataInputStream() {
+        return new InputStream() {
+            private HdfsMessage message = null;
+            private ByteBuffer chunk = ByteBuffer.allocate(0);
+            private boolean ended = false;
+
+            /**
+             * Charge la prochaine trame si nécessaire.
+             *
+             * @return false à la fin du flux
+             */
+            private boolean fill() throws IOException {
+                while (!this.ended && !this.chunk.hasRemaining()) {
+                    this.releaseChunk();
+                    HdfsMessage message = HdfsExchange.this.receive();
+                    if (message.getAction() == HdfsAction.DATA) {
+                        this.message = message;
+                        this.chunk = message.getPayload();
+                    } else if (message.getAction() == HdfsAction.END) {
+                        this.ended = true;
+                    } else if (message.getAction() == HdfsAction.ERROR) {
+                        this.ended = true;
+                        throw new IOException(message.getString());
+                    } else {
+                        throw new IOException("Trame inattendue dans un flux de données : " + message.getAction());
+                    }
+                }
+                return this.chunk.hasRemaining();
+            }
+
+            @Override
+            public int read() throws IOException {
+                return this.fill() ? this.chunk.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!this.fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, this.chunk.remaining());
+                this.chunk.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return this.chunk.remaining();
+            }
+
+            @Override
+            public void close() {
+                this.releaseChunk();
+            }
+
+            /**
+             * Rend le buffer de la trame lue à sa réserve.
+             */
+            private void releaseChunk() {
+                if (this.message != null) {
+                    this.message.release();
+                    this.message = null;
+                    this.chunk = ByteBuffer.allocate(0);
+                }
+            }
+        };
+    }
+
+    /**
+     * Envoie une partie d'un fichier en trames DATA, copiées par le noyau quand
+     * c'est possible. La trame END n'est pas envoyée.
+     */
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        this.connection.sendFile(this.id, file, position, count);
+    }
+
+    /**
+     * Envoie le contenu d'un buffer en trames DATA, sans copie pour un buffer
+     * direct quand c'est possible. La trame END n'est pas envoyée.
+     */
+    public void sendBuffer(ByteBuffer data) throws IOException {
+        this.connection.sendBuffer(this.id, data);
+    }
+
+    /**
+     * Écrit directement les trames DATA reçues ensuite dans un fichier, à partir
+     * de la position donnée. Pour chaque trame, {@link #receive()} renvoie
+     * seulement un message DATA contenant sa position (long) et sa longueur
+     * (int).
+     *
+     * Côté client, doit être appelé avant l'envoi de la requête.
+     */
+    public void receiveInto(FileChannel file, long position) {
+        this.receiveInto(file, position, Long.MAX_VALUE - position);
+    }
+
+    /**
+     * Comme {@link #receiveInto(FileChannel, long)}, sans écrire au-delà de
+     * length octets : une trame qui dépasserait la plage n'est pas écrite, et
+     * {@link #receive()} renvoie une trame ERROR à sa place.
+     */
+    public void receiveInto(FileChannel file, long position, long length) {
+        this.sinkPosition = position;
+        this.sinkLimit = position + length;
+        this.sink = file;
+    }
+
+    /**
+     * @return Le fichier recevant les trames DATA, null s'il n'y en a pas
+     */
+    public FileChannel getSink() {
+        return this.sink;
+    }
+
+    /**
+     * Réserve la place d'une trame DATA dans le fichier.
+     *
+     * @return La position de la trame, -1 si elle dépasse la plage du fichier
+     */
+    long advanceSink(int length) {
+        if (length > this.sinkLimit - this.sinkPosition) {
+            return -1;
+        }
+        long position = this.sinkPosition;
+        this.sinkPosition += length;
+        return position;
+    }
+
+    /**
+     * Délai maximal d'attente d'une trame, en ms.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adresse de l'hôte distant, telle que vue par ce côté de la connexion.
+     */
+    public String getRemoteHost() {
+        return this.connection.getRemoteHost();
+    }
+
+    /**
+     * Termine l'échange. Les trames reçues ensuite sont ignorées.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.connection.release(this);
+        this.discard();
+    }
+
+}
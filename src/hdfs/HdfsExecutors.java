@@ -0,0 +1,197 @@
+package hdfs;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exécuteurs des tâches des démons (NameServer, noeuds et workers), créés selon
+ * un même mode choisi au lancement par la propriété système {@link #PROPERTY} :
+ *
+ * - platform (par défaut) : threads classiques, réutilisés par un pool ;
+ * - virtual : un thread virtuel par tâche, qui ne coûte presque rien tant qu'il
+ * est bloqué sur une socket. Nécessite Java 21 ; sur une JVM plus ancienne, les
+ * threads classiques sont utilisés.
+ *
+ * Les threads virtuels restent attachés à leur thread porteur lorsqu'ils
+ * bloquent dans un bloc synchronized ou dans wait() : les verrous tenus pendant
+ * des entrées-sorties ou des attentes sont donc des
+ * {@link java.util.concurrent.locks.ReentrantLock}, et les moniteurs ne sont
+ * tenus que le temps de calculs en mémoire (le journal de l'espace de noms
+ * n'est par exemple écrit qu'une fois ses verrous relâchés).
+ */
+public final class HdfsExecutors {
+
+    /**
+     * Propriété système qui choisit le mode des exécuteurs.
+     */
+    final public static String PROPERTY = "hidoop.threads";
+
+    /**
+     * Durée (en s) après laquelle un thread classique inutilisé s'arrête.
+     */
+    final public static int KEEP_ALIVE = 60;
+
+    /**
+     * Type des threads qui exécutent les tâches.
+     */
+    public enum Mode {
+        PLATFORM, VIRTUAL;
+
+        /**
+         * @return Le mode correspondant au nom donné, null s'il est inconnu
+         */
+        public static Mode fromName(String name) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fabrique de threads virtuels, null si la JVM n'en propose pas.
+     */
+    private static final Method VIRTUAL_BUILDER = findVirtualBuilder();
+
+    /**
+     * Mode choisi au lancement.
+     */
+    private static final Mode MODE = readMode();
+
+    private HdfsExecutors() {
+    }
+
+    /**
+     * @return Thread.ofVirtual(), null avant Java 21
+     */
+    private static Method findVirtualBuilder() {
+        try {
+            Method builder = Thread.class.getMethod("ofVirtual");
+            // Les threads virtuels sont en préversion avant Java 21
+            builder.invoke(null);
+            return builder;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true si la JVM propose les threads virtuels
+     */
+    public static boolean isVirtualAvailable() {
+        return VIRTUAL_BUILDER != null;
+    }
+
+    /**
+     * @return Le mode demandé par la propriété système au lancement, PLATFORM si
+     *         elle est absente ou si les threads virtuels sont indisponibles
+     */
+    public static Mode getMode() {
+        return MODE;
+    }
+
+    private static Mode readMode() {
+        String name = System.getProperty(PROPERTY);
+        if (name == null) {
+            return Mode.PLATFORM;
+        }
+        Mode mode = Mode.fromName(name);
+        if (mode == null) {
+            System.err.println("Mode d'exécution inconnu : " + name + ", threads classiques utilisés.");
+            return Mode.PLATFORM;
+        }
+        if (mode == Mode.VIRTUAL && !isVirtualAvailable()) {
+            System.err.println("Threads virtuels indisponibles (Java 21 requis), threads classiques utilisés.");
+            return Mode.PLATFORM;
+        }
+        return mode;
+    }
+
+    /**
+     * Crée un exécuteur sans limite de tâches simultanées, pour des tâches qui
+     * passent l'essentiel de leur temps à attendre.
+     *
+     * @param name Préfixe du nom des threads
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        return newTaskExecutor(name, getMode());
+    }
+
+    /**
+     * @param mode Type des threads
+     */
+    public static ExecutorService newTaskExecutor(String name, Mode mode) {
+        if (mode == Mode.VIRTUAL && isVirtualAvailable()) {
+            return newVirtualExecutor(name);
+        }
+        return Executors.newCachedThreadPool(newPlatformFactory(name));
+    }
+
+    /**
+     * Crée un exécuteur qui traite au plus threads tâches en même temps avec des
+     * threads classiques, les suivantes attendant leur tour. Avec des threads
+     * virtuels, les tâches ne sont pas limitées : un thread bloqué ne coûte que
+     * sa pile, et la mémoire des transferts est déjà bornée par ailleurs.
+     *
+     * @param name    Préfixe du nom des threads
+     * @param threads Nombre maximal de threads classiques
+     */
+    public static ExecutorService newWorkerPool(String name, int threads) {
+        return newWorkerPool(name, threads, getMode());
+    }
+
+    /**
+     * @param mode Type des threads
+     */
+    public static ExecutorService newWorkerPool(String name, int threads, Mode mode) {
+        if (mode == Mode.VIRTUAL && isVirtualAvailable()) {
+            return newVirtualExecutor(name);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), newPlatformFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Fabrique de threads classiques numérotés.
+     */
+    private static ThreadFactory newPlatformFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Exécuteur qui crée un thread virtuel par tâche, construit par réflexion
+     * pour que le code compile et tourne aussi avant Java 21.
+     */
+    private static ExecutorService newVirtualExecutor(String name) {
+        try {
+            Object builder = VIRTUAL_BUILDER.invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (InvocationTargetException e) {
+            throw new HdfsRuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new HdfsRuntimeException(e);
+        }
+    }
+
+}
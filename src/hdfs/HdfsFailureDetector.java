@@ -0,0 +1,238 @@
+package hdfs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Détecteur de pannes à accumulation (phi accrual) alimenté par les battements
+ * de coeur que les noeuds envoient au NameServer.
+ *
+ * Pour chaque noeud, on mémorise les intervalles entre les derniers battements.
+ * La valeur phi = -log10(P(le prochain battement arrive encore plus tard))
+ * mesure la confiance dans la panne du noeud : elle croît continûment avec le
+ * silence, rapidement pour un noeud régulier, plus lentement pour un noeud dont
+ * les battements sont irréguliers. Un noeud est suspect au-delà de
+ * {@link #SUSPECT_PHI} et mort au-delà de {@link #DEAD_PHI}, ou dans tous les
+ * cas après un silence égal au délai de détection.
+ *
+ * Toutes les vérifications sont faites par un unique thread.
+ */
+public class HdfsFailureDetector {
+
+    /**
+     * Temps (en ms) entre deux battements de coeur d'un noeud.
+     */
+    final public static int HEARTBEAT_INTERVAL = 1000;
+
+    /**
+     * Délai de détection par défaut, en ms.
+     */
+    final public static int DEFAULT_DETECTION_TIME = 10000;
+
+    /**
+     * Seuil de phi au-delà duquel un noeud est suspect.
+     */
+    final public static double SUSPECT_PHI = 1;
+
+    /**
+     * Seuil de phi au-delà duquel un noeud est considéré comme mort.
+     */
+    final public static double DEAD_PHI = 8;
+
+    /**
+     * Pause tolérée (en ms) en plus de l'intervalle moyen, par exemple pour un
+     * ramasse-miettes.
+     */
+    final public static int ACCEPTABLE_PAUSE = 3000;
+
+    /**
+     * Écart-type minimal des intervalles, en ms, pour qu'un noeud très régulier
+     * ne soit pas déclaré mort au moindre retard.
+     */
+    final public static double MIN_STD_DEVIATION = 200;
+
+    /**
+     * Nombre d'intervalles mémorisés par noeud.
+     */
+    final public static int WINDOW_SIZE = 100;
+
+    /**
+     * Temps (en ms) entre deux vérifications.
+     */
+    final public static int CHECK_INTERVAL = 250;
+
+    /**
+     * Historique des battements d'un noeud.
+     */
+    private static class History {
+        private final Deque<Long> intervals = new ArrayDeque<>();
+        private long sum = 0;
+        private long squares = 0;
+        private long last;
+        private boolean suspect = false;
+        private HdfsNodeStats stats = HdfsNodeStats.UNKNOWN;
+
+        private History(long now) {
+            this.last = now;
+        }
+
+        private synchronized void heartbeat(long now, HdfsNodeStats stats) {
+            long interval = now - this.last;
+            this.last = now;
+            this.stats = stats;
+            this.intervals.addLast(interval);
+            this.sum += interval;
+            this.squares += interval * interval;
+            if (this.intervals.size() > WINDOW_SIZE) {
+                long removed = this.intervals.removeFirst();
+                this.sum -= removed;
+                this.squares -= removed * removed;
+            }
+        }
+
+        /**
+         * Calcule phi, en supposant les intervalles distribués selon une loi
+         * normale (approximation logistique de la fonction de répartition).
+         */
+        private synchronized double phi(long now) {
+            double mean = HEARTBEAT_INTERVAL;
+            double deviation = MIN_STD_DEVIATION;
+            int n = this.intervals.size();
+            if (n > 0) {
+                mean = (double) this.sum / n;
+                deviation = Math.max(MIN_STD_DEVIATION, Math.sqrt(Math.max(0, (double) this.squares / n - mean * mean)));
+            }
+            mean += ACCEPTABLE_PAUSE;
+
+            double y = (now - this.last - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (now - this.last > mean) {
+                return -Math.log10(e / (1 + e));
+            }
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+
+    /**
+     * Historique par noeud surveillé.
+     */
+    private final Map<HdfsNodeInfo, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Délai (en ms) au-delà duquel un noeud silencieux est mort, quel que soit
+     * phi.
+     */
+    private final long detectionTime;
+
+    /**
+     * Thread des vérifications.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hdfs-failure-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param detectionTime Délai maximal (en ms) de détection d'un noeud mort
+     */
+    public HdfsFailureDetector(long detectionTime) {
+        this.detectionTime = detectionTime;
+    }
+
+    /**
+     * Lance les vérifications périodiques.
+     *
+     * @param onDead Appelé, depuis le thread du détecteur, pour chaque noeud
+     *               déclaré mort. Le noeud n'est plus surveillé ensuite.
+     */
+    public void start(Consumer<HdfsNodeInfo> onDead) {
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HdfsFailureDetector.this.check(onDead);
+                } catch (RuntimeException e) {
+                    System.err.println("Détecteur de pannes : " + e.getMessage());
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Vérifie l'état de tous les noeuds surveillés.
+     */
+    private void check(Consumer<HdfsNodeInfo> onDead) {
+        long now = System.currentTimeMillis();
+        for (Entry<HdfsNodeInfo, History> entry : this.histories.entrySet()) {
+            HdfsNodeInfo node = entry.getKey();
+            History history = entry.getValue();
+            double phi = history.phi(now);
+
+            if (phi >= DEAD_PHI || now - history.last >= this.detectionTime) {
+                System.err.println("Noeud " + node + " déclaré mort (phi = " + String.format("%.1f", phi) + ")");
+                this.histories.remove(node, history);
+                onDead.accept(node);
+            } else if (phi >= SUSPECT_PHI && !history.suspect) {
+                System.err.println("Noeud " + node + " suspect (phi = " + String.format("%.1f", phi) + ")");
+                history.suspect = true;
+            } else if (phi < SUSPECT_PHI && history.suspect) {
+                System.out.println("Noeud " + node + " de nouveau actif");
+                history.suspect = false;
+            }
+        }
+    }
+
+    /**
+     * Commence la surveillance d'un noeud.
+     */
+    public void register(HdfsNodeInfo node) {
+        this.histories.put(node, new History(System.currentTimeMillis()));
+    }
+
+    /**
+     * Arrête la surveillance d'un noeud.
+     */
+    public void remove(HdfsNodeInfo node) {
+        this.histories.keySet().removeIf(n -> n.matches(node));
+    }
+
+    /**
+     * Enregistre un battement de coeur.
+     *
+     * @return false si le noeud n'est pas surveillé
+     */
+    public boolean heartbeat(HdfsNodeInfo node, HdfsNodeStats stats) {
+        History history = this.histories.get(node);
+        if (history == null) {
+            return false;
+        }
+        history.heartbeat(System.currentTimeMillis(), stats);
+        return true;
+    }
+
+    /**
+     * Indique si un noeud est suspect, c'est à dire s'il a manqué des battements
+     * sans être encore déclaré mort.
+     */
+    public boolean isSuspect(HdfsNodeInfo node) {
+        History history = this.histories.get(node);
+        return history != null && history.suspect;
+    }
+
+    /**
+     * @return La dernière charge transmise par un noeud
+     */
+    public HdfsNodeStats getStats(HdfsNodeInfo node) {
+        History history = this.histories.get(node);
+        return history == null ? HdfsNodeStats.UNKNOWN : history.stats;
+    }
+
+}
@@ -0,0 +1,172 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache en mémoire des fragments lus sur un noeud, pour que les lectures
+ * répétées des mêmes données (calculs itératifs, jobs relancés) ne repassent
+ * pas par le disque.
+ *
+ * Le contenu des fragments est gardé tel qu'il est stocké (éventuellement
+ * compressé) dans des buffers directs, hors du tas de la JVM, et envoyé
+ * directement depuis ceux-ci. Les fragments les moins récemment lus sont
+ * évincés lorsque la taille du cache dépasse sa capacité.
+ *
+ * Le noeud doit invalider un fragment dès que son fichier est réécrit ou
+ * supprimé.
+ */
+public class HdfsFragmentCache {
+
+    /**
+     * Capacité par défaut du cache, en octets.
+     */
+    final public static long DEFAULT_CAPACITY = 268435456;
+
+    /**
+     * Part maximale de la capacité occupée par un seul fragment : un fragment
+     * plus gros n'est pas gardé, pour ne pas vider le cache à chaque lecture.
+     */
+    final public static int MAX_ENTRY_RATIO = 8;
+
+    /**
+     * Capacité du cache en octets, 0 s'il est désactivé.
+     */
+    private final long capacity;
+
+    /**
+     * Contenu des fragments, du moins récemment lu au plus récemment lu.
+     */
+    private final LinkedHashMap<File, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Taille totale des fragments gardés.
+     */
+    private long size = 0;
+
+    /**
+     * Incrémenté à chaque invalidation : un fragment lu pendant une invalidation
+     * n'est pas gardé, son contenu pouvant être celui d'avant.
+     */
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity Capacité du cache en octets, 0 pour le désactiver
+     */
+    public HdfsFragmentCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Renvoie le contenu d'un fragment, lu depuis le cache ou depuis le disque.
+     *
+     * @param file    Fichier du fragment
+     * @param channel Fichier du fragment ouvert en lecture
+     * @return Le contenu, à ne pas modifier, ou null si le fragment ne peut pas
+     *         être gardé en cache : il doit alors être lu directement dans le
+     *         fichier
+     */
+    public ByteBuffer get(File file, FileChannel channel) throws IOException {
+        long generation;
+        synchronized (this) {
+            ByteBuffer cached = this.entries.get(file);
+            if (cached != null) {
+                this.hits++;
+                return cached.duplicate();
+            }
+            this.misses++;
+            generation = this.generation;
+        }
+
+        long length = channel.size();
+        if (length > this.capacity / MAX_ENTRY_RATIO || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        while (content.hasRemaining()) {
+            if (channel.read(content, content.position()) < 0) {
+                // Fichier tronqué pendant la lecture
+                return null;
+            }
+        }
+        content.flip();
+
+        synchronized (this) {
+            if (generation == this.generation && !this.entries.containsKey(file)) {
+                this.entries.put(file, content);
+                this.size += length;
+                this.evict();
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Retire les fragments les moins récemment lus jusqu'à revenir sous la
+     * capacité.
+     */
+    private void evict() {
+        Iterator<ByteBuffer> iterator = this.entries.values().iterator();
+        while (this.size > this.capacity && iterator.hasNext()) {
+            this.size -= iterator.next().capacity();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Retire un fragment réécrit ou supprimé.
+     */
+    public synchronized void invalidate(File file) {
+        this.generation++;
+        ByteBuffer removed = this.entries.remove(file);
+        if (removed != null) {
+            this.size -= removed.capacity();
+        }
+    }
+
+    /**
+     * Vide le cache.
+     */
+    public synchronized void clear() {
+        this.generation++;
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    public boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized String toString() {
+        long reads = this.hits + this.misses;
+        return this.entries.size() + " fragments, " + this.size / 1048576 + "/" + this.capacity / 1048576 + " Mo, "
+                + this.hits + " succès, " + this.misses + " échecs"
+                + (reads == 0 ? "" : " (" + 100 * this.hits / reads + " %)");
+    }
+
+}
@@ -0,0 +1,262 @@
+package hdfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lecture en flux d'un fichier HDFS, sans copie locale.
+ *
+ * Le fichier est lu par morceaux de {@link #CHUNK_SIZE} octets, qui ne
+ * chevauchent jamais deux fragments. Pendant que l'appelant consomme un
+ * morceau, les {@link #READ_AHEAD} suivants sont téléchargés en arrière-plan :
+ * la mémoire utilisée est bornée quelle que soit la taille du fichier. Les
+ * fragments compressés sont décompressés par les noeuds.
+ *
+ * La position peut être déplacée avec {@link #seek}.
+ */
+public class HdfsInputStream extends InputStream {
+
+    /**
+     * Préfixe des noms de fichiers HDFS acceptés par les formats à la place d'un
+     * fichier local.
+     */
+    final public static String SCHEME = "hdfs:";
+
+    /**
+     * Taille maximale d'un morceau téléchargé.
+     */
+    final public static int CHUNK_SIZE = 1048576;
+
+    /**
+     * Nombre de morceaux téléchargés en avance.
+     */
+    final public static int READ_AHEAD = 2;
+
+    /**
+     * Threads de téléchargement, partagés par tous les flux.
+     */
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hdfs-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String name;
+
+    /**
+     * Fragments du fichier et leur position, suivie de la taille du fichier.
+     */
+    private final List<List<FragmentInfo>> fragments;
+    private final long[] offsets;
+
+    /**
+     * Morceaux en cours de téléchargement, dans l'ordre du fichier.
+     */
+    private final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+
+    /**
+     * Position du prochain morceau à télécharger.
+     */
+    private long aheadPosition = 0;
+
+    /**
+     * Morceau en cours de lecture.
+     */
+    private byte[] chunk = new byte[0];
+    private int chunkPosition = 0;
+
+    /**
+     * Position dans le fichier.
+     */
+    private long position = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Ouvre un fichier HDFS en lecture.
+     *
+     * @throws FileNotFoundException Si le fichier est inconnu ou incomplet
+     */
+    public HdfsInputStream(String hdfsFname) throws IOException {
+        this.name = hdfsFname;
+        try {
+            this.fragments = HdfsClient.listFragments(hdfsFname);
+            if (this.fragments == null || this.fragments.isEmpty()) {
+                throw new FileNotFoundException(hdfsFname);
+            }
+            this.offsets = HdfsClient.getOffsets(this.fragments);
+        } catch (HdfsRuntimeException e) {
+            throw new FileNotFoundException(hdfsFname + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return La taille du fichier
+     */
+    public long getLength() {
+        return this.offsets[this.fragments.size()];
+    }
+
+    /**
+     * @return La position de lecture dans le fichier
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Déplace la position de lecture. Une position dans le morceau en cours ne
+     * provoque aucun téléchargement ; sinon, les morceaux téléchargés en avance
+     * sont abandonnés.
+     *
+     * @param position Nouvelle position, éventuellement au-delà de la fin du
+     *                 fichier
+     */
+    public void seek(long position) throws IOException {
+        this.ensureOpen();
+        if (position < 0) {
+            throw new IOException("Position invalide : " + position);
+        }
+        long chunkStart = this.position - this.chunkPosition;
+        if (position >= chunkStart && position < chunkStart + this.chunk.length) {
+            this.chunkPosition = (int) (position - chunkStart);
+        } else {
+            this.cancelReadAhead();
+            this.chunk = new byte[0];
+            this.chunkPosition = 0;
+            this.aheadPosition = position;
+        }
+        this.position = position;
+    }
+
+    /**
+     * Lance le téléchargement des prochains morceaux.
+     */
+    private void readAhead() {
+        while (this.ahead.size() < READ_AHEAD && this.aheadPosition < this.getLength()) {
+            // Un morceau s'arrête à la fin de son fragment
+            int index = Arrays.binarySearch(this.offsets, this.aheadPosition);
+            long boundary = this.offsets[index >= 0 ? index + 1 : -index - 1];
+            long start = this.aheadPosition;
+            long end = Math.min(start + CHUNK_SIZE, boundary);
+            HdfsRange range = new HdfsRange(start, (int) (end - start));
+            this.ahead.add(prefetcher.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return HdfsClient.readRange(HdfsInputStream.this.name, HdfsInputStream.this.fragments,
+                            HdfsInputStream.this.offsets, range);
+                }
+            }));
+            this.aheadPosition = end;
+        }
+    }
+
+    /**
+     * Abandonne les morceaux téléchargés en avance. Un téléchargement commencé
+     * n'est pas interrompu, ce qui fermerait la connexion partagée avec les
+     * autres requêtes : son résultat est simplement ignoré.
+     */
+    private void cancelReadAhead() {
+        for (Future<byte[]> future : this.ahead) {
+            future.cancel(false);
+        }
+        this.ahead.clear();
+    }
+
+    /**
+     * Passe au morceau suivant si le morceau en cours est terminé.
+     *
+     * @return false à la fin du fichier
+     */
+    private boolean fill() throws IOException {
+        this.ensureOpen();
+        if (this.chunkPosition < this.chunk.length) {
+            return true;
+        }
+        if (this.position >= this.getLength()) {
+            return false;
+        }
+
+        this.readAhead();
+        Future<byte[]> next = this.ahead.poll();
+        try {
+            this.chunk = next.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        this.chunkPosition = 0;
+        this.readAhead();
+        return this.chunk.length > 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Flux fermé");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.fill()) {
+            return -1;
+        }
+        this.position++;
+        return this.chunk[this.chunkPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.fill()) {
+            return -1;
+        }
+        int n = Math.min(len, this.chunk.length - this.chunkPosition);
+        System.arraycopy(this.chunk, this.chunkPosition, b, off, n);
+        this.chunkPosition += n;
+        this.position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, this.getLength() - this.position));
+        this.seek(this.position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.chunk.length - this.chunkPosition;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.cancelReadAhead();
+        this.chunk = new byte[0];
+        this.chunkPosition = 0;
+    }
+
+}
@@ -0,0 +1,521 @@
+package hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Journal des modifications du catalogue des fichiers, qui permet au NameServer
+ * de redémarrer sans attendre que tous les noeuds lui renvoient leurs
+ * fragments.
+ *
+ * Le dossier du journal contient :
+ * <ul>
+ * <li>checkpoint : un instantané du catalogue, écrit périodiquement ;</li>
+ * <li>edits.N : les modifications, ajoutées à la fin du fichier de génération
+ * la plus élevée.</li>
+ * </ul>
+ *
+ * Chaque enregistrement est de la forme [longueur (4 octets)][CRC32 (4
+ * octets)][opération (1 octet)][champs]. Les opérations sont idempotentes : un
+ * enregistrement déjà présent dans l'instantané peut être rejoué sans effet.
+ * Un enregistrement tronqué ou corrompu, par exemple après un arrêt brutal,
+ * termine la relecture.
+ *
+ * Les enregistrements sont ajoutés en mémoire, dans l'ordre des modifications
+ * du catalogue, puis écrits par {@link #sync()} : le catalogue n'attend pas
+ * l'écriture du fichier pendant qu'il modifie un fichier, et les enregistrements
+ * de plusieurs modifications simultanées sont écrits ensemble.
+ */
+public class HdfsJournal implements Closeable {
+
+    /**
+     * Nombre magique en tête d'un instantané ("HDFC").
+     */
+    final public static int MAGIC = 0x48444643;
+
+    /**
+     * Temps (en ms) entre deux instantanés.
+     */
+    final public static long CHECKPOINT_INTERVAL = 60000;
+
+    private static final byte CREATE = 1;
+    private static final byte FRAGMENT = 2;
+    private static final byte REPLICAS = 3;
+    private static final byte REGISTER = 4;
+    private static final byte REMOVE = 5;
+    private static final byte REMOVE_NODE = 6;
+    private static final byte UNREGISTER = 7;
+    private static final byte REPLICATION = 8;
+    private static final byte ERASURE = 9;
+
+    /**
+     * Écriture des champs d'un enregistrement.
+     */
+    private interface Fields {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Dossier du journal.
+     */
+    private final File directory;
+
+    /**
+     * Fichier des modifications en cours d'écriture.
+     */
+    private DataOutputStream edits;
+
+    /**
+     * Génération du fichier des modifications en cours.
+     */
+    private int generation;
+
+    /**
+     * Nombre d'enregistrements écrits depuis le dernier instantané.
+     */
+    private int records = 0;
+
+    /**
+     * Enregistrements ajoutés et pas encore écrits.
+     */
+    private List<byte[]> pending = new ArrayList<>();
+
+    /**
+     * Nombre d'enregistrements ajoutés, et nombre d'enregistrements écrits.
+     */
+    private long appended = 0;
+    private long written = 0;
+
+    /**
+     * Un thread écrit-il des enregistrements, hors du verrou ?
+     */
+    private boolean writing = false;
+
+    /**
+     * Verrou des champs du journal.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition signalée à la fin de chaque écriture.
+     */
+    private final Condition flushed = this.lock.newCondition();
+
+    /**
+     * Ouvre le journal d'un dossier, créé si nécessaire. Le journal doit ensuite
+     * être relu avec {@link #recover()}.
+     */
+    public HdfsJournal(String directory) {
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new HdfsRuntimeException("Impossible de créer le dossier du journal " + directory);
+        }
+    }
+
+    /**
+     * Reconstruit le catalogue à partir du dernier instantané et des
+     * modifications qui le suivent, puis ouvre un nouveau fichier de
+     * modifications. Le journal est attaché au catalogue renvoyé.
+     */
+    public HdfsNamespace recover() throws IOException {
+        HdfsNamespace namespace = new HdfsNamespace();
+        int first = 0;
+        int replayed = 0;
+
+        File checkpoint = new File(this.directory, "checkpoint");
+        if (checkpoint.isFile()) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(checkpoint)))) {
+                if (input.readInt() != MAGIC) {
+                    throw new IOException("Instantané invalide : " + checkpoint);
+                }
+                first = input.readInt();
+                replayed += replay(namespace, input);
+            }
+        }
+
+        int last = first - 1;
+        for (int generation : this.listGenerations()) {
+            if (generation < first) {
+                new File(this.directory, "edits." + generation).delete();
+                continue;
+            }
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(new File(this.directory, "edits." + generation))))) {
+                replayed += replay(namespace, input);
+            }
+            last = generation;
+        }
+
+        System.out.println("* Journal relu : " + replayed + " opérations, " + namespace.getFileNames().size()
+                + " fichiers");
+
+        this.lock.lock();
+        try {
+            this.generation = last + 1;
+            this.edits = this.openEdits(this.generation);
+        } finally {
+            this.lock.unlock();
+        }
+        namespace.setJournal(this);
+        return namespace;
+    }
+
+    /**
+     * Générations des fichiers de modifications présents, dans l'ordre.
+     */
+    private List<Integer> listGenerations() {
+        List<Integer> generations = new ArrayList<>();
+        for (String name : this.directory.list()) {
+            if (name.startsWith("edits.")) {
+                try {
+                    generations.add(Integer.parseInt(name.substring(6)));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private DataOutputStream openEdits(int generation) throws IOException {
+        return new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(new File(this.directory, "edits." + generation), true)));
+    }
+
+    /**
+     * Ajoute un enregistrement à la fin du journal, sans l'écrire : il le sera
+     * au prochain {@link #sync()}.
+     */
+    void append(byte[] record) {
+        this.lock.lock();
+        try {
+            this.pending.add(record);
+            this.appended++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Écrit les enregistrements ajoutés jusqu'ici, ou attend qu'un autre thread
+     * les ait écrits. Les données sont transmises au système : elles survivent
+     * à l'arrêt du NameServer, mais pas forcément à celui de la machine.
+     */
+    void sync() {
+        this.lock.lock();
+        try {
+            long target = this.appended;
+            while (this.written < target) {
+                if (this.writing) {
+                    this.flushed.awaitUninterruptibly();
+                    continue;
+                }
+                // Ce thread écrit tous les enregistrements en attente, hors du verrou
+                List<byte[]> batch = this.pending;
+                long last = this.appended;
+                this.pending = new ArrayList<>();
+                this.writing = true;
+                this.lock.unlock();
+                try {
+                    for (byte[] record : batch) {
+                        writeRecord(this.edits, record);
+                    }
+                    this.edits.flush();
+                } catch (IOException e) {
+                    System.err.println("Écriture du journal impossible : " + e.getMessage());
+                } finally {
+                    this.lock.lock();
+                    this.writing = false;
+                    this.written = last;
+                    this.records += batch.size();
+                    this.flushed.signalAll();
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Écrit un instantané du catalogue et supprime les modifications qu'il rend
+     * inutiles.
+     *
+     * Le fichier des modifications est changé avant l'instantané. Les
+     * modifications de la génération précédente sont conservées et rejouées,
+     * car certaines peuvent avoir été journalisées avant d'être appliquées au
+     * catalogue.
+     */
+    public void checkpoint(HdfsNamespace namespace) throws IOException {
+        int current;
+        this.lock.lock();
+        try {
+            // Le fichier n'est pas changé pendant une écriture
+            while (this.writing) {
+                this.flushed.awaitUninterruptibly();
+            }
+            this.edits.close();
+            this.generation++;
+            this.edits = this.openEdits(this.generation);
+            this.records = 0;
+            current = this.generation;
+        } finally {
+            this.lock.unlock();
+        }
+        int first = current - 1;
+
+        File temporary = new File(this.directory, "checkpoint.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary);
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file))) {
+            output.writeInt(MAGIC);
+            output.writeInt(first);
+            namespace.writeCheckpoint(output);
+            output.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(this.directory, "checkpoint").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int generation : this.listGenerations()) {
+            if (generation < first) {
+                new File(this.directory, "edits." + generation).delete();
+            }
+        }
+    }
+
+    /**
+     * Indique si des modifications ont été journalisées depuis le dernier
+     * instantané.
+     */
+    public boolean hasChanges() {
+        this.lock.lock();
+        try {
+            return this.records > 0 || !this.pending.isEmpty();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.sync();
+        this.lock.lock();
+        try {
+            if (this.edits != null) {
+                this.edits.close();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Rejoue les enregistrements d'un flux sur un catalogue.
+     *
+     * @return Le nombre d'enregistrements rejoués
+     */
+    private static int replay(HdfsNamespace namespace, DataInputStream input) throws IOException {
+        int count = 0;
+        while (true) {
+            byte[] record;
+            try {
+                int length = input.readInt();
+                int crc = input.readInt();
+                if (length <= 0 || length > HdfsMessage.MAX_PAYLOAD_SIZE) {
+                    break;
+                }
+                record = new byte[length];
+                input.readFully(record);
+                CRC32 checksum = new CRC32();
+                checksum.update(record);
+                if ((int) checksum.getValue() != crc) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            apply(namespace, new DataInputStream(new ByteArrayInputStream(record)));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Applique un enregistrement au catalogue.
+     */
+    private static void apply(HdfsNamespace namespace, DataInputStream record) throws IOException {
+        byte operation = record.readByte();
+        if (operation == CREATE) {
+            String name = record.readUTF();
+            namespace.create(name, record.available() > 0 ? record.readUTF() : null);
+        } else if (operation == FRAGMENT) {
+            namespace.addFragment(record.readUTF(), record.readInt(), record.readLong());
+        } else if (operation == REPLICAS) {
+            String name = record.readUTF();
+            int id = record.readInt();
+            namespace.addReplicas(name, id, readNodes(record));
+        } else if (operation == REGISTER) {
+            HdfsNodeInfo node = readNode(record);
+            String name = record.readUTF();
+            Map<Integer, Long> fragments = new HashMap<>();
+            for (int i = 0, n = record.readInt(); i < n; i++) {
+                fragments.put(record.readInt(), record.readLong());
+            }
+            namespace.register(node, Map.of(name, fragments));
+        } else if (operation == REMOVE) {
+            namespace.remove(record.readUTF());
+        } else if (operation == REMOVE_NODE) {
+            namespace.removeNode(readNode(record));
+        } else if (operation == UNREGISTER) {
+            HdfsNodeInfo node = readNode(record);
+            String name = record.readUTF();
+            Map<Integer, Long> fragments = new HashMap<>();
+            for (int i = 0, n = record.readInt(); i < n; i++) {
+                fragments.put(record.readInt(), -1L);
+            }
+            namespace.update(node, Map.of(), Map.of(name, fragments));
+        } else if (operation == REPLICATION) {
+            namespace.setReplication(record.readUTF(), record.readInt());
+        } else if (operation == ERASURE) {
+            namespace.setErasure(record.readUTF(), record.readUTF());
+        } else {
+            throw new IOException("Opération inconnue dans le journal : " + operation);
+        }
+    }
+
+    /**
+     * Écrit un enregistrement, précédé de sa longueur et de son CRC32.
+     */
+    static void writeRecord(DataOutputStream output, byte[] record) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        output.writeInt(record.length);
+        output.writeInt((int) checksum.getValue());
+        output.write(record);
+    }
+
+    private static byte[] record(byte operation, Fields fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(operation);
+            fields.write(output);
+        } catch (IOException e) {
+            throw new HdfsRuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeNode(DataOutputStream output, HdfsNodeInfo node) throws IOException {
+        output.writeUTF(node.getHost());
+        output.writeInt(node.getPort());
+        output.writeUTF(node.getRoot());
+    }
+
+    private static HdfsNodeInfo readNode(DataInputStream input) throws IOException {
+        return new HdfsNodeInfo(input.readUTF(), input.readInt(), input.readUTF());
+    }
+
+    private static List<HdfsNodeInfo> readNodes(DataInputStream input) throws IOException {
+        int n = input.readInt();
+        List<HdfsNodeInfo> nodes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            nodes.add(readNode(input));
+        }
+        return nodes;
+    }
+
+    static byte[] createRecord(String name, String codec) {
+        return record(CREATE, output -> {
+            output.writeUTF(name);
+            if (codec != null) {
+                output.writeUTF(codec);
+            }
+        });
+    }
+
+    static byte[] fragmentRecord(String name, int id, long size) {
+        return record(FRAGMENT, output -> {
+            output.writeUTF(name);
+            output.writeInt(id);
+            output.writeLong(size);
+        });
+    }
+
+    static byte[] replicasRecord(String name, int id, Collection<HdfsNodeInfo> nodes) {
+        return record(REPLICAS, output -> {
+            output.writeUTF(name);
+            output.writeInt(id);
+            output.writeInt(nodes.size());
+            for (HdfsNodeInfo node : nodes) {
+                writeNode(output, node);
+            }
+        });
+    }
+
+    static byte[] registerRecord(HdfsNodeInfo node, String name, Map<Integer, Long> fragments) {
+        return record(REGISTER, output -> {
+            writeNode(output, node);
+            output.writeUTF(name);
+            output.writeInt(fragments.size());
+            for (Entry<Integer, Long> fragment : fragments.entrySet()) {
+                output.writeInt(fragment.getKey());
+                output.writeLong(fragment.getValue());
+            }
+        });
+    }
+
+    static byte[] unregisterRecord(HdfsNodeInfo node, String name, Collection<Integer> fragments) {
+        return record(UNREGISTER, output -> {
+            writeNode(output, node);
+            output.writeUTF(name);
+            output.writeInt(fragments.size());
+            for (int id : fragments) {
+                output.writeInt(id);
+            }
+        });
+    }
+
+    static byte[] replicationRecord(String name, int replication) {
+        return record(REPLICATION, output -> {
+            output.writeUTF(name);
+            output.writeInt(replication);
+        });
+    }
+
+    static byte[] erasureRecord(String name, String erasure) {
+        return record(ERASURE, output -> {
+            output.writeUTF(name);
+            output.writeUTF(erasure);
+        });
+    }
+
+    static byte[] removeRecord(String name) {
+        return record(REMOVE, output -> output.writeUTF(name));
+    }
+
+    static byte[] removeNodeRecord(HdfsNodeInfo node) {
+        return record(REMOVE_NODE, output -> writeNode(output, node));
+    }
+
+}
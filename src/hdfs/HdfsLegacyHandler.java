@@ -0,0 +1,173 @@
+package hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Traitement des requêtes des clients antérieurs au protocole binaire, qui
+ * échangent des objets Java sérialisés.
+ *
+ * Seules les opérations des clients sont prises en charge : les noeuds doivent
+ * être mis à jour en même temps que le NameServer.
+ */
+class HdfsLegacyHandler {
+
+    /**
+     * Serveur qui délègue la requête.
+     */
+    private final HdfsNameServer server;
+
+    HdfsLegacyHandler(HdfsNameServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Traite une requête sérialisée.
+     *
+     * @param sock  Socket connectée
+     * @param input Flux entrant de la socket
+     */
+    void handleRequest(Socket sock, BufferedInputStream input) {
+        try (ObjectInputStream inputStream = new ObjectInputStream(input)) {
+            HdfsAction action = (HdfsAction) inputStream.readObject();
+
+            if (action == HdfsAction.READ) {
+                this.handleRead(sock, inputStream);
+            } else if (action == HdfsAction.WRITE) {
+                this.handleWrite(sock, inputStream);
+            } else if (action == HdfsAction.DELETE) {
+                this.handleDelete(sock, inputStream);
+            } else if (action == HdfsAction.LIST_FRAGMENTS) {
+                this.handleListFragments(sock, inputStream);
+            } else if (action == HdfsAction.FORCE_RESCAN) {
+                this.handleForceRescan(sock);
+            } else if (action == HdfsAction.LIST_NODES) {
+                this.handleListNodes(sock, inputStream);
+            } else {
+                System.err.println("Action " + action + " d'un noeud obsolète refusée, mettez-le à jour.");
+            }
+
+        } catch (ClassNotFoundException | IOException | ClassCastException e) {
+            System.err.println("Données invalides, connexion annulée.");
+        }
+    }
+
+    private void handleRead(Socket sock, ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+
+        try (ObjectOutputStream clientOutputStream = new ObjectOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()))) {
+
+            String name = (String) inputStream.readObject();
+
+            if (!this.server.isFileComplete(name)) {
+                clientOutputStream.writeObject(new HdfsRuntimeException("Fichier inexistant ou incomplet"));
+                return;
+            }
+
+            clientOutputStream.writeObject(null);
+
+            List<List<FragmentInfo>> fragments = this.server.listFragments(name);
+            int numberOfFragments = fragments.size();
+            clientOutputStream.writeInt(numberOfFragments);
+            clientOutputStream.flush();
+
+            for (int fragment = 0; fragment < numberOfFragments; fragment++) {
+
+                // La taille est envoyée sur 32 bits aux anciens clients
+                long size = fragments.get(fragment).get(0).size;
+                if (size > Integer.MAX_VALUE) {
+                    System.err.println("Fragment " + fragment + " trop grand pour un ancien client.");
+                    clientOutputStream.writeInt(-1);
+                    clientOutputStream.flush();
+                    return;
+                }
+                clientOutputStream.writeInt((int) size);
+
+                if (!this.server.readFragment(name, fragment, size, clientOutputStream)) {
+                    System.err.println("Impossible d'obtenir le fragment " + fragment + ", aucun noeud disponible.");
+                    return;
+                }
+                clientOutputStream.flush();
+
+            }
+
+            clientOutputStream.writeInt(0);
+            clientOutputStream.flush();
+
+            sock.shutdownOutput();
+            inputStream.readObject();
+
+        }
+    }
+
+    private void handleWrite(Socket sock, ObjectInputStream inputStream) throws ClassNotFoundException {
+
+        String name = null;
+
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()))) {
+
+            name = (String) inputStream.readObject();
+            int repFactor = inputStream.readInt();
+
+            System.out.println("Réception du fichier " + name + " (rep=" + repFactor + ", ancien client)");
+
+            String error = this.server.checkWriteRequest(name, repFactor, null, null);
+            if (error != null) {
+                outputStream.writeObject(new HdfsRuntimeException(error));
+                outputStream.flush();
+                name = null;
+                return;
+            }
+            outputStream.writeObject(null);
+            outputStream.flush();
+
+            this.server.receiveFile(name, repFactor, inputStream);
+
+            outputStream.writeObject(HdfsAction.PONG);
+            outputStream.flush();
+
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Écriture interrompue (" + e.getMessage() + "), suppression des fragments envoyés.");
+            if (name != null) {
+                this.server.deleteFile(name);
+            }
+        }
+
+    }
+
+    private void handleDelete(Socket sock, ObjectInputStream inputStream) throws ClassNotFoundException, IOException {
+        this.server.deleteFile((String) inputStream.readObject());
+        new ObjectOutputStream(sock.getOutputStream()).writeObject(HdfsAction.PONG);
+    }
+
+    private void handleListFragments(Socket sock, ObjectInputStream inputStream)
+            throws ClassNotFoundException, IOException {
+
+        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        List<List<FragmentInfo>> list = this.server.listFragments((String) inputStream.readObject());
+        outputStream.writeObject(list == null ? null : new ArrayList<>(list));
+        if (list != null) {
+            inputStream.readObject();
+        }
+
+    }
+
+    private void handleListNodes(Socket sock, ObjectInputStream inputStream)
+            throws ClassNotFoundException, IOException {
+        new ObjectOutputStream(sock.getOutputStream()).writeObject(new ArrayList<>(this.server.getNodes()));
+        inputStream.readObject();
+    }
+
+    private void handleForceRescan(Socket sock) throws IOException {
+        this.server.forceRescan();
+        new ObjectOutputStream(sock.getOutputStream()).writeObject(HdfsAction.PONG);
+    }
+
+}
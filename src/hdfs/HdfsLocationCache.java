@@ -0,0 +1,109 @@
+package hdfs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache client des listes de fragments renvoyées par le NameServer.
+ *
+ * Chaque liste est gardée avec sa version (voir
+ * {@link HdfsNamespace#getVersion}). Pendant la durée de son bail, elle est
+ * utilisée sans contacter le NameServer ; ensuite, elle est revalidée en
+ * envoyant sa version, et le NameServer ne renvoie la liste que si elle a
+ * changé.
+ *
+ * Une liste utilisée pendant son bail peut être périmée : si un noeud ne
+ * possède plus un fragment, la liste doit être invalidée puis redemandée.
+ */
+public class HdfsLocationCache {
+
+    /**
+     * Durée par défaut du bail des listes (en ms).
+     */
+    final public static long DEFAULT_LEASE = 10000;
+
+    /**
+     * Liste de fragments d'un fichier.
+     */
+    public static final class Entry {
+
+        public final List<List<FragmentInfo>> fragments;
+
+        /**
+         * Version de la liste, 0 si le NameServer n'en donne pas.
+         */
+        public final long version;
+
+        /**
+         * Date (en ms) de fin du bail.
+         */
+        private final long expiry;
+
+        private Entry(List<List<FragmentInfo>> fragments, long version, long expiry) {
+            this.fragments = fragments;
+            this.version = version;
+            this.expiry = expiry;
+        }
+
+        /**
+         * Indique si la liste peut être utilisée sans la revalider.
+         */
+        public boolean isLeased() {
+            return System.currentTimeMillis() < this.expiry;
+        }
+    }
+
+    /**
+     * Durée du bail des listes (en ms), 0 pour toujours les revalider.
+     */
+    private final long lease;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public HdfsLocationCache(long lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * @return La liste connue d'un fichier, null si elle ne l'est pas
+     */
+    public Entry get(String name) {
+        return this.entries.get(name);
+    }
+
+    /**
+     * Enregistre la liste des fragments d'un fichier reçue du NameServer.
+     */
+    public void put(String name, List<List<FragmentInfo>> fragments, long version) {
+        if (version == 0) {
+            // Un ancien NameServer ne permet pas de revalider la liste
+            this.entries.remove(name);
+            return;
+        }
+        this.entries.put(name, new Entry(fragments, version, System.currentTimeMillis() + this.lease));
+    }
+
+    /**
+     * Prolonge le bail d'une liste que le NameServer a confirmée.
+     */
+    public void renew(String name, Entry entry) {
+        this.entries.put(name, new Entry(entry.fragments, entry.version, System.currentTimeMillis() + this.lease));
+    }
+
+    /**
+     * Oublie la liste d'un fichier modifié ou supprimé.
+     */
+    public void invalidate(String name) {
+        this.entries.remove(name);
+    }
+
+    /**
+     * Met fin aux baux de toutes les listes, qui seront revalidées à leur
+     * prochaine utilisation.
+     */
+    public void expireAll() {
+        this.entries.replaceAll((name, entry) -> new Entry(entry.fragments, entry.version, 0));
+    }
+
+}
@@ -0,0 +1,421 @@
+package hdfs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Message du protocole binaire HDFS.
+ *
+ * Une trame est de la forme [code (1 octet)][longueur (4 octets)][charge utile],
+ * la charge utile étant une suite de champs écrits avec les méthodes put* et
+ * relus dans le même ordre avec les méthodes get*.
+ */
+public class HdfsMessage {
+
+    /**
+     * Taille maximale d'une charge utile, pour rejeter les trames corrompues.
+     */
+    final public static int MAX_PAYLOAD_SIZE = 16777216;
+
+    /**
+     * Action portée par le message.
+     */
+    private final HdfsAction action;
+
+    /**
+     * Charge utile, en écriture puis en lecture.
+     */
+    private ByteBuffer payload;
+
+    /**
+     * Réserve à laquelle rendre la charge utile une fois lue, null si elle n'en
+     * vient pas.
+     */
+    private HdfsBufferPool pool = null;
+
+    /**
+     * Crée un message vide à remplir.
+     */
+    public HdfsMessage(HdfsAction action) {
+        this.action = action;
+        this.payload = ByteBuffer.allocate(64);
+    }
+
+    /**
+     * Crée un message reçu, prêt à être lu.
+     */
+    private HdfsMessage(HdfsAction action, ByteBuffer payload) {
+        this.action = action;
+        this.payload = payload;
+    }
+
+    /**
+     * Crée un message d'erreur.
+     */
+    public static HdfsMessage error(String message) {
+        return new HdfsMessage(HdfsAction.ERROR).putString(message);
+    }
+
+    public HdfsAction getAction() {
+        return this.action;
+    }
+
+    /**
+     * Lance une exception si le message n'est pas l'action attendue.
+     *
+     * @param expected Action attendue
+     * @return Le message lui-même
+     * @throws HdfsRuntimeException Si le message est une erreur ou une autre
+     *                              action
+     */
+    public HdfsMessage expect(HdfsAction expected) {
+        if (this.action == HdfsAction.ERROR) {
+            throw new HdfsRuntimeException(this.getString());
+        }
+        if (this.action != expected) {
+            throw new HdfsRuntimeException("Réponse inattendue : " + this.action + " au lieu de " + expected);
+        }
+        return this;
+    }
+
+    /**
+     * Agrandit le buffer pour pouvoir écrire size octets.
+     */
+    private void ensureCapacity(int size) {
+        if (this.payload.remaining() < size) {
+            ByteBuffer larger = ByteBuffer
+                    .allocate(Math.max(this.payload.capacity() * 2, this.payload.position() + size));
+            this.payload.flip();
+            larger.put(this.payload);
+            this.payload = larger;
+        }
+    }
+
+    public HdfsMessage putByte(int value) {
+        this.ensureCapacity(1);
+        this.payload.put((byte) value);
+        return this;
+    }
+
+    public HdfsMessage putBoolean(boolean value) {
+        return this.putByte(value ? 1 : 0);
+    }
+
+    public HdfsMessage putInt(int value) {
+        this.ensureCapacity(4);
+        this.payload.putInt(value);
+        return this;
+    }
+
+    public HdfsMessage putLong(long value) {
+        this.ensureCapacity(8);
+        this.payload.putLong(value);
+        return this;
+    }
+
+    /**
+     * Écrit une chaîne UTF-8 préfixée par sa longueur, -1 pour null.
+     */
+    public HdfsMessage putString(String value) {
+        if (value == null) {
+            return this.putInt(-1);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.putInt(bytes.length);
+        this.ensureCapacity(bytes.length);
+        this.payload.put(bytes);
+        return this;
+    }
+
+    public HdfsMessage putNode(HdfsNodeInfo node) {
+        return this.putString(node.getHost()).putInt(node.getPort()).putString(node.getRoot());
+    }
+
+    public HdfsMessage putNodes(Collection<HdfsNodeInfo> nodes) {
+        this.putInt(nodes.size());
+        for (HdfsNodeInfo node : nodes) {
+            this.putNode(node);
+        }
+        return this;
+    }
+
+    public HdfsMessage putNodeStats(HdfsNodeStats stats) {
+        return this.putLong(stats.getFreeSpace()).putInt(stats.getActiveRequests()).putInt(stats.getFragments())
+                .putLong(stats.getCacheHits()).putLong(stats.getCacheMisses());
+    }
+
+    public HdfsMessage putBufferUsage(HdfsBufferPool.Usage usage) {
+        return this.putInt(usage.bufferSize).putInt(usage.inUse).putInt(usage.allocated).putInt(usage.capacity)
+                .putLong(usage.waits);
+    }
+
+    public HdfsMessage putFragment(FragmentInfo fragment) {
+        this.putString(fragment.filename).putInt(fragment.id).putBoolean(fragment.lastPart);
+        this.putBoolean(fragment.node != null);
+        if (fragment.node != null) {
+            this.putNode(fragment.node);
+        }
+        return this.putString(fragment.root).putLong(fragment.size).putString(fragment.codec);
+    }
+
+    /**
+     * Écrit la liste des fragments d'un noeud : pour chaque fichier, les
+     * identifiants des fragments et leur taille, -1 pour un fragment attendu mais
+     * absent du noeud.
+     */
+    public HdfsMessage putFragmentMap(Map<String, Map<Integer, File>> files) {
+        Map<String, Map<Integer, Long>> sizes = new HashMap<>();
+        for (Entry<String, Map<Integer, File>> file : files.entrySet()) {
+            Map<Integer, Long> fragments = new HashMap<>();
+            for (Entry<Integer, File> fragment : file.getValue().entrySet()) {
+                fragments.put(fragment.getKey(),
+                        fragment.getValue() == null ? -1 : HdfsCompression.getRawLength(fragment.getValue()));
+            }
+            sizes.put(file.getKey(), fragments);
+        }
+        return this.putFragmentSizes(sizes);
+    }
+
+    /**
+     * Écrit une liste de fragments associés à leur taille, relue par
+     * {@link #getFragmentMap()}.
+     */
+    public HdfsMessage putFragmentSizes(Map<String, Map<Integer, Long>> files) {
+        this.putInt(files.size());
+        for (Entry<String, Map<Integer, Long>> file : files.entrySet()) {
+            this.putString(file.getKey());
+            this.putInt(file.getValue().size());
+            for (Entry<Integer, Long> fragment : file.getValue().entrySet()) {
+                this.putInt(fragment.getKey());
+                this.putLong(fragment.getValue());
+            }
+        }
+        return this;
+    }
+
+    public byte getByte() {
+        return this.payload.get();
+    }
+
+    public boolean getBoolean() {
+        return this.payload.get() != 0;
+    }
+
+    public int getInt() {
+        return this.payload.getInt();
+    }
+
+    public long getLong() {
+        return this.payload.getLong();
+    }
+
+    public String getString() {
+        int length = this.payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(this.payload.array(), this.payload.arrayOffset() + this.payload.position(), length,
+                StandardCharsets.UTF_8);
+        this.payload.position(this.payload.position() + length);
+        return value;
+    }
+
+    public HdfsNodeInfo getNode() {
+        return new HdfsNodeInfo(this.getString(), this.getInt(), this.getString());
+    }
+
+    /**
+     * Relit la charge d'un noeud, {@link HdfsNodeStats#UNKNOWN} si le message
+     * n'en contient pas.
+     */
+    public HdfsNodeStats getNodeStats() {
+        if (!this.hasRemaining()) {
+            return HdfsNodeStats.UNKNOWN;
+        }
+        long freeSpace = this.getLong();
+        int activeRequests = this.getInt();
+        int fragments = this.getInt();
+        if (!this.hasRemaining()) {
+            // Noeud sans cache des fragments
+            return new HdfsNodeStats(freeSpace, activeRequests, fragments);
+        }
+        return new HdfsNodeStats(freeSpace, activeRequests, fragments, this.getLong(), this.getLong());
+    }
+
+    /**
+     * Relit l'occupation d'une réserve de buffers, null si le message n'en
+     * contient pas.
+     */
+    public HdfsBufferPool.Usage getBufferUsage() {
+        if (!this.hasRemaining()) {
+            return null;
+        }
+        return new HdfsBufferPool.Usage(this.getInt(), this.getInt(), this.getInt(), this.getInt(), this.getLong());
+    }
+
+    public FragmentInfo getFragment() {
+        String filename = this.getString();
+        int id = this.getInt();
+        boolean lastPart = this.getBoolean();
+        HdfsNodeInfo node = this.getBoolean() ? this.getNode() : null;
+        return new FragmentInfo(filename, id, lastPart, node, this.getString(), this.getLong(), this.getString());
+    }
+
+    /**
+     * Relit une liste écrite par putFragmentMap. Un fragment absent est associé
+     * à la taille -1.
+     */
+    public Map<String, Map<Integer, Long>> getFragmentMap() {
+        Map<String, Map<Integer, Long>> files = new HashMap<>();
+        for (int i = 0, n = this.getInt(); i < n; i++) {
+            String fileName = this.getString();
+            Map<Integer, Long> fragments = new HashMap<>();
+            for (int j = 0, m = this.getInt(); j < m; j++) {
+                fragments.put(this.getInt(), this.getLong());
+            }
+            files.put(fileName, fragments);
+        }
+        return files;
+    }
+
+    /**
+     * Indique s'il reste des champs à lire, pour les champs ajoutés en fin de
+     * message.
+     */
+    public boolean hasRemaining() {
+        return this.payload.hasRemaining();
+    }
+
+    /**
+     * Accès direct à la partie non lue de la charge utile (trames DATA).
+     */
+    ByteBuffer getPayload() {
+        return this.payload;
+    }
+
+    public List<HdfsNodeInfo> getNodes() {
+        int n = this.getInt();
+        List<HdfsNodeInfo> nodes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            nodes.add(this.getNode());
+        }
+        return nodes;
+    }
+
+    /**
+     * Écrit la trame sur le flux.
+     */
+    void writeTo(DataOutputStream output) throws IOException {
+        output.writeByte(this.action.getCode());
+        output.writeInt(this.payload.position());
+        output.write(this.payload.array(), this.payload.arrayOffset(), this.payload.position());
+    }
+
+    /**
+     * Lit une trame complète sur le flux.
+     *
+     * @throws IOException Si la trame est invalide ou le flux interrompu
+     */
+    static HdfsMessage readFrom(DataInputStream input) throws IOException {
+        HdfsAction action = readAction(input);
+        return readPayload(action, readLength(input), input);
+    }
+
+    /**
+     * Lit l'action d'une trame.
+     *
+     * @throws IOException Si le code est inconnu
+     */
+    static HdfsAction readAction(DataInputStream input) throws IOException {
+        return toAction(input.readByte());
+    }
+
+    /**
+     * Lit la longueur de la charge utile d'une trame.
+     *
+     * @throws IOException Si la longueur est invalide
+     */
+    static int readLength(DataInputStream input) throws IOException {
+        return checkLength(input.readInt());
+    }
+
+    /**
+     * @return L'action correspondant au code d'une trame
+     * @throws IOException Si le code est inconnu
+     */
+    static HdfsAction toAction(byte code) throws IOException {
+        HdfsAction action = HdfsAction.fromCode(code);
+        if (action == null) {
+            throw new IOException("Trame invalide (code " + code + ")");
+        }
+        return action;
+    }
+
+    /**
+     * @return La longueur de la charge utile d'une trame, si elle est valide
+     * @throws IOException Si la longueur est invalide
+     */
+    static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Trame invalide (longueur " + length + ")");
+        }
+        return length;
+    }
+
+    /**
+     * Lit la charge utile d'une trame dont l'en-tête a déjà été lu.
+     */
+    static HdfsMessage readPayload(HdfsAction action, int length, DataInputStream input) throws IOException {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return wrap(action, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Crée un message prêt à être lu à partir d'une charge utile.
+     */
+    static HdfsMessage wrap(HdfsAction action, ByteBuffer payload) {
+        return new HdfsMessage(action, payload);
+    }
+
+    /**
+     * Crée un message reçu dont la charge utile est un buffer d'une réserve, à
+     * rendre avec {@link #release} une fois le message lu.
+     */
+    static HdfsMessage wrap(HdfsAction action, ByteBuffer payload, HdfsBufferPool pool) {
+        HdfsMessage message = new HdfsMessage(action, payload);
+        message.pool = pool;
+        return message;
+    }
+
+    /**
+     * Rend la charge utile à sa réserve. Le message ne doit plus être lu. Sans
+     * effet si la charge utile ne vient pas d'une réserve ou a déjà été rendue.
+     */
+    void release() {
+        if (this.pool != null) {
+            this.pool.release(this.payload);
+            this.pool = null;
+            this.payload = ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Revient au début de la charge utile d'un message reçu, pour le relire.
+     */
+    HdfsMessage rewind() {
+        this.payload.rewind();
+        return this;
+    }
+
+}
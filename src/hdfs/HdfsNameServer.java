@@ -7,13 +7,24 @@
 package hdfs;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 /**
@@ -33,29 +44,193 @@ public class HdfsNameServer {
     final public static int DEFAULT_PORT = 51200;
 
     /**
-     * Temps (en ms) entre deux pings.
+     * Nombre de lignes stockées dans le buffer.
      */
-    final public static int PING_INTERVAL = 5000;
+    final public static int BUFFER_SIZE = 4194304;
 
     /**
-     * Nombre de lignes stockées dans le buffer.
+     * Taille maximale d'un fragment. Un fragment est normalement coupé à la
+     * première fin de ligne après BUFFER_SIZE octets ; une ligne qui dépasse
+     * cette taille est coupée, pour que la mémoire utilisée par une écriture
+     * reste bornée même sans fin de ligne.
      */
-    final public static int BUFFER_SIZE = 4194304;
+    final public static int MAX_FRAGMENT_SIZE = 16 * BUFFER_SIZE;
+
+    /**
+     * Nombre de fragments envoyés simultanément aux noeuds lors d'une écriture,
+     * c'est aussi le nombre de fragments découpés en attente d'envoi.
+     */
+    final public static int SENDERS = 4;
+
+    /**
+     * Délai (en ms) entre deux vérifications de l'état des envois lorsque la
+     * file des fragments découpés est pleine.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Nombre de fragments renvoyé à la place de la liste quand la version
+     * connue du client est toujours à jour.
+     */
+    final public static int NOT_MODIFIED = -2;
+
+    /**
+     * Dossier par défaut du journal du catalogue.
+     */
+    final public static String DEFAULT_JOURNAL = "hdfs-journal";
+
+    /**
+     * Temps (en ms) laissé aux noeuds pour se réinscrire après un redémarrage.
+     * Passé ce délai, les répliques des noeuds du journal qui ne se sont pas
+     * réinscrits sont oubliées.
+     */
+    final public static int RECOVERY_DELAY = HdfsFailureDetector.DEFAULT_DETECTION_TIME;
+
+    /**
+     * Nombre maximal de requêtes traitées en même temps, les suivantes attendant
+     * qu'un thread se libère.
+     */
+    final public static int WORKERS = 64;
+
+    /**
+     * Nombre de threads réservés aux battements de coeur et aux rapports des
+     * noeuds, qui ne doivent jamais attendre derrière les autres requêtes.
+     */
+    final public static int CONTROL_WORKERS = 4;
+
+    /**
+     * Délai (en ms) accordé au client d'une écriture réservée pour la confirmer,
+     * en plus du temps d'envoi de ses fragments au débit {@link #MIN_UPLOAD_RATE}.
+     * Une réservation expirée est supprimée.
+     */
+    final public static int ALLOCATION_TIMEOUT = 300000;
+
+    /**
+     * Débit minimal (en octets par seconde) attendu du client d'une écriture
+     * réservée.
+     */
+    final public static int MIN_UPLOAD_RATE = 1048576;
 
     /**
      * Serveur qui traite les requêtes HDFS.
      */
-    private final ServerSocket server;
+    private final ServerSocketChannel server;
 
     /**
      * Ensemble des noeuds.
      */
-    private final Set<HdfsNodeInfo> nodes = new HashSet<>();
+    private final Set<HdfsNodeInfo> nodes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Catalogue des fichiers, remplacé par celui du journal au démarrage.
+     */
+    private volatile HdfsNamespace namespace = new HdfsNamespace();
+
+    /**
+     * Exécuteur des requêtes de métadonnées, borné à {@link #WORKERS} threads
+     * classiques (voir {@link HdfsExecutors}). Les connexions elles-mêmes sont
+     * lues par une boucle d'événements.
+     */
+    private final ExecutorService workers = HdfsExecutors.newWorkerPool("hdfs-worker", WORKERS);
+
+    /**
+     * Exécuteur des battements de coeur et des rapports des noeuds : un noeud
+     * dont le battement attendrait trop longtemps serait déclaré mort par le
+     * détecteur de pannes.
+     */
+    private final ExecutorService control = HdfsExecutors.newWorkerPool("hdfs-control", CONTROL_WORKERS);
+
+    /**
+     * Exécuteur des requêtes qui durent le temps d'un transfert de fichier
+     * (écritures découpées par le NameServer, clients antérieurs au protocole
+     * binaire). Il n'est pas borné, pour qu'un transfert n'occupe jamais un
+     * thread des autres requêtes ; la mémoire des transferts est bornée par la
+     * réserve de buffers.
+     */
+    private final ExecutorService transfers = HdfsExecutors.newTaskExecutor("hdfs-transfer");
+
+    /**
+     * Exécuteur des envois de fragments aux noeuds, séparé de celui des
+     * requêtes qui attendent la fin de ces envois.
+     */
+    private final ExecutorService executor = HdfsExecutors.newTaskExecutor("hdfs-sender");
+
+    /**
+     * Connexions persistantes vers les noeuds.
+     */
+    private final HdfsConnectionPool pool = new HdfsConnectionPool();
+
+    /**
+     * Buffers des fragments reçus des clients en attente d'envoi aux noeuds,
+     * partagés par toutes les écritures : une fois épuisés, la réception des
+     * fichiers ralentit au lieu d'allouer plus de mémoire.
+     */
+    private final HdfsBufferPool buffers = new HdfsBufferPool(BUFFER_SIZE, HdfsBufferPool.DEFAULT_CAPACITY);
+
+    /**
+     * Boucle d'événements qui lit les connexions, null tant qu'elle n'est pas
+     * lancée.
+     */
+    private volatile HdfsEventLoop eventLoop = null;
+
+    /**
+     * Journal du catalogue, null s'il est désactivé.
+     */
+    private final HdfsJournal journal;
+
+    /**
+     * Détecteur de pannes, alimenté par les battements de coeur des noeuds.
+     */
+    private final HdfsFailureDetector detector;
+
+    /**
+     * Politique de placement des répliques.
+     */
+    private final HdfsPlacementPolicy placement;
+
+    /**
+     * Rééquilibrage de la répartition des fragments.
+     */
+    private final HdfsRebalancer rebalancer;
+
+    /**
+     * Verrou des reconstructions de bandes des fichiers codés à effacement,
+     * faites l'une après l'autre.
+     */
+    private final ReentrantLock reconstructions = new ReentrantLock();
+
+    /**
+     * Écriture réservée dont le client n'a pas encore confirmé les répliques.
+     */
+    private static class Allocation {
+        private final String name;
+        private final int fragments;
+        private final int repFactor;
+
+        /**
+         * Date (en ms) à laquelle la réservation expire.
+         */
+        private final long expires;
+
+        private Allocation(String name, int fragments, int repFactor, long expires) {
+            this.name = name;
+            this.fragments = fragments;
+            this.repFactor = repFactor;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Écritures réservées en attente de leur COMMIT, par identifiant.
+     */
+    private final Map<Long, Allocation> allocations = new ConcurrentHashMap<>();
 
     /**
-     * Liste des fichiers.
+     * Prochain identifiant de réservation. Il part de la date de démarrage, pour
+     * qu'un client d'avant un redémarrage ne confirme pas la réservation d'un
+     * autre.
      */
-    private volatile Map<String, Map<Integer, Set<HdfsNodeInfo>>> files = new HashMap<>();
+    private final AtomicLong allocationIds = new AtomicLong(System.currentTimeMillis() << 16);
 
     /**
      * Initialise un noeud HDFS sur le port par défaut 51200.
@@ -65,16 +240,69 @@ public class HdfsNameServer {
     }
 
     /**
-     * Initialise un noeud HDFS
+     * Initialise un noeud HDFS avec le journal par défaut.
      */
     public HdfsNameServer(int port) {
+        this(port, DEFAULT_JOURNAL);
+    }
+
+    /**
+     * Initialise un noeud HDFS avec le délai de détection des pannes par défaut.
+     *
+     * @param port    Port du serveur
+     * @param journal Dossier du journal du catalogue, null pour le désactiver
+     */
+    public HdfsNameServer(int port, String journal) {
+        this(port, journal, HdfsFailureDetector.DEFAULT_DETECTION_TIME);
+    }
+
+    /**
+     * Initialise un noeud HDFS
+     *
+     * @param port          Port du serveur
+     * @param journal       Dossier du journal du catalogue, null pour le
+     *                      désactiver
+     * @param detectionTime Délai maximal (en ms) avant qu'un noeud silencieux
+     *                      soit déclaré mort
+     */
+    public HdfsNameServer(int port, String journal, long detectionTime) {
+        this(port, journal, detectionTime, new HdfsBalancedPlacement());
+    }
+
+    /**
+     * Initialise un noeud HDFS
+     *
+     * @param port          Port du serveur
+     * @param journal       Dossier du journal du catalogue, null pour le
+     *                      désactiver
+     * @param detectionTime Délai maximal (en ms) avant qu'un noeud silencieux
+     *                      soit déclaré mort
+     * @param placement     Politique de placement des répliques
+     */
+    public HdfsNameServer(int port, String journal, long detectionTime, HdfsPlacementPolicy placement) {
         System.out.println();
+        this.detector = new HdfsFailureDetector(detectionTime);
+        this.placement = placement;
+        // Les copies de réplication et de rééquilibrage partagent le même débit
+        HdfsThrottle throttle = new HdfsThrottle(HdfsThrottle.DEFAULT_BANDWIDTH);
+        this.rebalancer = new HdfsRebalancer(this, throttle);
         try {
-            this.server = new ServerSocket(port);
+            this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port));
             System.out.println("Initialisation :");
-            System.out.println("* Serveur principal lancé sur le port " + this.server.getLocalPort());
-            this.runPinger();
-            System.out.println("* Service de ping démarré");
+            System.out.println("* Serveur principal lancé sur le port " + this.server.socket().getLocalPort());
+            this.journal = journal == null ? null : new HdfsJournal(journal);
+            if (this.journal != null) {
+                this.recoverNamespace();
+            }
+            this.detector.start(this::nodeDied);
+            System.out.println("* Détecteur de pannes démarré (détection en " + detectionTime + " ms au plus)");
+            System.out.println("* Threads des requêtes : " + HdfsExecutors.getMode().name().toLowerCase());
+            new HdfsReplicationMonitor(this, throttle).start();
+            System.out.println("* Surveillance de la réplication démarrée");
+            this.rebalancer.start();
+            System.out.println("* Rééquilibrage périodique démarré");
+            this.startAllocationReaper();
+            System.out.println("* Expiration des écritures réservées démarrée");
             System.out.println("[Ctrl+C pour arrêter le serveur]");
             System.out.println();
             this.runListener();
@@ -86,74 +314,81 @@ public class HdfsNameServer {
     }
 
     /**
-     * Crée un thread qui vérifie que les noeuds sont actifs.
+     * Recharge le catalogue depuis le journal et lance l'écriture périodique des
+     * instantanés. Les fichiers sont lisibles immédiatement, sans attendre que
+     * les noeuds se réinscrivent.
      */
-    private void runPinger() {
-        new Thread(new Runnable() {
+    private void recoverNamespace() throws IOException {
+        this.namespace = this.journal.recover();
+        Set<HdfsNodeInfo> restored = this.namespace.getReplicaNodes();
+
+        Timer timer = new Timer("hdfs-journal", true);
+
+        // Oubli des noeuds qui ne sont pas revenus
+        timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                while (true) {
-                    HdfsNameServer.this.sendPings();
-                    try {
-                        Thread.sleep(PING_INTERVAL);
-                    } catch (InterruptedException e) {
+                for (HdfsNodeInfo node : restored) {
+                    if (HdfsNameServer.this.nodes.stream().noneMatch(n -> n.matches(node))) {
+                        System.err.println("Le noeud " + node + " ne s'est pas réinscrit, ses fragments sont oubliés.");
+                        HdfsNameServer.this.namespace.removeNode(node);
                     }
                 }
             }
-        }).start();
+        }, RECOVERY_DELAY);
+
+        // Instantanés périodiques
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                HdfsNameServer.this.checkpoint();
+            }
+        }, HdfsJournal.CHECKPOINT_INTERVAL, HdfsJournal.CHECKPOINT_INTERVAL);
     }
 
     /**
-     * Envoie un ping à tous les noeuds.
+     * Lance la suppression périodique des écritures réservées jamais confirmées.
      */
-    public void sendPings() {
-
-        // Nombre de noeuds supprimés
-        int removed = 0;
-
-        for (HdfsNodeInfo node : new HashSet<>(this.nodes)) {
-
-            try (Socket sock = new Socket(node.getHost(), node.getPort())) {
-
-                sock.setSoTimeout(1000);
-
-                // On envoie ping et on attend pong
-                ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-                outputStream.writeObject(HdfsAction.PING);
-
-                ObjectInputStream inputStream = new ObjectInputStream(sock.getInputStream());
-                expectPong(inputStream);
-
-            } catch (IOException | ClassNotFoundException e) {
-
-                System.err.println("Ping : noeud " + node + " déconnecté...");
-
-                this.removeNode(node);
-                removed++;
-
+    private void startAllocationReaper() {
+        new Timer("hdfs-allocations", true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<Long, Allocation> entry : HdfsNameServer.this.allocations.entrySet()) {
+                    Allocation allocation = entry.getValue();
+                    if (allocation.expires <= now
+                            && HdfsNameServer.this.allocations.remove(entry.getKey(), allocation)
+                            // Le nom a pu être supprimé puis réécrit entre temps
+                            && HdfsNameServer.this.namespace.getReplication(allocation.name) == 0) {
+                        System.err.println("Écriture réservée de " + allocation.name
+                                + " jamais confirmée, suppression des fragments envoyés.");
+                        HdfsNameServer.this.deleteFile(allocation.name);
+                    }
+                }
             }
+        }, ALLOCATION_TIMEOUT / 10, ALLOCATION_TIMEOUT / 10);
+    }
 
+    /**
+     * Écrit un instantané du catalogue si le journal a changé.
+     */
+    private void checkpoint() {
+        if (this.journal == null || !this.journal.hasChanges()) {
+            return;
         }
-
-        // S'il y a plus d'un noeud supprimé on affiche la liste des fichiers
-        if (removed > 0) {
-            this.printFiles();
+        try {
+            this.journal.checkpoint(this.namespace);
+        } catch (IOException e) {
+            System.err.println("Écriture de l'instantané impossible : " + e.getMessage());
         }
-
     }
 
     /**
-     * Attend un pong ou lance une exception.
-     *
-     * @param inputStream
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws SocketException
+     * Retire un noeud déclaré mort par le détecteur de pannes.
      */
-    private void expectPong(ObjectInputStream inputStream) throws IOException, ClassNotFoundException, SocketException {
-        if (inputStream.readObject() != HdfsAction.PONG) {
-            throw new SocketException();
-        }
+    private void nodeDied(HdfsNodeInfo node) {
+        this.removeNode(node);
+        this.printFiles();
     }
 
     /**
@@ -161,329 +396,1084 @@ public class HdfsNameServer {
      *
      * @param node Une adresse de la forme hdfs://adresse:port
      */
-    private void removeNode(HdfsNodeInfo node) {
+    void removeNode(HdfsNodeInfo node) {
 
         Set<HdfsNodeInfo> toRemove = this.nodes.stream().filter(n -> n.matches(node)).collect(Collectors.toSet());
         this.nodes.removeAll(toRemove);
+        for (HdfsNodeInfo removed : toRemove) {
+            this.pool.close(removed);
+        }
+        this.detector.remove(node);
+
+        this.namespace.removeNode(node);
+
+    }
+
+    /**
+     * Lance l'attente des requêtes entrantes. Les connexions sont lues par une
+     * boucle d'événements : les clients antérieurs au protocole binaire, reconnus
+     * à l'en-tête de la sérialisation Java, sont confiés à
+     * {@link HdfsLegacyHandler}, les autres gardent leur connexion ouverte pour y
+     * envoyer autant de requêtes qu'ils le souhaitent.
+     */
+    private void runListener() throws IOException {
+        HdfsEventLoop.RequestExecutors executors = new HdfsEventLoop.RequestExecutors() {
+            public ExecutorService forRequest(HdfsAction action) {
+                return HdfsNameServer.this.getExecutor(action);
+            }
 
-        for (Map<Integer, Set<HdfsNodeInfo>> map : this.files.values()) {
-            for (Set<HdfsNodeInfo> set : map.values()) {
-                set.removeAll(toRemove);
+            public ExecutorService forLegacy() {
+                return HdfsNameServer.this.transfers;
             }
+        };
+        this.eventLoop = new HdfsEventLoop(this.server, HdfsEventLoop.DEFAULT_IO_THREADS, executors,
+                this::handleRequest, (sock, input) -> new HdfsLegacyHandler(this).handleRequest(sock, input));
+        this.eventLoop.run();
+    }
+
+    /**
+     * @return L'exécuteur d'une requête selon son action
+     */
+    private ExecutorService getExecutor(HdfsAction action) {
+        if (action == HdfsAction.PING || action == HdfsAction.BLOCK_REPORT) {
+            return this.control;
+        } else if (action == HdfsAction.WRITE) {
+            return this.transfers;
         }
+        return this.workers;
+    }
 
+    /**
+     * Traite une requête reçue sur une connexion persistante.
+     *
+     * @param exchange Échange ouvert par la requête
+     * @param request  Message initial de la requête
+     */
+    private void handleRequest(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        HdfsAction action = request.getAction();
+
+        // On filtre l'action demandée
+        if (action == HdfsAction.PING) {
+            this.handlePing(exchange, request);
+        } else if (action == HdfsAction.WRITE) {
+            this.handleWrite(exchange, request);
+        } else if (action == HdfsAction.DELETE) {
+            this.handleDelete(exchange, request);
+        } else if (action == HdfsAction.NEW_NODE) {
+            this.handleNewNode(exchange, request);
+        } else if (action == HdfsAction.LIST_FRAGMENTS) {
+            this.handleListFragments(exchange, request);
+        } else if (action == HdfsAction.FORCE_RESCAN) {
+            this.handleForceRescan(exchange, request);
+        } else if (action == HdfsAction.LIST_NODES) {
+            this.handleListNodes(exchange, request);
+        } else if (action == HdfsAction.BLOCK_REPORT) {
+            this.handleBlockReport(exchange, request);
+        } else if (action == HdfsAction.PLACEMENT) {
+            this.handlePlacement(exchange, request);
+        } else if (action == HdfsAction.REBALANCE) {
+            this.handleRebalance(exchange, request);
+        } else if (action == HdfsAction.ALLOCATE) {
+            this.handleAllocate(exchange, request);
+        } else if (action == HdfsAction.COMMIT) {
+            this.handleCommit(exchange, request);
+        } else {
+            System.err.println("Action reçue invalide, requête annulée.");
+            exchange.sendError("Action invalide : " + action);
+        }
     }
 
     /**
-     * Lance l'attente des requêtes entrantes.
+     * Réceptionne un battement de coeur, accompagné de la charge du noeud. Si le
+     * noeud est connu, il est transmis au détecteur de pannes, sinon on demande au
+     * noeud de s'initialiser.
      */
-    private void runListener() {
-        ExecutorService executor = Executors.newCachedThreadPool();
+    private void handlePing(HdfsExchange exchange, HdfsMessage request) throws IOException {
+
+        String host = exchange.getRemoteHost();
+        int port = request.getInt();
+        Optional<HdfsNodeInfo> node = this.nodes.stream().filter(n -> n.matches(host, port)).findAny();
+
+        // Le noeud est-il connu ?
+        if (node.isPresent() && this.detector.heartbeat(node.get(), request.getNodeStats())) {
+            // On envoie pong
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
+        } else {
+            // On informe le noeud qu'il n'est pas initialisé
+            System.err.println("Ping reçu d'un noeud inconnu.");
+            exchange.send(new HdfsMessage(HdfsAction.UNKNOWN_NODE));
+        }
 
-        while (true) {
-            try {
+    }
 
-                Socket sock = this.server.accept();
-                executor.submit(new Runnable() {
-                    public void run() {
-                        HdfsNameServer.this.handleRequest(sock);
-                    }
-                });
+    /**
+     * Applique le rapport incrémental d'un noeud : fragments écrits et fragments
+     * disparus depuis son rapport précédent. Si le noeud est inconnu, on lui
+     * demande de s'initialiser avec un rapport complet.
+     */
+    private void handleBlockReport(HdfsExchange exchange, HdfsMessage request) throws IOException {
 
-            } catch (IOException e) {
-                System.err.println("Une connexion en erreur a été ignorée.");
-            }
+        String host = exchange.getRemoteHost();
+        int port = request.getInt();
+        Optional<HdfsNodeInfo> node = this.nodes.stream().filter(n -> n.matches(host, port)).findAny();
+
+        if (node.isEmpty()) {
+            exchange.send(new HdfsMessage(HdfsAction.UNKNOWN_NODE));
+            return;
         }
+
+        this.namespace.update(node.get(), request.getFragmentMap(), request.getFragmentMap());
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
+
     }
 
     /**
-     * On traite les chaussettes ouvertes.
+     * Récupère un fragment depuis l'un des noeuds qui le possèdent. Les clients à
+     * jour lisent directement sur les noeuds, ce relais ne sert qu'aux anciens
+     * clients.
+     *
+     * Le fragment est recopié par trames au fur et à mesure de sa réception,
+     * sans être gardé en mémoire. Un autre noeud n'est essayé que si rien n'a
+     * encore été écrit.
      *
-     * @param sock         Socket connectée
-     * @param inputStream  Flux d'objets entrants
-     * @param outputStream Flux d'objets sortants
+     * @param name     Nom du fichier
+     * @param fragment Numéro du fragment
+     * @param size     Taille du fragment décompressé
+     * @param output   Flux dans lequel écrire le fragment
+     * @return false si aucun noeud n'a pu fournir le fragment
+     * @throws IOException Si l'écriture dans le flux échoue
      */
-    private void handleRequest(Socket sock) {
-        try (ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(sock.getInputStream()))) {
-            HdfsAction action = (HdfsAction) inputStream.readObject();
+    boolean readFragment(String name, int fragment, long size, OutputStream output) throws IOException {
 
-            // On filtre l'action demandée
-            if (action == HdfsAction.PING) {
-                this.handlePing(sock, inputStream);
-            } else if (action == HdfsAction.READ) {
-                this.handleRead(sock, inputStream);
-            } else if (action == HdfsAction.WRITE) {
-                this.handleWrite(sock, inputStream);
-            } else if (action == HdfsAction.DELETE) {
-                this.handleDelete(sock, inputStream);
-            } else if (action == HdfsAction.NEW_NODE) {
-                this.handleNewNode(sock, inputStream);
-            } else if (action == HdfsAction.LIST_FRAGMENTS) {
-                this.handleListFragments(sock, inputStream);
-            } else if (action == HdfsAction.FORCE_RESCAN) {
-                this.handleForceRescan(sock, inputStream);
-            } else if (action == HdfsAction.LIST_NODES) {
-                this.handleListNodes(sock, inputStream);
-            } else {
-                System.err.println("Action reçue invalide, connexion annulée.");
+        byte[] chunk = new byte[HdfsConnection.CHUNK_SIZE];
+        for (HdfsNodeInfo node : this.namespace.getReplicas(name, fragment)) {
+
+            long written = 0;
+            try (HdfsExchange nodeExchange = this.pool.open(node)) {
+
+                nodeExchange.send(new HdfsMessage(HdfsAction.READ).putString(name).putInt(fragment));
+                nodeExchange.receive(HdfsAction.PONG);
+
+                // Les anciens clients reçoivent le fragment décompressé
+                InputStream data = nodeExchange.dataInputStream();
+                try (InputStream input = this.namespace.getCodec(name) == null ? data : HdfsCompression.open(data)) {
+                    int n;
+                    while ((n = input.read(chunk)) >= 0) {
+                        if (written + n > size) {
+                            throw new SocketException("Fragment plus long que prévu");
+                        }
+                        try {
+                            output.write(chunk, 0, n);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        written += n;
+                    }
+                }
+
+                if (written != size) {
+                    throw new SocketException("Incomplete payload");
+                }
+                return true;
+
+            } catch (IOException | HdfsRuntimeException e) {
+                System.err.println("Un noeud a été déconnecté pendant le transfert.");
+                removeNode(node);
+                if (written > 0) {
+                    return false;
+                }
+            } catch (UncheckedIOException e) {
+                // Le client est parti
+                throw e.getCause();
             }
 
-        } catch (ClassNotFoundException | IOException e) {
-            System.err.println("Données invalides, connexion annulée.");
         }
+
+        return false;
     }
 
     /**
-     * Réceptionne un ping. Si le noeud est connu, rien ne change, sinon on demande
-     * au noeud de s'initialiser.
+     * Traite une requête d'écriture.
      */
-    private void handlePing(Socket sock, ObjectInputStream inputStream) {
+    private void handleWrite(HdfsExchange exchange, HdfsMessage request) {
 
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream())) {
+        String name = null;
+
+        try {
+
+            name = request.getString();
+            int repFactor = request.getInt();
+            String codec = request.hasRemaining() ? request.getString() : null;
+            if (codec != null && codec.isEmpty()) {
+                codec = null;
+            }
+            String erasure = request.hasRemaining() ? request.getString() : null;
 
-            String host = sock.getInetAddress().getHostAddress();
-            int port = (Integer) inputStream.readObject();
+            System.out.println("Réception du fichier " + name + " ("
+                    + (erasure == null ? "rep=" + repFactor : erasure) + (codec == null ? "" : ", " + codec) + ")");
 
-            // Le noeud est-il connu ?
-            if (this.nodes.stream().anyMatch(node -> node.matches(host, port))) {
-                // On envoie pong
-                outputStream.writeObject(HdfsAction.PONG);
-            } else {
-                // On informe le noeud qu'il n'est pas initialisé
-                System.err.println("Ping reçu d'un noeud inconnu.");
-                outputStream.writeObject(HdfsAction.UNKNOWN_NODE);
+            // Vérification de la requête
+            String error = this.checkWriteRequest(name, repFactor, codec, erasure);
+            if (error != null) {
+                // Le nom n'est pas réservé par cette requête
+                name = null;
+                exchange.sendError(error);
+                return;
             }
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
+
+            try (InputStream input = exchange.dataInputStream()) {
+                this.receiveFile(name, repFactor, input);
+            }
+
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
 
         } catch (IOException e) {
-        } catch (ClassNotFoundException e) {
+            System.err.println("Connexion perdue avec le client, suppression des fragments envoyés.");
+            if (name != null) {
+                this.deleteFile(name);
+            }
+        } catch (HdfsRuntimeException e) {
+            System.err.println("Écriture de " + name + " interrompue (" + e.getMessage()
+                    + "), suppression des fragments envoyés.");
+            if (name != null) {
+                this.deleteFile(name);
+            }
+            try {
+                exchange.sendError("Écriture interrompue : " + e.getMessage());
+            } catch (IOException ignored) {
+                // Le client est déjà parti
+            }
         }
 
     }
 
     /**
-     * Traite une requête de lecture.
+     * Traite une écriture dont le client a lui-même découpé le fichier : seuls
+     * les métadonnées passent par le NameServer, les fragments étant envoyés
+     * directement aux noeuds.
+     *
+     * Le nom est réservé, les fragments enregistrés avec leur taille et une
+     * chaîne de noeuds est choisie pour chacun. La réponse donne aussi
+     * l'identifiant de la réservation, que le client confirme par une requête
+     * COMMIT une fois les fragments envoyés (voir {@link #handleCommit}). Une
+     * réservation qui n'est pas confirmée à temps est supprimée.
      */
-    private void handleRead(Socket sock, ObjectInputStream inputStream) {
+    private void handleAllocate(HdfsExchange exchange, HdfsMessage request) throws IOException {
 
-        try (ObjectOutputStream clientOutputStream = new ObjectOutputStream(
-                new BufferedOutputStream(sock.getOutputStream()))) {
+        String name = null;
+        long id = 0;
 
-            String name = (String) inputStream.readObject();
+        try {
 
-            if (!this.isFileComplete(name)) {
-                clientOutputStream.writeObject(new HdfsRuntimeException("Fichier inexistant ou incomplet"));
+            String fileName = request.getString();
+            int repFactor = request.getInt();
+            String codec = request.getString();
+            long[] sizes = new long[request.getInt()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = request.getLong();
+            }
+
+            System.out.println("Réservation du fichier " + fileName + " (rep=" + repFactor
+                    + (codec == null ? "" : ", " + codec) + ", " + sizes.length + " fragments)");
+
+            // Vérification de la requête
+            String error = this.checkWriteRequest(fileName, repFactor, codec, null);
+            if (error != null) {
+                exchange.sendError(error);
                 return;
             }
+            name = fileName;
 
-            clientOutputStream.writeObject(null);
-            clientOutputStream.flush();
+            if (sizes.length == 0) {
+                // Fichier vide : aucun fragment à enregistrer, rien à confirmer
+                this.namespace.remove(name);
+                exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(0).putInt(0));
+                return;
+            }
 
-            Map<Integer, Set<HdfsNodeInfo>> file = this.files.get(name);
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+            long total = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                this.namespace.addFragment(name, i, sizes[i]);
+                total += sizes[i];
+            }
+            List<List<HdfsNodeInfo>> placement = this.choosePlacement(name, sizes.length, repFactor);
 
-            clientOutputStream.writeInt(file.size());
-            clientOutputStream.flush();
+            id = this.allocationIds.incrementAndGet();
+            long expires = System.currentTimeMillis() + ALLOCATION_TIMEOUT + total / MIN_UPLOAD_RATE * 1000;
+            this.allocations.put(id, new Allocation(name, sizes.length, repFactor, expires));
 
-            for (int fragment = 0, number_of_fragments = file.size(); fragment < number_of_fragments; fragment++) {
+            HdfsMessage response = new HdfsMessage(HdfsAction.PONG).putLong(id).putInt(placement.size());
+            for (List<HdfsNodeInfo> chain : placement) {
+                response.putNodes(chain);
+            }
+            exchange.send(response);
 
-                for (HdfsNodeInfo node : new HashSet<>(this.files.get(name).get(fragment))) {
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Réservation interrompue (" + e.getMessage() + "), suppression du fichier.");
+            this.allocations.remove(id);
+            if (name != null) {
+                this.deleteFile(name);
+            }
+        }
 
-                    buffer.reset();
-                    try (Socket nodeSock = new Socket(node.getHost(), node.getPort());
-                            ObjectOutputStream nodeOutputStream = new ObjectOutputStream(
-                                    new BufferedOutputStream(nodeSock.getOutputStream()))) {
+    }
 
-                        nodeOutputStream.flush();
-                        nodeOutputStream.writeObject(HdfsAction.READ);
-                        nodeOutputStream.writeObject(name);
-                        nodeOutputStream.writeObject(fragment);
-                        nodeOutputStream.flush();
+    /**
+     * Termine une écriture réservée : la requête donne l'identifiant de la
+     * réservation, suivi des noeuds qui ont enregistré chaque fragment. Sans
+     * noeuds, le client abandonne l'écriture et le fichier est supprimé.
+     *
+     * La requête est entièrement lue avant que la réservation ne soit retirée :
+     * une requête mal formée supprime le fichier au lieu de le laisser réservé
+     * sans réplication.
+     */
+    private void handleCommit(HdfsExchange exchange, HdfsMessage request) throws IOException {
 
-                        ObjectInputStream input = new ObjectInputStream(
-                                new BufferedInputStream(nodeSock.getInputStream()));
-                        long size = input.readLong();
-                        input.transferTo(buffer);
+        long id = request.getLong();
+        Allocation allocation = this.allocations.get(id);
+        if (allocation == null) {
+            exchange.sendError("Réservation inconnue ou expirée");
+            return;
+        }
 
-                        if (size != buffer.size()) {
-                            throw new SocketException("Incomplete payload");
-                        }
+        if (!request.hasRemaining()) {
+            if (this.allocations.remove(id, allocation)) {
+                System.err.println("Écriture de " + allocation.name
+                        + " abandonnée par le client, suppression des fragments envoyés.");
+                this.deleteFile(allocation.name);
+            }
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
+            return;
+        }
 
-                        nodeOutputStream.writeObject(HdfsAction.PONG);
-                        nodeOutputStream.flush();
-                        nodeSock.shutdownOutput();
-                        break;
+        // Répliques enregistrées de chaque fragment, limitées aux noeuds connus
+        List<List<HdfsNodeInfo>> replicas = new ArrayList<>(allocation.fragments);
+        try {
+            for (int i = 0; i < allocation.fragments; i++) {
+                List<HdfsNodeInfo> stored = request.getNodes();
+                if (stored.isEmpty()) {
+                    throw new HdfsRuntimeException("aucune réplique du fragment " + i);
+                }
+                List<HdfsNodeInfo> known = new ArrayList<>();
+                for (HdfsNodeInfo node : stored) {
+                    this.nodes.stream().filter(n -> n.matches(node)).findAny().ifPresent(known::add);
+                }
+                replicas.add(known);
+            }
+        } catch (RuntimeException e) {
+            // Requête tronquée ou mal formée
+            String reason = e instanceof HdfsRuntimeException ? e.getMessage() : "requête tronquée";
+            if (this.allocations.remove(id, allocation)) {
+                System.err.println("Confirmation invalide de " + allocation.name + " (" + reason
+                        + "), suppression des fragments envoyés.");
+                this.deleteFile(allocation.name);
+            }
+            exchange.sendError("Confirmation invalide : " + reason);
+            return;
+        }
+
+        if (!this.allocations.remove(id, allocation)) {
+            // Expirée pendant la lecture de la requête
+            exchange.sendError("Réservation inconnue ou expirée");
+            return;
+        }
+        for (int i = 0; i < replicas.size(); i++) {
+            if (!replicas.get(i).isEmpty()) {
+                this.namespace.addReplicas(allocation.name, i, replicas.get(i));
+            }
+        }
+
+        // Fichier complet : sa réplication est désormais surveillée
+        this.namespace.setReplication(allocation.name, allocation.repFactor);
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
+
+    }
+
+    /**
+     * Vérifie qu'une écriture est possible, et réserve le nom du fichier si c'est
+     * le cas.
+     *
+     * @param codec   Nom du codec de compression des fragments, null pour ne pas
+     *                compresser
+     * @param erasure Nom du codage à effacement, null pour répliquer les
+     *                fragments. Le facteur de réplication doit alors valoir 1.
+     * @return Le message d'erreur, null si la requête est valide
+     */
+    String checkWriteRequest(String name, int repFactor, String codec, String erasure) {
+        HdfsReedSolomon scheme = HdfsReedSolomon.forName(erasure);
+        if (erasure != null && scheme == null) {
+            return "Codage à effacement " + erasure + " inconnu";
+        } else if (scheme != null && repFactor != 1) {
+            return "Un fichier codé à effacement n'est pas répliqué";
+        } else if (scheme != null && this.nodes.size() < scheme.getStripeWidth()) {
+            return "Il y a " + this.nodes.size() + " noeuds connectés, le codage " + erasure + " en demande "
+                    + scheme.getStripeWidth();
+        } else if (this.nodes.size() < repFactor) {
+            return "Il y a " + this.nodes.size() + " noeuds connectés, facteur de réplication " + repFactor
+                    + " trop grand";
+        } else if (repFactor <= 0) {
+            return "facteur de réplication " + repFactor + " <= 0";
+        } else if (codec != null && HdfsCompression.forName(codec) == null) {
+            return "Codec de compression " + codec + " inconnu";
+        } else if (!this.namespace.create(name, codec, erasure)) {
+            return "Le fichier " + name + " existe déjà";
+        }
+        return null;
+    }
 
+    /**
+     * Découpe un fichier reçu en fragments alignés sur les fins de ligne et les
+     * envoie aux noeuds.
+     *
+     * La lecture et le découpage se font dans le thread appelant, pendant que
+     * {@link #SENDERS} threads envoient les fragments déjà découpés : la réception
+     * du fichier ne s'interrompt pas pendant les envois.
+     *
+     * Pour un fichier codé à effacement, chaque fragment envoyé est ajouté à la
+     * parité de sa bande, envoyée dès que la bande est complète.
+     *
+     * @param name       Nom du fichier
+     * @param repFactor  Facteur de réplication
+     * @param inputStream Contenu du fichier
+     */
+    void receiveFile(String name, int repFactor, InputStream inputStream) throws IOException {
+
+        BlockingQueue<FragmentBuffer> queue = new ArrayBlockingQueue<>(SENDERS);
+        Map<HdfsNodeInfo, Integer> placed = new HashMap<>();
+        HdfsCodec codec = HdfsCompression.forName(this.namespace.getCodec(name));
+        HdfsReedSolomon erasure = HdfsReedSolomon.forName(this.namespace.getErasure(name));
+        HdfsStripeEncoder encoder = erasure == null ? null : new HdfsStripeEncoder(erasure);
+        List<Future<?>> senders = new ArrayList<>(SENDERS);
+        for (int i = 0; i < SENDERS; i++) {
+            senders.add(this.executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        FragmentBuffer fragment;
+                        while ((fragment = queue.take()) != FragmentBuffer.END) {
+                            try {
+                                FragmentContent content = codec == null ? fragment
+                                        : fragment.compressed(codec);
+                                if (encoder == null) {
+                                    HdfsNameServer.this.sendFragment(name, fragment.id, fragment.lastPart,
+                                            fragment.size(), content, repFactor, placed, null);
+                                } else {
+                                    HdfsNameServer.this.sendStripeFragment(name, fragment, content, encoder,
+                                            placed);
+                                }
+                            } finally {
+                                fragment.release(HdfsNameServer.this.buffers);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     } catch (IOException e) {
-                        System.err.println("Un noeud a été déconnecté pendant le transfert.");
-                        removeNode(node);
-                        buffer.reset();
+                        throw new HdfsRuntimeException(e);
                     }
-
                 }
+            }));
+        }
 
-                if (buffer.size() == 0) {
-                    System.err.println("Impossible d'obtenir le fragment " + fragment + ", aucun noeud disponible.");
-                    clientOutputStream.writeInt(-1);
-                    clientOutputStream.flush();
-                    sock.close();
-                    return;
+        int fragments = 0;
+        try {
+            fragments = this.splitFile(inputStream, queue, senders);
+            if (fragments == 0) {
+                // Fichier vide : aucun fragment à enregistrer
+                this.namespace.remove(name);
+            }
+        } finally {
+            try {
+                for (int i = 0; i < SENDERS; i++) {
+                    transmit(queue, FragmentBuffer.END, senders, i);
+                }
+                for (Future<?> sender : senders) {
+                    sender.get();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.abortSenders(queue, senders);
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                this.abortSenders(queue, senders);
+                throw new HdfsRuntimeException(e.getCause());
+            } catch (HdfsRuntimeException e) {
+                this.abortSenders(queue, senders);
+                throw e;
+            }
+        }
 
-                System.out.println(buffer.size());
+        // Fichier complet : sa réplication est désormais surveillée
+        if (fragments > 0) {
+            this.namespace.setReplication(name, repFactor);
+        }
 
-                clientOutputStream.writeInt(buffer.size());
-                buffer.writeTo(clientOutputStream);
-                clientOutputStream.flush();
+    }
 
+    /**
+     * Transmet un fragment découpé aux envois. Un envoi qui a échoué ne retire
+     * plus rien de la file : l'écriture est abandonnée au lieu d'attendre
+     * indéfiniment qu'une place se libère.
+     *
+     * @param ended Nombre de fins du découpage déjà transmises
+     * @throws HdfsRuntimeException Si un envoi s'est arrêté avant la fin du
+     *                              fichier
+     */
+    private static void transmit(BlockingQueue<FragmentBuffer> queue, FragmentBuffer fragment,
+            List<Future<?>> senders, int ended) throws InterruptedException {
+        checkSenders(senders, ended);
+        while (!queue.offer(fragment, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            checkSenders(senders, ended);
+        }
+    }
+
+    /**
+     * Chaque fin du découpage transmise arrête un envoi : seuls les envois
+     * terminés au-delà de ce nombre se sont arrêtés trop tôt.
+     *
+     * @param ended Nombre de fins du découpage déjà transmises
+     * @throws HdfsRuntimeException Si un envoi a échoué, ou s'est arrêté avant
+     *                              d'avoir reçu la fin du découpage
+     */
+    private static void checkSenders(List<Future<?>> senders, int ended) throws InterruptedException {
+        int done = 0;
+        for (Future<?> sender : senders) {
+            if (sender.isDone()) {
+                try {
+                    sender.get();
+                } catch (ExecutionException e) {
+                    throw new HdfsRuntimeException(e.getCause());
+                } catch (CancellationException e) {
+                    throw new HdfsRuntimeException("Envoi des fragments interrompu");
+                }
+                done++;
             }
+        }
+        if (done > ended) {
+            throw new HdfsRuntimeException("Envoi des fragments interrompu");
+        }
+    }
 
-            clientOutputStream.writeInt(0);
-            clientOutputStream.flush();
+    /**
+     * Arrête les envois d'une écriture abandonnée et rend les buffers des
+     * fragments qu'ils n'ont pas retirés de la file.
+     */
+    private void abortSenders(BlockingQueue<FragmentBuffer> queue, List<Future<?>> senders) {
+        for (Future<?> sender : senders) {
+            sender.cancel(true);
+        }
+        FragmentBuffer fragment;
+        while ((fragment = queue.poll()) != null) {
+            if (fragment != FragmentBuffer.END) {
+                fragment.release(this.buffers);
+            }
+        }
+        // Réveille un envoi qui n'aurait pas vu son interruption
+        for (int i = 0; i < senders.size(); i++) {
+            queue.offer(FragmentBuffer.END);
+        }
+    }
 
-            sock.shutdownOutput();
-            expectPong(inputStream);
+    /**
+     * Envoie un fragment d'un fichier codé à effacement, sur un noeud qui n'a
+     * aucun autre fragment de sa bande, puis l'ajoute à la parité de la bande.
+     * Les fragments de parité sont envoyés par le thread qui complète la bande.
+     */
+    private void sendStripeFragment(String name, FragmentBuffer fragment, FragmentContent content,
+            HdfsStripeEncoder encoder, Map<HdfsNodeInfo, Integer> placed) throws IOException {
 
-        } catch (IOException e) {
-            System.err.println("Client déconnecté avant la fin de la lecture, lecture annulée.");
-        } catch (ClassNotFoundException e) {
+        HdfsStripeEncoder.Stripe stripe = encoder.getStripe(fragment.id);
+        this.sendFragment(name, fragment.id, fragment.lastPart, fragment.size(), content, 1, placed,
+                stripe.nodes);
+
+        byte[] data = fragment.toByteArray();
+        if (encoder.add(fragment.id, fragment.lastPart, data, data.length) == null) {
+            return;
+        }
+
+        HdfsReedSolomon scheme = encoder.getScheme();
+        for (int j = 0; j < scheme.getParityFragments(); j++) {
+            ByteArrayOutputStream parity = new ByteArrayOutputStream(stripe.getLength());
+            parity.write(stripe.getParity(j), 0, stripe.getLength());
+            this.sendFragment(name, scheme.getId(stripe.index, scheme.getDataFragments() + j), true,
+                    stripe.getLength(), FragmentContent.of(parity), 1, placed, stripe.nodes);
         }
+
     }
 
     /**
-     * Traite une requête d'écriture.
+     * Contenu d'un fragment, qui peut être envoyé plusieurs fois si un noeud
+     * échoue.
+     */
+    private interface FragmentContent {
+
+        /**
+         * Envoie le contenu en trames DATA, suivies de la trame END.
+         */
+        void sendTo(HdfsExchange exchange) throws IOException;
+
+        static FragmentContent of(ByteArrayOutputStream bytes) {
+            return exchange -> {
+                try (OutputStream output = exchange.dataOutputStream()) {
+                    // Pas de writeTo, qui garde le moniteur du flux pendant l'écriture
+                    // sur la socket : toByteArray ne le garde que le temps de la copie.
+                    output.write(bytes.toByteArray());
+                }
+            };
+        }
+    }
+
+    /**
+     * Fragment découpé en attente d'envoi.
      *
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * Ses BUFFER_SIZE premiers octets sont dans un buffer de la réserve ; la fin
+     * de sa dernière ligne, s'il la dépasse, est écrite dans un fichier
+     * temporaire, pour que la mémoire d'un fragment ne dépende pas de sa taille.
+     * Le fichier ne vient pas de la réserve : un découpage qui attendrait un
+     * second buffer pourrait bloquer les autres. Le tout est à rendre avec
+     * {@link #release} une fois le fragment envoyé.
      */
-    private void handleWrite(Socket sock, ObjectInputStream inputStream) {
+    private static class FragmentBuffer implements FragmentContent {
+
+        /**
+         * Marqueur de fin du découpage.
+         */
+        private static final FragmentBuffer END = new FragmentBuffer(-1, null);
+
+        private final int id;
+        private final ByteBuffer bytes;
+        private FileChannel overflow = null;
+        private int overflowSize = 0;
+        private boolean lastPart = false;
+
+        private FragmentBuffer(int id, ByteBuffer bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
 
-        String name = null;
+        private void write(byte[] b, int off, int len) throws IOException {
+            int n = Math.min(len, this.bytes.remaining());
+            this.bytes.put(b, off, n);
+            if (n < len) {
+                if (this.overflow == null) {
+                    this.overflow = FileChannel.open(Files.createTempFile("hdfs-fragment-", ".part"),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                ByteBuffer rest = ByteBuffer.wrap(b, off + n, len - n);
+                while (rest.hasRemaining()) {
+                    this.overflowSize += this.overflow.write(rest, this.overflowSize);
+                }
+            }
+        }
 
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(
-                new BufferedOutputStream(sock.getOutputStream()))) {
+        private int size() {
+            return this.bytes.position() + this.overflowSize;
+        }
 
-            name = (String) inputStream.readObject();
-            int repFactor = inputStream.readInt();
+        /**
+         * @return Une copie du contenu du fragment
+         */
+        private byte[] toByteArray() throws IOException {
+            byte[] data = new byte[this.size()];
+            this.bytes.duplicate().flip().get(data, 0, this.bytes.position());
+            if (this.overflow != null) {
+                try (InputStream input = this.openOverflow()) {
+                    input.readNBytes(data, this.bytes.position(), this.overflowSize);
+                }
+            }
+            return data;
+        }
 
-            System.out.println("Réception du fichier " + name + " (rep=" + repFactor + ")");
+        /**
+         * @return Le contenu du fragment en lecture
+         */
+        private InputStream open() {
+            ByteBuffer data = this.bytes.duplicate().flip();
+            InputStream head = new InputStream() {
+                @Override
+                public int read() {
+                    return data.hasRemaining() ? data.get() & 0xFF : -1;
+                }
 
-            // Vérification de la requête
-            if (this.nodes.size() < repFactor) {
-                outputStream.writeObject(new HdfsRuntimeException("Il y a " + this.nodes.size()
-                        + " noeuds connectés, facteur de réplication " + repFactor + " trop grand"));
-                outputStream.flush();
-                return;
-            } else if (repFactor <= 0) {
-                outputStream.writeObject(new HdfsRuntimeException("facteur de réplication " + repFactor + " <= 0"));
-                outputStream.flush();
-            } else if (this.files.containsKey(name)) {
-                outputStream.writeObject(new HdfsRuntimeException("Le fichier " + name + " existe déjà"));
-                outputStream.flush();
-            }
-            outputStream.writeObject(null);
-            outputStream.flush();
-
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
-
-            int fragment = 0;
-            int input;
-
-            int nextByte = inputStream.read();
-
-            while (nextByte >= 0) {
-                buffer.reset();
-                buffer.write(nextByte);
-                buffer.write(inputStream.readNBytes(BUFFER_SIZE));
-                while ((input = inputStream.read()) != -1) {
-                    buffer.write(input);
-                    if ((char) input == '\n') {
-                        break;
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len > 0 && !data.hasRemaining()) {
+                        return -1;
                     }
+                    int n = Math.min(len, data.remaining());
+                    data.get(b, off, n);
+                    return n;
                 }
+            };
+            return this.overflow == null ? head : new SequenceInputStream(head, this.openOverflow());
+        }
+
+        /**
+         * @return La fin du fragment en lecture, sans fermer le fichier temporaire
+         *         à la fin de la lecture
+         */
+        private InputStream openOverflow() {
+            return HdfsClient.openRange(this.overflow, 0, this.overflowSize);
+        }
 
-                nextByte = inputStream.read();
+        @Override
+        public void sendTo(HdfsExchange exchange) throws IOException {
+            exchange.sendBuffer(this.bytes.duplicate().flip());
+            if (this.overflow != null) {
+                exchange.sendFile(this.overflow, 0, this.overflowSize);
+            }
+            exchange.send(new HdfsMessage(HdfsAction.END));
+        }
 
-                sendFragment(name, fragment, nextByte < 0, buffer, repFactor);
+        /**
+         * @return Le fragment compressé à la volée à chaque envoi, sans être
+         *         gardé en mémoire
+         */
+        private FragmentContent compressed(HdfsCodec codec) {
+            return exchange -> {
+                try (OutputStream output = exchange.dataOutputStream(); InputStream input = this.open()) {
+                    HdfsCompression.compress(codec, input, this.size(), output);
+                }
+            };
+        }
 
-                fragment++;
+        /**
+         * Rend le buffer du fragment à la réserve et supprime son fichier
+         * temporaire.
+         */
+        private void release(HdfsBufferPool pool) {
+            pool.release(this.bytes);
+            if (this.overflow != null) {
+                try {
+                    this.overflow.close();
+                } catch (IOException e) {
+                    System.err.println("Fichier temporaire d'un fragment : " + e.getMessage());
+                }
             }
+        }
+    }
 
-            outputStream.writeObject(HdfsAction.PONG);
-            outputStream.flush();
+    /**
+     * Lit le fichier par blocs et le découpe en fragments d'au moins BUFFER_SIZE
+     * octets terminés par une fin de ligne.
+     *
+     * Un fragment n'est transmis qu'une fois le suivant commencé, pour savoir s'il
+     * est le dernier.
+     *
+     * @param senders Envois qui retirent les fragments de la file
+     * @return Le nombre de fragments
+     * @throws HdfsRuntimeException Si un envoi a échoué
+     */
+    private int splitFile(InputStream inputStream, BlockingQueue<FragmentBuffer> queue, List<Future<?>> senders)
+            throws IOException {
 
-        } catch (IOException e) {
-            System.err.println("Connexion perdue avec le client, suppression des fragments envoyés.");
-            if (name != null) {
-                this.deleteFile(name);
+        byte[] chunk = new byte[HdfsConnection.CHUNK_SIZE];
+        FragmentBuffer buffer = null;
+        FragmentBuffer pending = null;
+        int fragment = 0;
+
+        try {
+            int n;
+            while ((n = inputStream.read(chunk)) >= 0) {
+                int start = 0;
+                while (start < n) {
+                    if (buffer == null) {
+                        // Le fragment précédent n'est pas le dernier : il est transmis
+                        // avant d'attendre un buffer, que seuls les envois rendent
+                        if (pending != null) {
+                            transmit(queue, pending, senders, 0);
+                            pending = null;
+                        }
+                        buffer = new FragmentBuffer(fragment++, this.buffers.acquire());
+                    }
+
+                    if (buffer.size() < BUFFER_SIZE) {
+                        // Remplissage du fragment sans chercher de fin de ligne
+                        int length = Math.min(n - start, BUFFER_SIZE - buffer.size());
+                        buffer.write(chunk, start, length);
+                        start += length;
+                        continue;
+                    }
+
+                    // Recherche de la fin de la ligne en cours, sans dépasser
+                    // MAX_FRAGMENT_SIZE
+                    int room = MAX_FRAGMENT_SIZE - buffer.size();
+                    int limit = start + Math.min(n - start, room);
+                    int end = start;
+                    while (end < limit && chunk[end] != '\n') {
+                        end++;
+                    }
+                    if (end < limit) {
+                        end++;
+                    } else if (n - start < room) {
+                        buffer.write(chunk, start, n - start);
+                        break;
+                    }
+                    buffer.write(chunk, start, end - start);
+                    start = end;
+
+                    pending = buffer;
+                    buffer = null;
+                }
+            }
+
+            if (buffer != null) {
+                pending = buffer;
+                buffer = null;
+            }
+            if (pending != null) {
+                pending.lastPart = true;
+                transmit(queue, pending, senders, 0);
+                pending = null;
+            }
+            return fragment;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            // Fragments abandonnés, jamais transmis aux envois
+            if (buffer != null) {
+                buffer.release(this.buffers);
+            }
+            if (pending != null) {
+                pending.release(this.buffers);
             }
-        } catch (ClassNotFoundException e) {
         }
 
     }
 
     /**
-     * Envoie un fragment au noeud
+     * Envoie un fragment aux noeuds. Le fragment n'est transmis qu'une fois, au
+     * premier noeud d'une chaîne de repFactor noeuds : chaque noeud l'écrit tout
+     * en le retransmettant au suivant, et répond avec le nombre de noeuds de la
+     * chaîne qui l'ont enregistré.
      *
      * @param fragment
      * @param lastPart
-     * @param buffer
+     * @param size     Taille du fragment avant compression
+     * @param content  Fragment tel qu'il est stocké, éventuellement compressé
+     * @param placed   Nombre de fragments du fichier déjà placés sur chaque noeud,
+     *                 partagé par les envois du fichier
+     * @param stripe   Noeuds exclus, qui possèdent déjà un fragment de la même
+     *                 bande, complété par les noeuds choisis. null pour un
+     *                 fichier répliqué.
      */
-    private void sendFragment(String fileName, int fragment, boolean lastPart, ByteArrayOutputStream bytes,
-            int repFactor) {
+    private void sendFragment(String fileName, int fragment, boolean lastPart, long size,
+            FragmentContent content, int repFactor, Map<HdfsNodeInfo, Integer> placed,
+            Set<HdfsNodeInfo> stripe) {
+
+        this.namespace.addFragment(fileName, fragment, size);
+        // Seuls les fragments de données d'un fichier compressé le sont, pas la parité
+        boolean compressed = fragment >= 0 && this.namespace.getCodec(fileName) != null;
+
+        // Placement, compté dès le choix pour que les envois simultanés se répartissent
+        List<HdfsNodeInfo> candidates;
+        synchronized (placed) {
+            List<HdfsNodeInfo> nodes = new ArrayList<>(this.nodes);
+            if (stripe != null) {
+                nodes.removeIf(node -> stripe.stream().anyMatch(used -> used.matches(node)));
+            }
+            candidates = this.rankNodes(fileName, nodes, placed);
+            for (HdfsNodeInfo node : candidates.subList(0, Math.min(repFactor, candidates.size()))) {
+                placed.merge(node, 1, Integer::sum);
+                if (stripe != null) {
+                    stripe.add(node);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        // Envoi au premier noeud d'une chaîne, qui transmet aux suivants
+        int next = 0;
+        while (repFactor > 0 && next < candidates.size()) {
+
+            List<HdfsNodeInfo> chain = candidates.subList(next, Math.min(next + repFactor, candidates.size()));
+            HdfsNodeInfo head = chain.get(0);
+            int stored = 0;
+
+            try (HdfsExchange exchange = this.pool.open(head)) {
 
-        if (!this.files.containsKey(fileName))
-            this.files.put(fileName, new HashMap<>());
-        this.files.get(fileName).put(fragment, new HashSet<>());
+                exchange.setTimeout(1000 * chain.size());
 
-        // Permutation
-        List<HdfsNodeInfo> permutation = new ArrayList<>(nodes);
-        permutation.addAll(nodes);
-        int startIndex = fragment % nodes.size();
+                exchange.send(new HdfsMessage(HdfsAction.WRITE).putString(fileName).putInt(fragment)
+                        .putBoolean(lastPart).putNodes(chain.subList(1, chain.size())).putBoolean(compressed));
+                content.sendTo(exchange);
 
-        // Envoi
-        for (HdfsNodeInfo node : permutation.subList(startIndex, startIndex + nodes.size())) {
+                stored = exchange.receive(HdfsAction.PONG).getInt();
+                this.namespace.addReplicas(fileName, fragment, chain.subList(0, stored));
+                repFactor -= stored;
 
-            try (Socket sock = new Socket(node.getHost(), node.getPort());
-                    BufferedOutputStream rawOutputStream = new BufferedOutputStream(sock.getOutputStream());
-                    ObjectOutputStream outputStream = new ObjectOutputStream(rawOutputStream)) {
+                if (stored < chain.size()) {
+                    System.err.println("Chaîne de réplication interrompue au noeud " + chain.get(stored));
+                }
 
-                sock.setSoTimeout(1000);
+            } catch (IOException | HdfsRuntimeException e) {
+                System.err.println("Erreur de connexion avec le noeud " + head);
+                removeNode(head);
+            }
 
-                outputStream.writeObject(HdfsAction.WRITE);
-                outputStream.writeObject(fileName);
-                outputStream.writeObject(fragment);
-                outputStream.writeObject(lastPart);
-                bytes.writeTo(rawOutputStream);
+            // On ignore le noeud défaillant et on complète avec les suivants
+            next += stored + 1;
+            if (stripe != null && repFactor > 0 && next < candidates.size()) {
+                stripe.add(candidates.get(next));
+            }
 
-                rawOutputStream.flush();
-                sock.shutdownOutput();
+        }
 
-                expectPong(new ObjectInputStream(sock.getInputStream()));
+    }
 
-                this.files.get(fileName).get(fragment).add(node);
-                repFactor--;
+    /**
+     * Demande à un noeud de copier un fragment qu'il possède vers une chaîne de
+     * noeuds. Le catalogue n'est pas modifié.
+     *
+     * @return Le nombre de noeuds de la chaîne qui ont enregistré le fragment
+     */
+    int copyFragment(String name, int id, boolean lastPart, HdfsNodeInfo source, List<HdfsNodeInfo> chain) {
 
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Erreur de connexion avec le noeud " + node);
-                removeNode(node);
+        try (HdfsExchange exchange = this.pool.open(source)) {
+
+            exchange.setTimeout(1000 * (chain.size() + 1));
+            exchange.send(new HdfsMessage(HdfsAction.REPLICATE).putString(name).putInt(id).putBoolean(lastPart)
+                    .putNodes(chain));
+            return exchange.receive(HdfsAction.PONG).getInt();
+
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Copie du fragment " + id + " de " + name + " depuis " + source + " impossible : "
+                    + e.getMessage());
+            return 0;
+        }
+
+    }
+
+    /**
+     * Supprime un fragment d'un noeud, sans modifier le catalogue.
+     *
+     * @return false si le noeud n'a pas répondu
+     */
+    boolean deleteFragment(HdfsNodeInfo node, String name, int id) {
+        try (HdfsExchange exchange = this.pool.open(node)) {
+            exchange.setTimeout(1000);
+            exchange.send(new HdfsMessage(HdfsAction.DELETE_FRAGMENT).putString(name).putInt(id));
+            exchange.receive(HdfsAction.PONG);
+            return true;
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Suppression du fragment " + id + " de " + name + " sur " + node + " impossible.");
+            return false;
+        }
+    }
+
+    /**
+     * Reconstruit les fragments disparus d'une bande d'un fichier codé à
+     * effacement : k fragments de la bande sont lus sur les noeuds et décodés,
+     * puis les fragments reconstruits sont envoyés à des noeuds qui n'ont aucun
+     * fragment de la bande.
+     *
+     * Les reconstructions sont faites l'une après l'autre, une bande déjà
+     * réparée entre temps n'est pas reconstruite une seconde fois.
+     *
+     * @return Le nombre de fragments reconstruits
+     */
+    int reconstructStripe(String name, int index) {
+        this.reconstructions.lock();
+        try {
+            HdfsNamespace.Stripe stripe = this.namespace.getStripe(name, index);
+            if (stripe == null || stripe.getLost().isEmpty()) {
+                return 0;
+            }
+            HdfsReedSolomon scheme = stripe.scheme;
+            int k = scheme.getDataFragments();
+            int length = (int) stripe.getLength();
+            List<Integer> lost = stripe.getLost();
+
+            // Lecture de k fragments, les fragments au-delà de la fin du fichier valent zéro
+            byte[][] members = new byte[scheme.getStripeWidth()][];
+            int available = 0;
+            for (int member = 0; member < members.length && available < k; member++) {
+                byte[] bytes = stripe.isPadding(member) ? new byte[length]
+                        : this.fetchFragment(name, stripe.getId(member), stripe.replicas.get(member),
+                                member < k && stripe.codec != null);
+                if (bytes != null) {
+                    members[member] = bytes.length < length ? Arrays.copyOf(bytes, length) : bytes;
+                    available++;
+                }
             }
 
-            if (repFactor <= 0) {
-                break;
+            try {
+                scheme.decode(members, length);
+            } catch (IOException e) {
+                System.err.println("Bande " + index + " de " + name + " : " + e.getMessage());
+                return 0;
             }
 
+            // Envoi des fragments reconstruits, loin des autres fragments de la bande
+            HdfsCodec codec = HdfsCompression.forName(stripe.codec);
+            Set<HdfsNodeInfo> used = ConcurrentHashMap.newKeySet();
+            stripe.replicas.forEach(used::addAll);
+            int rebuilt = 0;
+            for (int member : lost) {
+                int id = stripe.getId(member);
+                int size = member < k ? (int) stripe.sizes[member] : length;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+                bytes.write(members[member], 0, size);
+                if (member < k && codec != null) {
+                    bytes = HdfsCompression.compress(codec, bytes);
+                }
+                if (this.nodes.stream().allMatch(node -> used.stream().anyMatch(u -> u.matches(node)))) {
+                    // À défaut, sur un noeud qui a déjà un fragment de la bande : le fichier reste lisible
+                    System.err.println("Bande " + index + " de " + name + " : pas assez de noeuds, fragment "
+                            + id + " placé avec un autre fragment de la bande.");
+                    used.clear();
+                }
+                this.sendFragment(name, id, member >= k || id == stripe.lastFragment, size,
+                        FragmentContent.of(bytes), 1, new HashMap<>(), used);
+                if (!this.namespace.getReplicas(name, id).isEmpty()) {
+                    rebuilt++;
+                }
+            }
+            System.out.println("Bande " + index + " de " + name + " : " + rebuilt + "/" + lost.size()
+                    + " fragments reconstruits");
+            return rebuilt;
+        } finally {
+            this.reconstructions.unlock();
         }
+    }
 
+    /**
+     * Lit un fragment sur l'un des noeuds qui le possèdent, sans les retirer en
+     * cas d'échec.
+     *
+     * @param decompress Le fragment doit-il être décompressé ?
+     * @return Le contenu du fragment, null si aucun noeud n'a pu le fournir
+     */
+    private byte[] fetchFragment(String name, int id, Set<HdfsNodeInfo> replicas, boolean decompress) {
+        for (HdfsNodeInfo node : replicas) {
+            try (HdfsExchange exchange = this.pool.open(node)) {
+
+                exchange.send(new HdfsMessage(HdfsAction.READ).putString(name).putInt(id));
+                exchange.receive(HdfsAction.PONG);
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (InputStream input = decompress ? HdfsCompression.open(exchange.dataInputStream())
+                        : exchange.dataInputStream()) {
+                    input.transferTo(buffer);
+                }
+                return buffer.toByteArray();
+
+            } catch (IOException | HdfsRuntimeException e) {
+                System.err.println("Lecture du fragment " + id + " de " + name + " sur " + node + " impossible.");
+            }
+        }
+        return null;
     }
 
     /**
      * Traite une requête de suppression.
      */
-    private void handleDelete(Socket sock, ObjectInputStream inputStream) throws ClassNotFoundException, IOException {
-        String filename = (String) inputStream.readObject();
+    private void handleDelete(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        String filename = request.getString();
         deleteFile(filename);
-        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-        outputStream.writeObject(HdfsAction.PONG);
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
     }
 
     /**
@@ -491,91 +1481,64 @@ public class HdfsNameServer {
      *
      * @param filename
      */
-    private void deleteFile(String filename) {
+    void deleteFile(String filename) {
         for (HdfsNodeInfo uri : new HashSet<>(this.nodes)) {
 
-            try {
-                Socket nodeSock = new Socket(uri.getHost(), uri.getPort());
-                ObjectOutputStream out = new ObjectOutputStream(nodeSock.getOutputStream());
+            try (HdfsExchange exchange = this.pool.open(uri)) {
 
                 // On envoie le nom du fichier à delete
-                out.writeObject(HdfsAction.DELETE);
-                out.writeObject(filename);
+                exchange.send(new HdfsMessage(HdfsAction.DELETE).putString(filename));
+                exchange.receive(HdfsAction.PONG);
 
-                expectPong(new ObjectInputStream(nodeSock.getInputStream()));
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException | HdfsRuntimeException e) {
                 removeNode(uri);
             }
         }
-        this.files.remove(filename);
+        this.namespace.remove(filename);
     }
 
     /**
      * Traite une requête de nouveau noeud, en récupérant son port et la liste de
      * ses fichiers
      */
-    private void handleNewNode(Socket sock, ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
-
-        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+    private void handleNewNode(HdfsExchange exchange, HdfsMessage request) throws IOException {
 
-        String host = sock.getInetAddress().getHostAddress();
-        int port = (int) inputStream.readObject();
-        String root = (String) inputStream.readObject();
+        String host = exchange.getRemoteHost();
+        int port = request.getInt();
+        String root = request.getString();
 
         System.out.println("Intialisation d'un nouveau noeud : " + host + ":" + port);
 
         HdfsNodeInfo node = new HdfsNodeInfo(host, port, root);
         this.removeNode(node);
         this.nodes.add(node);
+        this.detector.register(node);
 
         // On enregistre
-        Object files = inputStream.readObject();
-        this.registerFragments(node, files);
+        Map<String, Map<Integer, Long>> files = request.getFragmentMap();
+        if (this.journal != null) {
+            // Le catalogue vient du journal : les fragments d'un fichier qu'il ne
+            // connaît pas restent d'une écriture supprimée ou abandonnée
+            files.keySet().retainAll(this.namespace.getFileNames());
+        }
+        this.namespace.register(node, files);
 
-        outputStream.writeObject(host);
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putString(host));
 
         this.printFiles();
 
     }
 
-    /**
-     * Enregistre les fragments reçus
-     *
-     * @param node  Noeud emetteur
-     * @param files Objet reçu
-     */
-    private void registerFragments(HdfsNodeInfo node, Object files) {
-        for (Entry<?, ?> entry : ((Map<?, ?>) files).entrySet()) {
-            String fileName = (String) entry.getKey();
-
-            if (!this.files.containsKey(fileName)) {
-                this.files.put(fileName, new HashMap<>());
-            }
-            Map<Integer, Set<HdfsNodeInfo>> fragmentMap = this.files.get(fileName);
-
-            for (Entry<?, ?> entry2 : ((Map<?, ?>) entry.getValue()).entrySet()) {
-                int id = (int) entry2.getKey();
-                if (!fragmentMap.containsKey(id)) {
-                    fragmentMap.put(id, new HashSet<>());
-                }
-
-                if (entry2.getValue() != null) {
-                    Set<HdfsNodeInfo> socketList = fragmentMap.get(id);
-                    socketList.add(node);
-                }
-            }
-        }
-    }
-
     /**
      * Affiche la liste des fichiers disponibles sur le réseau.
      */
     private void printFiles() {
-        if (this.files.size() == 0) {
+        Set<String> fileNames = this.namespace.getFileNames();
+        if (fileNames.isEmpty()) {
             return;
         }
         System.out.println("Fichiers :");
-        for (String fileName : this.files.keySet()) {
+        for (String fileName : fileNames) {
             System.out.println(" - " + fileName + " : " + (this.isFileComplete(fileName) ? "complet" : "incomplet"));
         }
     }
@@ -587,84 +1550,216 @@ public class HdfsNameServer {
      * @return
      */
     public boolean isFileComplete(String fileName) {
-        if (!this.files.containsKey(fileName)) {
-            return false;
+        return this.namespace.isFileComplete(fileName);
+    }
+
+    /**
+     * Construit la liste des fragments d'un fichier, avec leurs répliques.
+     *
+     * @return null si le fichier est inconnu
+     */
+    List<List<FragmentInfo>> listFragments(String filename) {
+        List<List<FragmentInfo>> list = this.namespace.listFragments(filename);
+
+        // Les fragments disparus d'un fichier codé à effacement sont reconstruits avant la lecture
+        HdfsReedSolomon scheme = HdfsReedSolomon.forName(this.namespace.getErasure(filename));
+        if (list != null && scheme != null) {
+            Set<Integer> stripes = new TreeSet<>();
+            for (int id = 0; id < list.size(); id++) {
+                if (list.get(id).isEmpty()) {
+                    stripes.add(scheme.getStripe(id));
+                }
+            }
+            for (int stripe : stripes) {
+                this.reconstructStripe(filename, stripe);
+            }
+            if (!stripes.isEmpty()) {
+                list = this.namespace.listFragments(filename);
+            }
+        }
+
+        if (list != null) {
+            for (List<FragmentInfo> replicas : list) {
+                replicas.sort(Comparator.comparing(fragment -> this.detector.isSuspect(fragment.node)));
+            }
         }
-        Map<Integer, Set<HdfsNodeInfo>> fragmentMap = this.files.get(fileName);
-        int max = Collections.max(fragmentMap.keySet());
-        for (int i = 0; i <= max; i++) {
-            if (!fragmentMap.containsKey(i) || fragmentMap.get(i).isEmpty()) {
-                return false;
+        return list;
+    }
+
+    /**
+     * Classe des noeuds candidats avec la politique de placement. Les noeuds
+     * suspects sont placés en fin de liste, en dernier recours.
+     *
+     * @param fileFragments Nombre de fragments du fichier déjà placés sur chaque
+     *                      noeud
+     */
+    List<HdfsNodeInfo> rankNodes(String fileName, List<HdfsNodeInfo> candidates,
+            Map<HdfsNodeInfo, Integer> fileFragments) {
+        List<HdfsNodeInfo> healthy = new ArrayList<>();
+        List<HdfsNodeInfo> suspects = new ArrayList<>();
+        Map<HdfsNodeInfo, HdfsNodeStats> stats = new HashMap<>();
+        for (HdfsNodeInfo node : candidates) {
+            (this.detector.isSuspect(node) ? suspects : healthy).add(node);
+            stats.put(node, this.detector.getStats(node));
+        }
+        List<HdfsNodeInfo> ranked = new ArrayList<>(this.placement.rank(fileName, healthy, fileFragments, stats));
+        ranked.addAll(suspects);
+        return ranked;
+    }
+
+    /**
+     * Calcule le placement d'un futur fichier, sans rien réserver : pour chaque
+     * fragment, les noeuds qui recevraient ses répliques.
+     */
+    List<List<HdfsNodeInfo>> choosePlacement(String fileName, int fragments, int repFactor) {
+        Map<HdfsNodeInfo, Integer> placed = this.namespace.countFragments(fileName);
+        List<HdfsNodeInfo> nodes = this.getNodes();
+        List<List<HdfsNodeInfo>> placement = new ArrayList<>(fragments);
+        for (int i = 0; i < fragments; i++) {
+            List<HdfsNodeInfo> chain = this.rankNodes(fileName, nodes, placed).subList(0,
+                    Math.min(repFactor, nodes.size()));
+            for (HdfsNodeInfo node : chain) {
+                placed.merge(node, 1, Integer::sum);
             }
+            placement.add(new ArrayList<>(chain));
         }
-        return true;
+        return placement;
     }
 
-    private void handleListFragments(Socket sock, ObjectInputStream inputStream)
-            throws ClassNotFoundException, IOException {
+    private void handlePlacement(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        List<List<HdfsNodeInfo>> placement = this.choosePlacement(request.getString(), request.getInt(),
+                request.getInt());
+        HdfsMessage response = new HdfsMessage(HdfsAction.PONG).putInt(placement.size());
+        for (List<HdfsNodeInfo> chain : placement) {
+            response.putNodes(chain);
+        }
+        exchange.send(response);
+    }
+
+    /**
+     * Envoie la liste des fragments d'un fichier, suivie de sa version. Si le
+     * client envoie la version de la liste qu'il connaît déjà et qu'elle n'a pas
+     * changé, la réponse ne contient que {@link #NOT_MODIFIED}.
+     */
+    private void handleListFragments(HdfsExchange exchange, HdfsMessage request) throws IOException {
 
-        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        String name = request.getString();
+        long known = request.hasRemaining() ? request.getLong() : 0;
+        HdfsMessage response = new HdfsMessage(HdfsAction.PONG);
 
-        String filename = (String) inputStream.readObject();
-        if (!this.files.containsKey(filename)) {
-            outputStream.writeObject(null);
+        // Version lue avant la liste : une modification concurrente sera vue à la prochaine revalidation
+        long version = this.namespace.getVersion(name);
+        if (known != 0 && known == version) {
+            exchange.send(response.putInt(NOT_MODIFIED));
             return;
         }
 
-        Map<Integer, Set<HdfsNodeInfo>> fragments = this.files.get(filename);
-        List<List<FragmentInfo>> list = new ArrayList<>(Collections.max(fragments.keySet()));
-        int lastFragment = Collections.max(fragments.keySet());
-        for (int id : fragments.keySet()) {
-            Set<HdfsNodeInfo> nodes = fragments.get(id);
-            list.add(id,
-                    nodes.stream().map(node -> new FragmentInfo(filename, id, id == lastFragment, node, node.getRoot()))
-                            .collect(Collectors.toList()));
+        List<List<FragmentInfo>> list = this.listFragments(name);
+        if (list == null) {
+            exchange.send(response.putInt(-1));
+            return;
         }
 
-        outputStream.writeObject(list);
-        expectPong(inputStream);
+        response.putInt(list.size());
+        for (List<FragmentInfo> replicas : list) {
+            response.putInt(replicas.size());
+            for (FragmentInfo fragment : replicas) {
+                response.putFragment(fragment);
+            }
+        }
+        exchange.send(response.putLong(version));
 
     }
 
-    private void handleListNodes(Socket sock, ObjectInputStream inputStream) {
+    private void handleListNodes(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        List<HdfsNodeInfo> nodes = this.getNodes();
+        HdfsMessage response = new HdfsMessage(HdfsAction.PONG).putNodes(nodes);
+        // Charge des noeuds dans le même ordre, ignorée par les anciens clients
+        for (HdfsNodeInfo node : nodes) {
+            response.putNodeStats(this.detector.getStats(node));
+        }
+        // Puis l'occupation des buffers de transfert du NameServer, et celle des
+        // buffers des trames reçues par sa boucle d'événements
+        response.putBufferUsage(this.buffers.getUsage());
+        HdfsEventLoop loop = this.eventLoop;
+        if (loop != null) {
+            response.putBufferUsage(loop.getUsage());
+        }
+        exchange.send(response);
+    }
 
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream())) {
+    /**
+     * Copie de l'ensemble des noeuds connectés.
+     */
+    List<HdfsNodeInfo> getNodes() {
+        return new ArrayList<>(this.nodes);
+    }
 
-            outputStream.writeObject(new ArrayList<>(this.nodes));
+    /**
+     * Catalogue des fichiers actuel.
+     */
+    HdfsNamespace getNamespace() {
+        return this.namespace;
+    }
 
-            expectPong(inputStream);
+    /**
+     * Indique si un noeud a manqué des battements de coeur.
+     */
+    boolean isSuspect(HdfsNodeInfo node) {
+        return this.detector.isSuspect(node);
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-        }
+    /**
+     * @return La dernière charge transmise par un noeud
+     */
+    HdfsNodeStats getStats(HdfsNodeInfo node) {
+        return this.detector.getStats(node);
+    }
 
+    /**
+     * Traite une demande de rééquilibrage, la réponse donne le nombre de
+     * fragments déplacés.
+     */
+    private void handleRebalance(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putInt(this.rebalancer.rebalance()));
     }
 
     /**
      * Traite une demande de mise à jour de la liste des fichiers.
+     */
+    private void handleForceRescan(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        this.forceRescan();
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
+    }
+
+    /**
+     * Reconstruit la liste des fichiers à partir des noeuds.
      *
-     * @throws IOException
+     * Le rapport de chaque noeud remplace ses répliques dans le catalogue en
+     * place : les écritures, suppressions et réplications faites pendant le
+     * rescan ne sont pas perdues. Un fichier supprimé depuis le début du rescan
+     * n'est pas recréé par le rapport d'un noeud interrogé avant sa suppression.
      */
-    private void handleForceRescan(Socket clientSock, ObjectInputStream clientInputStream) {
-        this.files = new HashMap<>();
+    void forceRescan() {
+        Set<String> known = new HashSet<>(this.namespace.getFileNames());
 
         for (HdfsNodeInfo node : new HashSet<>(this.nodes)) {
-            try (Socket nodeSock = new Socket(node.getHost(), node.getPort());
-                 ObjectOutputStream nodeOutputStream = new ObjectOutputStream(nodeSock.getOutputStream())) {
-
-                nodeOutputStream.writeObject(HdfsAction.FORCE_RESCAN);
+            try (HdfsExchange nodeExchange = this.pool.open(node)) {
 
-                ObjectInputStream nodeInputStream = new ObjectInputStream(nodeSock.getInputStream());
-                this.registerFragments(node, nodeInputStream.readObject());
+                nodeExchange.send(new HdfsMessage(HdfsAction.FORCE_RESCAN));
+                Map<String, Map<Integer, Long>> files = nodeExchange.receive(HdfsAction.PONG).getFragmentMap();
+                files.keySet().removeIf(name -> known.contains(name) && !this.namespace.contains(name));
+                this.namespace.replaceNode(node, files);
 
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException | HdfsRuntimeException e) {
                 System.err.println("Un noeud a été déconnecté pendant le rescan.");
                 this.removeNode(node);
             }
         }
 
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(clientSock.getOutputStream())) {
-            outputStream.writeObject(HdfsAction.PONG);
-        } catch (IOException e) {
+        // Fichiers dont les fragments n'existent plus sur aucun noeud
+        for (String name : this.namespace.removeLost()) {
+            System.err.println("Plus aucun fragment de " + name + " n'a été trouvé, fichier oublié.");
         }
 
         this.printFiles();
@@ -676,15 +1771,24 @@ public class HdfsNameServer {
     public static void main(String[] args) throws IOException {
         if (args.length > 0 && (args[0].equalsIgnoreCase("--help") || args[0].equalsIgnoreCase("-h")
                 || args[0].equals("-?") || args[0].equals("/?"))) {
-            System.out.println("Usage: HdfsNameServer <optional port>");
+            System.out.println("Usage: HdfsNameServer <optional port> <optional journal directory, - to disable>"
+                    + " <optional failure detection time in ms>");
             return;
         }
 
         int port = DEFAULT_PORT;
-        if (args.length == 1) {
+        if (args.length >= 1) {
             port = Integer.parseInt(args[0]);
         }
-        new HdfsNameServer(port);
+        String journal = DEFAULT_JOURNAL;
+        if (args.length >= 2) {
+            journal = args[1].equals("-") ? null : args[1];
+        }
+        long detectionTime = HdfsFailureDetector.DEFAULT_DETECTION_TIME;
+        if (args.length >= 3) {
+            detectionTime = Long.parseLong(args[2]);
+        }
+        new HdfsNameServer(port, journal, detectionTime);
     }
 
 }
@@ -0,0 +1,848 @@
+package hdfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Catalogue des fichiers du NameServer : pour chaque fichier, les noeuds qui
+ * possèdent chacun de ses fragments et la taille des fragments.
+ *
+ * Chaque fichier est décrit par un instantané immuable, remplacé en entier à
+ * chaque modification. Les lectures ne prennent donc aucun verrou, et une
+ * modification ne verrouille que le fichier concerné : des écritures sur des
+ * fichiers différents ne se bloquent jamais.
+ *
+ * Si un {@link HdfsJournal} est attaché, chaque modification y est
+ * enregistrée. L'ordre des enregistrements est garanti pour un même fichier.
+ */
+public class HdfsNamespace {
+
+    /**
+     * Fragment d'un fichier.
+     */
+    private static final class Fragment {
+
+        private static final Fragment EMPTY = new Fragment(Collections.emptySet(), -1);
+
+        /**
+         * Noeuds possédant le fragment.
+         */
+        private final Set<HdfsNodeInfo> replicas;
+
+        /**
+         * Taille du fragment en octets, -1 si elle est inconnue.
+         */
+        private final long size;
+
+        private Fragment(Set<HdfsNodeInfo> replicas, long size) {
+            this.replicas = replicas;
+            this.size = size;
+        }
+
+        private Fragment withSize(long size) {
+            return size < 0 ? this : new Fragment(this.replicas, size);
+        }
+
+        private Fragment withReplicas(Collection<HdfsNodeInfo> nodes, long size) {
+            Set<HdfsNodeInfo> replicas = new HashSet<>(this.replicas);
+            replicas.addAll(nodes);
+            return new Fragment(Collections.unmodifiableSet(replicas), size < 0 ? this.size : size);
+        }
+
+        private Fragment withoutReplica(HdfsNodeInfo node) {
+            if (this.replicas.stream().noneMatch(replica -> replica.matches(node))) {
+                return this;
+            }
+            return new Fragment(Collections.unmodifiableSet(this.replicas.stream()
+                    .filter(replica -> !replica.matches(node)).collect(Collectors.toSet())), this.size);
+        }
+    }
+
+    /**
+     * Instantané d'un fichier.
+     */
+    private static final class FileEntry {
+
+        private static final FileEntry EMPTY = new FileEntry(new TreeMap<>(), 0, null, null);
+
+        /**
+         * Fragments du fichier, par numéro.
+         */
+        private final SortedMap<Integer, Fragment> fragments;
+
+        /**
+         * Facteur de réplication demandé, 0 s'il est inconnu ou si le fichier est
+         * en cours d'écriture.
+         */
+        private final int replication;
+
+        /**
+         * Nom du codec de compression des fragments, null s'ils ne sont pas
+         * compressés.
+         */
+        private final String codec;
+
+        /**
+         * Nom du codage à effacement du fichier (voir {@link HdfsReedSolomon}),
+         * null si ses fragments sont répliqués. Les fragments de parité ont des
+         * numéros négatifs.
+         */
+        private final String erasure;
+
+        /**
+         * Tous les fragments sont-ils récupérables ?
+         */
+        private final boolean complete;
+
+        /**
+         * Empreinte du contenu listé aux clients, calculée à la demande (0 tant
+         * qu'elle ne l'est pas).
+         */
+        private long version = 0;
+
+        private FileEntry(TreeMap<Integer, Fragment> fragments, int replication, String codec, String erasure) {
+            this.fragments = Collections.unmodifiableSortedMap(fragments);
+            this.replication = replication;
+            this.codec = codec;
+            this.erasure = erasure;
+            this.complete = this.isComplete();
+        }
+
+        /**
+         * Un fragment de données sans réplique est récupérable si sa bande peut
+         * être reconstruite.
+         */
+        private boolean isComplete() {
+            SortedMap<Integer, Fragment> data = this.fragments.tailMap(0);
+            if (data.isEmpty() || data.lastKey() != data.size() - 1) {
+                return false;
+            }
+            HdfsReedSolomon scheme = HdfsReedSolomon.forName(this.erasure);
+            for (Entry<Integer, Fragment> fragment : data.entrySet()) {
+                if (fragment.getValue().replicas.isEmpty()
+                        && (scheme == null || !new Stripe(null, this, scheme.getStripe(fragment.getKey()))
+                                .isRecoverable())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Fragment get(int id) {
+            return this.fragments.getOrDefault(id, Fragment.EMPTY);
+        }
+
+        /**
+         * Calcule l'empreinte des fragments, de leurs répliques et des
+         * paramètres du fichier. Elle ne dépend que du contenu : un rescan ou un
+         * redémarrage du NameServer qui retrouve les mêmes fragments ne la
+         * change pas.
+         */
+        private long getVersion() {
+            if (this.version == 0) {
+                long version = 1125899906842597L;
+                version = 31 * version + this.replication;
+                version = 31 * version + Objects.hashCode(this.codec);
+                version = 31 * version + Objects.hashCode(this.erasure);
+                for (Entry<Integer, Fragment> entry : this.fragments.entrySet()) {
+                    long replicas = 0;
+                    for (HdfsNodeInfo node : entry.getValue().replicas) {
+                        // Somme indépendante de l'ordre des répliques
+                        replicas += (node.toString() + "@" + node.getRoot()).hashCode() * 0x9E3779B97F4A7C15L;
+                    }
+                    version = 31 * version + entry.getKey();
+                    version = 31 * version + entry.getValue().size;
+                    version = 31 * version + replicas;
+                }
+                this.version = version == 0 ? 1 : version;
+            }
+            return this.version;
+        }
+
+        private FileEntry withFragments(TreeMap<Integer, Fragment> fragments) {
+            return new FileEntry(fragments, this.replication, this.codec, this.erasure);
+        }
+
+        private FileEntry with(int id, Fragment fragment) {
+            TreeMap<Integer, Fragment> fragments = new TreeMap<>(this.fragments);
+            fragments.put(id, fragment);
+            return this.withFragments(fragments);
+        }
+
+        private FileEntry withoutReplica(HdfsNodeInfo node) {
+            TreeMap<Integer, Fragment> fragments = null;
+            for (Entry<Integer, Fragment> entry : this.fragments.entrySet()) {
+                Fragment fragment = entry.getValue().withoutReplica(node);
+                if (fragment != entry.getValue()) {
+                    if (fragments == null) {
+                        fragments = new TreeMap<>(this.fragments);
+                    }
+                    fragments.put(entry.getKey(), fragment);
+                }
+            }
+            return fragments == null ? this : this.withFragments(fragments);
+        }
+    }
+
+    /**
+     * Fichiers, par nom.
+     */
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+
+    /**
+     * Journal des modifications, null si le catalogue n'est pas journalisé.
+     */
+    private volatile HdfsJournal journal;
+
+    /**
+     * Attache un journal au catalogue, les modifications suivantes y seront
+     * enregistrées.
+     */
+    public void setJournal(HdfsJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Ajoute une modification au journal, s'il y en a un. Appelé pendant la
+     * modification d'un fichier, dans l'ordre des modifications : rien n'est
+     * encore écrit, voir {@link #syncJournal()}.
+     */
+    private void log(byte[] record) {
+        HdfsJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(record);
+        }
+    }
+
+    /**
+     * Écrit les modifications ajoutées au journal, une fois les fichiers
+     * modifiés : l'écriture ne se fait pas pendant que la table des fichiers est
+     * verrouillée.
+     */
+    private void syncJournal() {
+        HdfsJournal journal = this.journal;
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Réserve le nom d'un nouveau fichier.
+     *
+     * @return false si le fichier existe déjà
+     */
+    public boolean create(String name) {
+        return this.create(name, null);
+    }
+
+    /**
+     * Réserve le nom d'un nouveau fichier dont les fragments sont compressés.
+     *
+     * @param codec Nom du codec de compression, null pour ne pas compresser
+     * @return false si le fichier existe déjà
+     */
+    public boolean create(String name, String codec) {
+        return this.create(name, codec, null);
+    }
+
+    /**
+     * Réserve le nom d'un nouveau fichier, éventuellement codé à effacement.
+     *
+     * @param codec   Nom du codec de compression, null pour ne pas compresser
+     * @param erasure Nom du codage à effacement, null si les fragments sont
+     *                répliqués
+     * @return false si le fichier existe déjà
+     */
+    public boolean create(String name, String codec, String erasure) {
+        FileEntry entry = codec == null && erasure == null ? FileEntry.EMPTY
+                : new FileEntry(new TreeMap<>(), 0, codec, erasure);
+        if (this.files.putIfAbsent(name, entry) != null) {
+            return false;
+        }
+        this.log(HdfsJournal.createRecord(name, codec));
+        if (erasure != null) {
+            this.log(HdfsJournal.erasureRecord(name, erasure));
+        }
+        this.syncJournal();
+        return true;
+    }
+
+    /**
+     * Fixe le codage à effacement d'un fichier.
+     */
+    public void setErasure(String name, String erasure) {
+        this.files.computeIfPresent(name, (key, file) -> {
+            this.log(HdfsJournal.erasureRecord(name, erasure));
+            return new FileEntry(new TreeMap<>(file.fragments), file.replication, file.codec, erasure);
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * @return Le nom du codage à effacement d'un fichier, null si ses fragments
+     *         sont répliqués
+     */
+    public String getErasure(String name) {
+        FileEntry file = this.files.get(name);
+        return file == null ? null : file.erasure;
+    }
+
+    /**
+     * @return La version de la liste des fragments d'un fichier, qui change
+     *         avec ses fragments, leurs répliques ou ses paramètres, 0 si le
+     *         fichier est inconnu
+     */
+    public long getVersion(String name) {
+        FileEntry file = this.files.get(name);
+        return file == null ? 0 : file.getVersion();
+    }
+
+    /**
+     * @return Le nom du codec de compression d'un fichier, null s'il n'est pas
+     *         compressé
+     */
+    public String getCodec(String name) {
+        FileEntry file = this.files.get(name);
+        return file == null ? null : file.codec;
+    }
+
+    /**
+     * Supprime un fichier du catalogue.
+     */
+    public void remove(String name) {
+        this.files.computeIfPresent(name, (key, file) -> {
+            this.log(HdfsJournal.removeRecord(name));
+            return null;
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * Fixe le facteur de réplication qui doit être maintenu pour un fichier.
+     */
+    public void setReplication(String name, int replication) {
+        this.files.computeIfPresent(name, (key, file) -> {
+            this.log(HdfsJournal.replicationRecord(name, replication));
+            return new FileEntry(new TreeMap<>(file.fragments), replication, file.codec, file.erasure);
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * @return Le facteur de réplication d'un fichier, 0 s'il est inconnu
+     */
+    public int getReplication(String name) {
+        FileEntry file = this.files.get(name);
+        return file == null ? 0 : file.replication;
+    }
+
+    public boolean contains(String name) {
+        return this.files.containsKey(name);
+    }
+
+    /**
+     * @return Les noms des fichiers connus
+     */
+    public Set<String> getFileNames() {
+        return Collections.unmodifiableSet(this.files.keySet());
+    }
+
+    /**
+     * Déclare un fragment, sans réplique pour l'instant.
+     *
+     * @param size Taille du fragment, -1 si elle est inconnue
+     */
+    public void addFragment(String name, int id, long size) {
+        this.files.compute(name, (key, file) -> {
+            FileEntry entry = file == null ? FileEntry.EMPTY : file;
+            this.log(HdfsJournal.fragmentRecord(name, id, size));
+            return entry.with(id, entry.get(id).withSize(size));
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * Ajoute des répliques à un fragment.
+     */
+    public void addReplicas(String name, int id, Collection<HdfsNodeInfo> nodes) {
+        this.files.compute(name, (key, file) -> {
+            FileEntry entry = file == null ? FileEntry.EMPTY : file;
+            this.log(HdfsJournal.replicasRecord(name, id, nodes));
+            return entry.with(id, entry.get(id).withReplicas(nodes, -1));
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * Déplace une réplique d'un noeud à un autre. Le changement est visible en
+     * une seule fois : une lecture voit l'une ou l'autre des répliques, jamais
+     * aucune.
+     */
+    public void moveReplica(String name, int id, HdfsNodeInfo from, HdfsNodeInfo to) {
+        this.files.computeIfPresent(name, (key, file) -> {
+            this.log(HdfsJournal.replicasRecord(name, id, List.of(to)));
+            this.log(HdfsJournal.unregisterRecord(from, name, List.of(id)));
+            return file.with(id, file.get(id).withReplicas(List.of(to), -1).withoutReplica(from));
+        });
+        this.syncJournal();
+    }
+
+    /**
+     * Enregistre les fragments d'un noeud.
+     *
+     * @param node  Noeud emetteur
+     * @param files Fragments du noeud, associés à leur taille (-1 si absent du
+     *              noeud)
+     */
+    public void register(HdfsNodeInfo node, Map<String, Map<Integer, Long>> files) {
+        for (Entry<String, Map<Integer, Long>> file : files.entrySet()) {
+            this.files.compute(file.getKey(), (key, current) -> {
+                this.log(HdfsJournal.registerRecord(node, file.getKey(), file.getValue()));
+                return registered(current == null ? FileEntry.EMPTY : current, node, file.getValue());
+            });
+        }
+        this.syncJournal();
+    }
+
+    /**
+     * Remplace les fragments connus d'un noeud par ceux de son rapport complet :
+     * le noeud est ajouté aux répliques des fragments rapportés et retiré de
+     * celles des autres. Les répliques des autres noeuds et les paramètres des
+     * fichiers ne changent pas : les modifications faites pendant un rescan sont
+     * conservées.
+     *
+     * @param node  Noeud emetteur
+     * @param files Fragments du noeud, associés à leur taille (-1 si absent du
+     *              noeud)
+     */
+    public void replaceNode(HdfsNodeInfo node, Map<String, Map<Integer, Long>> files) {
+        this.register(node, files);
+        for (String name : this.files.keySet()) {
+            Map<Integer, Long> reported = files.getOrDefault(name, Collections.emptyMap());
+            this.files.computeIfPresent(name, (key, current) -> {
+                Set<Integer> missing = new HashSet<>();
+                for (Entry<Integer, Fragment> fragment : current.fragments.entrySet()) {
+                    if (reported.getOrDefault(fragment.getKey(), -1L) < 0
+                            && fragment.getValue().replicas.stream().anyMatch(replica -> replica.matches(node))) {
+                        missing.add(fragment.getKey());
+                    }
+                }
+                if (missing.isEmpty()) {
+                    return current;
+                }
+                this.log(HdfsJournal.unregisterRecord(node, name, missing));
+                TreeMap<Integer, Fragment> fragments = new TreeMap<>(current.fragments);
+                for (int id : missing) {
+                    fragments.put(id, fragments.get(id).withoutReplica(node));
+                }
+                return current.withFragments(fragments);
+            });
+        }
+        this.syncJournal();
+    }
+
+    /**
+     * Supprime les fichiers entièrement écrits dont plus aucun fragment n'a de
+     * réplique. Les fichiers en cours d'écriture sont conservés.
+     *
+     * @return Les noms des fichiers supprimés
+     */
+    public Set<String> removeLost() {
+        Set<String> lost = new HashSet<>();
+        for (String name : this.files.keySet()) {
+            this.files.computeIfPresent(name, (key, file) -> {
+                if (file.replication == 0
+                        || file.fragments.values().stream().anyMatch(fragment -> !fragment.replicas.isEmpty())) {
+                    return file;
+                }
+                this.log(HdfsJournal.removeRecord(name));
+                lost.add(name);
+                return null;
+            });
+        }
+        this.syncJournal();
+        return lost;
+    }
+
+    /**
+     * Applique le rapport incrémental d'un noeud. Seuls les fichiers connus sont
+     * modifiés : un rapport arrivé après la suppression d'un fichier ne le recrée
+     * pas.
+     *
+     * @param node    Noeud emetteur
+     * @param added   Fragments ajoutés, associés à leur taille (-1 si attendu
+     *                mais absent du noeud)
+     * @param removed Fragments disparus du noeud
+     */
+    public void update(HdfsNodeInfo node, Map<String, Map<Integer, Long>> added,
+            Map<String, Map<Integer, Long>> removed) {
+        for (Entry<String, Map<Integer, Long>> file : added.entrySet()) {
+            this.files.computeIfPresent(file.getKey(), (key, current) -> {
+                this.log(HdfsJournal.registerRecord(node, file.getKey(), file.getValue()));
+                return registered(current, node, file.getValue());
+            });
+        }
+        for (Entry<String, Map<Integer, Long>> file : removed.entrySet()) {
+            this.files.computeIfPresent(file.getKey(), (key, current) -> {
+                this.log(HdfsJournal.unregisterRecord(node, file.getKey(), file.getValue().keySet()));
+                TreeMap<Integer, Fragment> fragments = new TreeMap<>(current.fragments);
+                for (int id : file.getValue().keySet()) {
+                    if (fragments.containsKey(id)) {
+                        fragments.put(id, fragments.get(id).withoutReplica(node));
+                    }
+                }
+                return current.withFragments(fragments);
+            });
+        }
+        this.syncJournal();
+    }
+
+    /**
+     * Ajoute un noeud aux répliques des fragments qu'il possède.
+     */
+    private static FileEntry registered(FileEntry current, HdfsNodeInfo node, Map<Integer, Long> sizes) {
+        TreeMap<Integer, Fragment> fragments = new TreeMap<>(current.fragments);
+        for (Entry<Integer, Long> fragment : sizes.entrySet()) {
+            Fragment previous = fragments.getOrDefault(fragment.getKey(), Fragment.EMPTY);
+            fragments.put(fragment.getKey(), fragment.getValue() < 0 ? previous
+                    : previous.withReplicas(Collections.singleton(node), fragment.getValue()));
+        }
+        return current.withFragments(fragments);
+    }
+
+    /**
+     * Retire un noeud des répliques de tous les fichiers.
+     */
+    public void removeNode(HdfsNodeInfo node) {
+        this.log(HdfsJournal.removeNodeRecord(node));
+        this.files.replaceAll((name, file) -> file.withoutReplica(node));
+        this.syncJournal();
+    }
+
+    /**
+     * @return Le nombre de fragments d'un fichier possédés par chaque noeud
+     */
+    public Map<HdfsNodeInfo, Integer> countFragments(String name) {
+        Map<HdfsNodeInfo, Integer> counts = new HashMap<>();
+        FileEntry file = this.files.get(name);
+        if (file != null) {
+            for (Fragment fragment : file.fragments.values()) {
+                for (HdfsNodeInfo node : fragment.replicas) {
+                    counts.merge(node, 1, Integer::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return Les noeuds qui possèdent au moins un fragment
+     */
+    public Set<HdfsNodeInfo> getReplicaNodes() {
+        Set<HdfsNodeInfo> nodes = new HashSet<>();
+        for (FileEntry file : this.files.values()) {
+            for (Fragment fragment : file.fragments.values()) {
+                nodes.addAll(fragment.replicas);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Écrit un instantané du catalogue, sous forme d'enregistrements du journal
+     * qui le reconstruisent.
+     */
+    void writeCheckpoint(DataOutputStream output) throws IOException {
+        for (Entry<String, FileEntry> file : this.files.entrySet()) {
+            String name = file.getKey();
+            HdfsJournal.writeRecord(output, HdfsJournal.createRecord(name, file.getValue().codec));
+            if (file.getValue().erasure != null) {
+                HdfsJournal.writeRecord(output, HdfsJournal.erasureRecord(name, file.getValue().erasure));
+            }
+            if (file.getValue().replication > 0) {
+                HdfsJournal.writeRecord(output, HdfsJournal.replicationRecord(name, file.getValue().replication));
+            }
+            for (Entry<Integer, Fragment> fragment : file.getValue().fragments.entrySet()) {
+                int id = fragment.getKey();
+                HdfsJournal.writeRecord(output, HdfsJournal.fragmentRecord(name, id, fragment.getValue().size));
+                if (!fragment.getValue().replicas.isEmpty()) {
+                    HdfsJournal.writeRecord(output,
+                            HdfsJournal.replicasRecord(name, id, fragment.getValue().replicas));
+                }
+            }
+        }
+    }
+
+    /**
+     * Renvoie vrai si tous les fragments d'un fichier sont récupérables.
+     */
+    public boolean isFileComplete(String name) {
+        FileEntry file = this.files.get(name);
+        return file != null && file.complete;
+    }
+
+    /**
+     * @return Les noeuds possédant un fragment, éventuellement aucun
+     */
+    public Set<HdfsNodeInfo> getReplicas(String name, int id) {
+        FileEntry file = this.files.get(name);
+        return file == null ? Collections.emptySet() : file.get(id).replicas;
+    }
+
+    /**
+     * Liste les fragments qui ont moins de répliques que le facteur de
+     * réplication de leur fichier, les plus menacés en premier : ceux qui ont le
+     * moins de répliques, puis ceux auxquels il en manque le plus. Les fragments
+     * sans aucune réplique sont perdus et ne sont pas listés.
+     */
+    public List<UnderReplicated> getUnderReplicated() {
+        List<UnderReplicated> list = new ArrayList<>();
+        for (Entry<String, FileEntry> file : this.files.entrySet()) {
+            int replication = file.getValue().replication;
+            if (replication <= 0 || file.getValue().fragments.isEmpty()) {
+                continue;
+            }
+            int lastFragment = file.getValue().fragments.lastKey();
+            for (Entry<Integer, Fragment> fragment : file.getValue().fragments.entrySet()) {
+                Set<HdfsNodeInfo> replicas = fragment.getValue().replicas;
+                if (!replicas.isEmpty() && replicas.size() < replication) {
+                    list.add(new UnderReplicated(file.getKey(), fragment.getKey(), fragment.getKey() == lastFragment,
+                            fragment.getValue().size, replicas, replication - replicas.size()));
+                }
+            }
+        }
+        list.sort(Comparator.comparingInt((UnderReplicated fragment) -> fragment.replicas.size())
+                .thenComparing(Comparator.comparingInt((UnderReplicated fragment) -> fragment.missing).reversed()));
+        return list;
+    }
+
+    /**
+     * Fragment auquel il manque des répliques.
+     */
+    public static final class UnderReplicated {
+
+        public final String name;
+        public final int id;
+        public final boolean lastPart;
+
+        /**
+         * Taille du fragment en octets, -1 si elle est inconnue.
+         */
+        public final long size;
+
+        /**
+         * Noeuds qui possèdent le fragment.
+         */
+        public final Set<HdfsNodeInfo> replicas;
+
+        /**
+         * Nombre de répliques manquantes.
+         */
+        public final int missing;
+
+        private UnderReplicated(String name, int id, boolean lastPart, long size, Set<HdfsNodeInfo> replicas,
+                int missing) {
+            this.name = name;
+            this.id = id;
+            this.lastPart = lastPart;
+            this.size = size;
+            this.replicas = replicas;
+            this.missing = missing;
+        }
+    }
+
+    /**
+     * @return Une bande d'un fichier codé à effacement, null si le fichier est
+     *         inconnu, répliqué ou n'a encore aucun fragment
+     */
+    public Stripe getStripe(String name, int index) {
+        FileEntry file = this.files.get(name);
+        if (file == null || file.erasure == null || file.fragments.tailMap(0).isEmpty()) {
+            return null;
+        }
+        return new Stripe(name, file, index);
+    }
+
+    /**
+     * Liste les bandes des fichiers codés à effacement dont des fragments ont
+     * disparu mais qui peuvent encore être reconstruites, les plus menacées en
+     * premier. Les fichiers en cours d'écriture sont ignorés.
+     */
+    public List<Stripe> getDamagedStripes() {
+        List<Stripe> list = new ArrayList<>();
+        for (Entry<String, FileEntry> file : this.files.entrySet()) {
+            HdfsReedSolomon scheme = HdfsReedSolomon.forName(file.getValue().erasure);
+            if (scheme == null || file.getValue().replication <= 0 || file.getValue().fragments.tailMap(0).isEmpty()) {
+                continue;
+            }
+            int stripes = scheme.getStripe(file.getValue().fragments.lastKey()) + 1;
+            for (int index = 0; index < stripes; index++) {
+                Stripe stripe = new Stripe(file.getKey(), file.getValue(), index);
+                if (!stripe.getLost().isEmpty() && stripe.isRecoverable()) {
+                    list.add(stripe);
+                }
+            }
+        }
+        list.sort(Comparator.comparingInt(Stripe::getSpare));
+        return list;
+    }
+
+    /**
+     * Bande d'un fichier codé à effacement : ses fragments de données puis de
+     * parité, par position (voir {@link HdfsReedSolomon}).
+     */
+    public static final class Stripe {
+
+        public final String name;
+        public final int index;
+        public final HdfsReedSolomon scheme;
+
+        /**
+         * Nom du codec de compression des fragments de données, null s'ils ne
+         * sont pas compressés. Les fragments de parité ne le sont jamais.
+         */
+        public final String codec;
+
+        /**
+         * Numéro du dernier fragment de données du fichier.
+         */
+        public final int lastFragment;
+
+        /**
+         * Nombre de fragments de données de la bande, moins de k pour la dernière
+         * bande d'un fichier. Les positions suivantes valent zéro.
+         */
+        public final int dataFragments;
+
+        /**
+         * Taille des fragments avant compression par position, -1 si elle est
+         * inconnue.
+         */
+        public final long[] sizes;
+
+        /**
+         * Noeuds qui possèdent les fragments, par position.
+         */
+        public final List<Set<HdfsNodeInfo>> replicas;
+
+        private Stripe(String name, FileEntry file, int index) {
+            this.name = name;
+            this.index = index;
+            this.scheme = HdfsReedSolomon.forName(file.erasure);
+            this.codec = file.codec;
+            this.lastFragment = file.fragments.lastKey();
+            int k = this.scheme.getDataFragments();
+            this.dataFragments = Math.max(0, Math.min(k, this.lastFragment + 1 - index * k));
+            this.sizes = new long[this.scheme.getStripeWidth()];
+            this.replicas = new ArrayList<>(this.sizes.length);
+            for (int member = 0; member < this.sizes.length; member++) {
+                Fragment fragment = this.isPadding(member) ? Fragment.EMPTY : file.get(this.getId(member));
+                this.sizes[member] = this.isPadding(member) ? 0 : fragment.size;
+                this.replicas.add(fragment.replicas);
+            }
+        }
+
+        /**
+         * @return Le numéro du fragment à une position
+         */
+        public int getId(int member) {
+            return this.scheme.getId(this.index, member);
+        }
+
+        /**
+         * Indique si une position de données est au-delà de la fin du fichier, et
+         * vaut donc zéro.
+         */
+        public boolean isPadding(int member) {
+            return member >= this.dataFragments && member < this.scheme.getDataFragments();
+        }
+
+        /**
+         * @return La taille des fragments de parité, celle du plus long fragment
+         *         de données
+         */
+        public long getLength() {
+            long length = 0;
+            for (int member = 0; member < this.scheme.getDataFragments(); member++) {
+                length = Math.max(length, this.sizes[member]);
+            }
+            return length;
+        }
+
+        /**
+         * @return Les positions des fragments disparus qui peuvent être
+         *         reconstruits, c'est à dire dont la taille est connue
+         */
+        public List<Integer> getLost() {
+            List<Integer> lost = new ArrayList<>();
+            for (int member = 0; member < this.sizes.length; member++) {
+                if (!this.isPadding(member) && this.replicas.get(member).isEmpty()
+                        && (member >= this.scheme.getDataFragments() || this.sizes[member] >= 0)) {
+                    lost.add(member);
+                }
+            }
+            return lost;
+        }
+
+        /**
+         * @return Le nombre de fragments qui peuvent encore disparaître sans que la
+         *         bande soit perdue, négatif si elle l'est déjà
+         */
+        public int getSpare() {
+            int available = 0;
+            for (int member = 0; member < this.sizes.length; member++) {
+                if (!this.isPadding(member) && !this.replicas.get(member).isEmpty()) {
+                    available++;
+                }
+            }
+            return available - this.dataFragments;
+        }
+
+        /**
+         * Indique s'il reste assez de fragments pour reconstruire la bande.
+         */
+        public boolean isRecoverable() {
+            return this.getSpare() >= 0;
+        }
+    }
+
+    /**
+     * Construit la liste des fragments d'un fichier, avec leurs répliques.
+     *
+     * @return null si le fichier est inconnu ou n'a encore aucun fragment
+     */
+    public List<List<FragmentInfo>> listFragments(String name) {
+        FileEntry file = this.files.get(name);
+        if (file == null || file.fragments.tailMap(0).isEmpty()) {
+            return null;
+        }
+
+        // Les fragments de parité, de numéros négatifs, ne sont pas listés
+        int lastFragment = file.fragments.lastKey();
+        List<List<FragmentInfo>> list = new ArrayList<>(lastFragment + 1);
+        for (int id = 0; id <= lastFragment; id++) {
+            int fragmentId = id;
+            Fragment fragment = file.get(id);
+            list.add(fragment.replicas.stream().map(node -> new FragmentInfo(name, fragmentId,
+                    fragmentId == lastFragment, node, node.getRoot(), fragment.size, file.codec))
+                    .collect(Collectors.toList()));
+        }
+        return list;
+    }
+
+}
@@ -1,16 +1,21 @@
 package hdfs;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HdfsNode {
 
@@ -35,22 +40,77 @@ public class HdfsNode {
     private final int nameServerPort;
 
     /**
-     * Liste des fichiers.
+     * Temps (en ms) pendant lequel les modifications sont regroupées avant
+     * l'envoi d'un rapport incrémental.
+     */
+    final public static int REPORT_DELAY = 200;
+
+    /**
+     * Liste des fichiers, protégée par le verrou du noeud. Un fragment associé à
+     * null est attendu mais absent du noeud.
      */
     private Map<String, Map<Integer, File>> files;
 
+    /**
+     * Fragments ajoutés depuis le dernier rapport envoyé, avec leur taille.
+     */
+    private Map<String, Map<Integer, Long>> reportAdded = new HashMap<>();
+
+    /**
+     * Fragments disparus depuis le dernier rapport envoyé.
+     */
+    private Map<String, Map<Integer, Long>> reportRemoved = new HashMap<>();
+
+    /**
+     * Un rapport incrémental est-il en attente d'envoi ?
+     */
+    private boolean reportScheduled = false;
+
     /**
      * Adresse du noeud depuis le NameServer.
      */
     private String externalHostname;
 
+    /**
+     * Exécuteur des connexions et des requêtes reçues.
+     */
+    private final ExecutorService executor = HdfsExecutors.newTaskExecutor("hdfs-node");
+
+    /**
+     * Nombre de requêtes en cours de traitement, transmis avec les battements de
+     * coeur.
+     */
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    /**
+     * Connexions persistantes vers le NameServer et les noeuds suivants des
+     * chaînes de réplication.
+     */
+    private final HdfsConnectionPool pool = new HdfsConnectionPool();
+
+    /**
+     * Contenu des fragments récemment lus.
+     */
+    private final HdfsFragmentCache cache;
+
     /**
      * Initialise un noeud connecté au NameServer host:port
      */
     public HdfsNode(String host, int port, String nodeRoot) {
+        this(host, port, nodeRoot, HdfsFragmentCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initialise un noeud connecté au NameServer host:port
+     *
+     * @param cacheCapacity Capacité du cache des fragments lus, en octets, 0
+     *                      pour le désactiver
+     */
+    public HdfsNode(String host, int port, String nodeRoot, long cacheCapacity) {
         this.nameServerHost = host;
         this.nameServerPort = port;
         this.nodeRoot = new File(nodeRoot).getAbsolutePath();
+        this.cache = new HdfsFragmentCache(cacheCapacity);
 
         // On crée un serveur
         try {
@@ -71,6 +131,8 @@ public class HdfsNode {
         System.out.println("* Serveur lancé sur le port " + this.server.getLocalPort());
         System.out.println("* Ctrl+C pour arrêter le serveur");
         System.out.println("* Dossier courant : " + this.nodeRoot);
+        System.out.println("* Cache des fragments : " + this.cache.getCapacity() / 1048576 + " Mo");
+        System.out.println("* Threads des requêtes : " + HdfsExecutors.getMode().name().toLowerCase());
         System.out.println();
 
     }
@@ -85,22 +147,24 @@ public class HdfsNode {
 
     private void initNode() {
 
-        try {
-            Socket sock = this.newNameServerSocket();
-
-            ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        try (HdfsExchange exchange = this.newNameServerExchange()) {
 
             System.out.println(
                     "Initialisation du serveur: port=" + this.server.getLocalPort() + "; root=" + this.nodeRoot);
 
-            outputStream.writeObject(HdfsAction.NEW_NODE);
-            outputStream.writeObject(this.server.getLocalPort());
-            outputStream.writeObject(this.nodeRoot);
-            outputStream.writeObject(this.files);
+            HdfsMessage request = new HdfsMessage(HdfsAction.NEW_NODE).putInt(this.server.getLocalPort())
+                    .putString(this.nodeRoot);
+            synchronized (this) {
+                // Le rapport complet remplace les rapports incrémentaux en attente
+                request.putFragmentMap(this.files);
+                this.reportAdded.clear();
+                this.reportRemoved.clear();
+            }
+            exchange.send(request);
 
-            this.externalHostname = (String) new ObjectInputStream(sock.getInputStream()).readObject();
+            this.externalHostname = exchange.receive(HdfsAction.PONG).getString();
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException | HdfsRuntimeException e) {
             System.err.println("Le NameServer n'est pas joignable.");
             throw new HdfsRuntimeException(e);
         }
@@ -108,10 +172,10 @@ public class HdfsNode {
     }
 
     /**
-     * Crée une socket vers le NameServer.
+     * Ouvre un échange avec le NameServer.
      */
-    private Socket newNameServerSocket() throws IOException {
-        return new Socket(this.nameServerHost, this.nameServerPort);
+    private HdfsExchange newNameServerExchange() throws IOException {
+        return this.pool.open(this.nameServerHost, this.nameServerPort);
     }
 
     /**
@@ -120,52 +184,175 @@ public class HdfsNode {
      * @throws IOException
      */
     private void openServer() throws IOException {
-        this.server = new ServerSocket(0);
+        // Les sockets acceptées par un ServerSocketChannel ont un canal, ce qui
+        // permet les transferts de fichiers sans copie
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
     }
 
     /**
-     * Scanne le dossier du noeud pour découvrir les fichiers stockés.
+     * Scanne le dossier du noeud pour découvrir les fichiers stockés. La liste
+     * est ensuite tenue à jour à chaque écriture et suppression, le scan n'est
+     * refait qu'à la demande du NameServer.
      */
     private void scanDir() {
-        this.files = new HashMap<>();
+        Map<String, Map<Integer, File>> files = new HashMap<>();
 
         for (File f : new File(this.nodeRoot).listFiles()) {
-            synchronized (this) {
-                // On parse le nom du fichier
-                String name = f.getName();
-                if (!f.isFile() || !name.endsWith(".part")) {
-                    continue;
-                }
-                name = name.substring(0, name.length() - 5);
-                boolean lastPart = name.endsWith(".final");
-                if (lastPart) {
-                    name = name.substring(0, name.length() - 6);
-                }
-                int id;
-                String originalName;
-                try {
-                    int pos = name.lastIndexOf(".");
-                    id = Integer.parseInt(name.substring(pos + 1));
-                    originalName = name.substring(0, pos);
-                } catch (NumberFormatException e) {
-                    continue;
-                }
+            // On parse le nom du fichier
+            String name = f.getName();
+            if (!f.isFile() || !name.endsWith(".part")) {
+                continue;
+            }
+            name = name.substring(0, name.length() - 5);
+            if (name.endsWith(FragmentInfo.COMPRESSED_MARK)) {
+                name = name.substring(0, name.length() - FragmentInfo.COMPRESSED_MARK.length());
+            }
+            boolean lastPart = name.endsWith(".final");
+            if (lastPart) {
+                name = name.substring(0, name.length() - 6);
+            }
+            int id;
+            String originalName;
+            try {
+                int pos = name.lastIndexOf(".");
+                id = Integer.parseInt(name.substring(pos + 1));
+                originalName = name.substring(0, pos);
+            } catch (NumberFormatException e) {
+                continue;
+            }
 
-                // On sauvegarde le fragment
-                if (!files.containsKey(originalName)) {
-                    files.put(originalName, new HashMap<>());
-                }
+            // On sauvegarde le fragment
+            addFragment(files, originalName, id, lastPart, f.getAbsoluteFile());
+        }
 
-                Map<Integer, File> fragmentMap = files.get(originalName);
+        synchronized (this) {
+            this.files = files;
+        }
+        // Les fichiers ont pu être modifiés hors du noeud
+        this.cache.clear();
 
-                fragmentMap.put(id, f.getAbsoluteFile());
+    }
 
-                if (!lastPart && !fragmentMap.containsKey(id + 1)) {
-                    fragmentMap.put(id + 1, null);
+    /**
+     * Ajoute un fragment à une liste de fichiers.
+     */
+    private static void addFragment(Map<String, Map<Integer, File>> files, String name, int id, boolean lastPart,
+            File file) {
+        if (!files.containsKey(name)) {
+            files.put(name, new HashMap<>());
+        }
+
+        Map<Integer, File> fragmentMap = files.get(name);
+
+        fragmentMap.put(id, file);
+
+        if (!lastPart && !fragmentMap.containsKey(id + 1)) {
+            fragmentMap.put(id + 1, null);
+        }
+    }
+
+    /**
+     * Enregistre un fragment écrit sur le noeud et le signale au NameServer.
+     */
+    private void fragmentAdded(String name, int id, boolean lastPart, File file) {
+        this.cache.invalidate(file);
+        // Lu avant de verrouiller le noeud : la taille d'un fragment compressé est dans son en-tête
+        long length = HdfsCompression.getRawLength(file);
+        synchronized (this) {
+            addFragment(this.files, name, id, lastPart, file);
+            this.reportAdded.computeIfAbsent(name, key -> new HashMap<>()).put(id, length);
+            if (!lastPart) {
+                this.reportAdded.get(name).putIfAbsent(id + 1, -1L);
+            }
+            Map<Integer, Long> removed = this.reportRemoved.get(name);
+            if (removed != null) {
+                removed.remove(id);
+            }
+        }
+        this.scheduleReport();
+    }
+
+    /**
+     * Retire un fragment disparu du noeud et le signale au NameServer.
+     */
+    private void fragmentLost(String name, int id) {
+        synchronized (this) {
+            Map<Integer, File> fragments = this.files.get(name);
+            if (fragments != null && fragments.get(id) != null) {
+                this.cache.invalidate(fragments.put(id, null));
+            }
+            this.reportRemoved.computeIfAbsent(name, key -> new HashMap<>()).put(id, -1L);
+            Map<Integer, Long> added = this.reportAdded.get(name);
+            if (added != null) {
+                added.remove(id);
+            }
+        }
+        this.scheduleReport();
+    }
+
+    /**
+     * @return Le fichier d'un fragment, null s'il est absent du noeud
+     */
+    private synchronized File getFragment(String name, int id) {
+        Map<Integer, File> fragments = this.files.get(name);
+        return fragments == null ? null : fragments.get(id);
+    }
+
+    /**
+     * Programme l'envoi d'un rapport incrémental, qui regroupe les modifications
+     * des {@link #REPORT_DELAY} prochaines ms.
+     */
+    private void scheduleReport() {
+        synchronized (this) {
+            if (this.reportScheduled) {
+                return;
+            }
+            this.reportScheduled = true;
+        }
+        this.executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(REPORT_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                HdfsNode.this.sendReport();
             }
+        });
+    }
+
+    /**
+     * Envoie au NameServer les fragments ajoutés et disparus depuis le dernier
+     * rapport.
+     */
+    private void sendReport() {
+        Map<String, Map<Integer, Long>> added;
+        Map<String, Map<Integer, Long>> removed;
+        synchronized (this) {
+            added = this.reportAdded;
+            removed = this.reportRemoved;
+            this.reportAdded = new HashMap<>();
+            this.reportRemoved = new HashMap<>();
+            this.reportScheduled = false;
         }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        try (HdfsExchange exchange = this.newNameServerExchange()) {
+
+            exchange.send(new HdfsMessage(HdfsAction.BLOCK_REPORT).putInt(this.server.getLocalPort())
+                    .putFragmentSizes(added).putFragmentSizes(removed));
+            HdfsAction answer = exchange.receive().getAction();
+
+            if (answer != HdfsAction.PONG) {
+                System.err.println("Rapport : Le NameServer ne reconnaît pas le noeud, initialisation...");
+                this.initNode();
+            }
 
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Rapport : Le NameServer n'est pas joignable, rapport complet au prochain ping.");
+        }
     }
 
     /**
@@ -173,15 +360,13 @@ public class HdfsNode {
      */
     private void runListener() {
 
-        ExecutorService executor = Executors.newCachedThreadPool();
-
         while (true) {
             try {
 
                 Socket sock = this.server.accept();
-                executor.submit(new Runnable() {
+                this.executor.submit(new Runnable() {
                     public void run() {
-                        HdfsNode.this.handleRequest(sock);
+                        HdfsNode.this.handleConnection(sock);
                     }
                 });
 
@@ -192,83 +377,356 @@ public class HdfsNode {
 
     }
 
-    private void handleRequest(Socket sock) {
+    /**
+     * Sert une connexion entrante jusqu'à sa fermeture.
+     */
+    private void handleConnection(Socket sock) {
+        try {
+            HdfsConnection.serve(sock, this.executor, new HdfsConnection.Handler() {
+                @Override
+                public void handle(HdfsExchange exchange, HdfsMessage request) throws IOException {
+                    HdfsNode.this.activeRequests.incrementAndGet();
+                    try {
+                        HdfsNode.this.handleRequest(exchange, request);
+                    } finally {
+                        HdfsNode.this.activeRequests.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public FileChannel openSink(HdfsMessage request) throws IOException {
+                    return HdfsNode.this.openSink(request);
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Données invalides, connexion annulée.");
+        }
+    }
+
+    /**
+     * Traite une requête reçue sur une connexion persistante.
+     */
+    private void handleRequest(HdfsExchange exchange, HdfsMessage request) throws IOException {
+
+        HdfsAction action = request.getAction();
+
+        if (action == HdfsAction.PING) {
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
+        } else if (action == HdfsAction.WRITE) {
+            this.handleWrite(exchange, request);
+        } else if (action == HdfsAction.READ) {
+            this.handleRead(exchange, request);
+        } else if (action == HdfsAction.DELETE) {
+            this.handleDelete(exchange, request);
+        } else if (action == HdfsAction.DELETE_FRAGMENT) {
+            this.handleDeleteFragment(exchange, request);
+        } else if (action == HdfsAction.REPLICATE) {
+            this.handleReplicate(exchange, request);
+        } else if (action == HdfsAction.FORCE_RESCAN) {
+            this.handleForceRescan(exchange, request);
+        } else {
+            System.err.println("Action reçue invalide, requête annulée.");
+            exchange.sendError("Action invalide : " + action);
+        }
+    }
+
+    /**
+     * Ouvre le fragment dans lequel une requête d'écriture sera reçue.
+     */
+    private FileChannel openSink(HdfsMessage request) throws IOException {
+        if (request.getAction() != HdfsAction.WRITE) {
+            return null;
+        }
+        String fileName = request.getString();
+        int fragment = request.getInt();
+        boolean lastPart = request.getBoolean();
+        request.getNodes();
+        boolean compressed = isCompressedWrite(request);
+        File f = new File(this.nodeRoot, FragmentInfo.makeFragmentName(fileName, fragment, lastPart, compressed));
+        // Le fragment est peut-être réécrit, éventuellement sous l'autre forme
+        this.cache.invalidate(f);
+        File other = new File(this.nodeRoot, FragmentInfo.makeFragmentName(fileName, fragment, lastPart, !compressed));
+        if (other.delete()) {
+            this.cache.invalidate(other);
+        }
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Lit le dernier champ d'une requête WRITE, qui indique si le fragment est
+     * envoyé compressé. Il est absent des requêtes des anciennes versions, qui
+     * n'envoient que des fragments non compressés.
+     */
+    private static boolean isCompressedWrite(HdfsMessage request) {
+        return request.hasRemaining() && request.getBoolean();
+    }
 
-        try (ObjectInputStream inputStream = new ObjectInputStream(sock.getInputStream())) {
+    /**
+     * Envoie un fragment tel qu'il est stocké, ou seulement une plage de ses
+     * données si la requête donne une position et une longueur. Une plage est
+     * toujours envoyée décompressée.
+     */
+    private void handleRead(HdfsExchange exchange, HdfsMessage request) throws IOException {
+
+        String fileName = request.getString();
+        int fragment = request.getInt();
+        long offset = 0;
+        long length = -1;
+        if (request.hasRemaining()) {
+            offset = request.getLong();
+            length = request.getLong();
+        }
+        File file = this.getFragment(fileName, fragment);
 
-            HdfsAction action = (HdfsAction) inputStream.readObject();
+        FileChannel channel;
+        try {
+            if (file == null) {
+                throw new NoSuchFileException(fileName);
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Le NameServer croit que le noeud possède le fragment
+            this.fragmentLost(fileName, fragment);
+            exchange.sendError("Fragment " + fragment + " de " + fileName + " introuvable");
+            return;
+        }
 
-            if (action == HdfsAction.PING) {
-                ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-                outputStream.writeObject(HdfsAction.PONG);
-            } else if (action == HdfsAction.WRITE) {
-                this.handleWrite(sock, inputStream);
-            } else if (action == HdfsAction.READ) {
-                this.handleRead(sock, inputStream);
-            } else if (action == HdfsAction.DELETE) {
-                this.handleDelete(sock, inputStream);
-            } else if (action == HdfsAction.FORCE_RESCAN) {
-                this.handleForceRescan(sock, inputStream);
+        try (channel) {
+            if (length >= 0) {
+                this.sendRange(exchange, file, channel, offset, length);
+                return;
+            }
+            ByteBuffer content = this.cache.isEnabled() ? this.cache.get(file, channel) : null;
+            if (content != null) {
+                exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(content.remaining()));
+                exchange.sendBuffer(content);
             } else {
-                System.err.println("Action reçue invalide, connexion annulée.");
+                long size = channel.size();
+                exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(size));
+                exchange.sendFile(channel, 0, size);
             }
+            exchange.send(new HdfsMessage(HdfsAction.END));
+        }
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Données invalides, connexion annulée.");
+    /**
+     * Envoie une plage des données d'un fragment, tronquée à la fin du fragment.
+     * Les blocs d'un fragment compressé qui précèdent la plage ne sont pas
+     * décompressés.
+     */
+    private void sendRange(HdfsExchange exchange, File file, FileChannel channel, long offset, long length)
+            throws IOException {
+        if (offset < 0) {
+            exchange.sendError("Position invalide : " + offset);
+            return;
+        }
+        if (HdfsCompression.isCompressed(file)) {
+            long size = Math.max(0, Math.min(length, HdfsCompression.getRawLength(file) - offset));
+            exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(size));
+            try (InputStream input = HdfsCompression.open(new FileInputStream(file));
+                    OutputStream output = exchange.dataOutputStream()) {
+                input.skipNBytes(offset);
+                byte[] buffer = new byte[HdfsCompression.BLOCK_SIZE];
+                for (long done = 0; done < size;) {
+                    int n = input.read(buffer, 0, (int) Math.min(buffer.length, size - done));
+                    if (n < 0) {
+                        throw new EOFException("Fragment tronqué");
+                    }
+                    output.write(buffer, 0, n);
+                    done += n;
+                }
+            }
+            return;
+        }
+
+        ByteBuffer content = this.cache.isEnabled() ? this.cache.get(file, channel) : null;
+        long fileSize = content != null ? content.remaining() : channel.size();
+        long size = Math.max(0, Math.min(length, fileSize - offset));
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putLong(size));
+        if (content != null) {
+            int start = (int) Math.min(offset, fileSize);
+            exchange.sendBuffer(content.limit(start + (int) size).position(start));
+        } else {
+            exchange.sendFile(channel, offset, size);
         }
+        exchange.send(new HdfsMessage(HdfsAction.END));
     }
 
-    private void handleRead(Socket sock, ObjectInputStream inputStream) throws ClassNotFoundException, IOException {
+    /**
+     * Enregistre un fragment et le retransmet au noeud suivant de la chaîne de
+     * réplication pendant l'écriture. La réponse donne le nombre de noeuds de la
+     * chaîne, celui-ci compris, qui ont enregistré le fragment.
+     *
+     * Les données sont écrites dans le fragment par le thread de lecture de la
+     * connexion (voir {@link #openSink}), puis relues par le noyau pour être
+     * retransmises.
+     */
+    private void handleWrite(HdfsExchange exchange, HdfsMessage request) throws IOException {
+
+        String fileName = request.getString();
+        int fragment = request.getInt();
+        boolean lastPart = request.getBoolean();
+        List<HdfsNodeInfo> chain = request.getNodes();
+        boolean compressed = isCompressedWrite(request);
+
+        File f = new File(this.nodeRoot, FragmentInfo.makeFragmentName(fileName, fragment, lastPart, compressed));
+        FileChannel file = exchange.getSink();
+        if (file == null) {
+            exchange.sendError("Impossible d'écrire le fragment " + f.getName());
+            return;
+        }
 
-        String fileName = (String) inputStream.readObject();
-        int fragment = (int) inputStream.readObject();
-        File file = this.files.get(fileName).get(fragment);
+        // Ouverture de la suite de la chaîne
+        HdfsExchange downstream = null;
+        boolean forward = false;
+        if (!chain.isEmpty()) {
+            try {
+                downstream = this.pool.open(chain.get(0));
+                downstream.setTimeout(1000 * chain.size());
+                downstream.send(new HdfsMessage(HdfsAction.WRITE).putString(fileName).putInt(fragment)
+                        .putBoolean(lastPart).putNodes(chain.subList(1, chain.size())).putBoolean(compressed));
+                forward = true;
+            } catch (IOException e) {
+                System.err.println("Noeud suivant " + chain.get(0) + " injoignable, réplication interrompue.");
+                if (downstream != null) {
+                    downstream.close();
+                    downstream = null;
+                }
+            }
+        }
 
-        ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(sock.getOutputStream()));
-        os.writeLong(Files.size(file.toPath()));
-        Files.copy(file.toPath(), os);
-        os.flush();
-        sock.shutdownOutput();
+        try (file) {
+            HdfsMessage message;
+            while ((message = exchange.receive()).getAction() == HdfsAction.DATA) {
+                long position = message.getLong();
+                int length = message.getInt();
+                if (forward) {
+                    try {
+                        downstream.sendFile(file, position, length);
+                    } catch (IOException e) {
+                        System.err.println("Noeud suivant " + chain.get(0) + " déconnecté, réplication interrompue.");
+                        forward = false;
+                    }
+                }
+            }
+            message.expect(HdfsAction.END);
+        } catch (IOException | HdfsRuntimeException e) {
+            // Transfert interrompu : on prévient la suite de la chaîne
+            f.delete();
+            if (downstream != null) {
+                try (HdfsExchange aborted = downstream) {
+                    aborted.sendError("Transfert interrompu");
+                } catch (IOException e2) {
+                }
+            }
+            throw e;
+        }
 
-        if (inputStream.readObject() != HdfsAction.PONG) {
-            System.err.println("Pong non reçu, le serveur de nom a peut-être rencontré une erreur");
+        // On attend que toute la chaîne ait enregistré le fragment
+        int stored = 1;
+        if (downstream != null) {
+            try (HdfsExchange chained = downstream) {
+                if (!forward) {
+                    chained.sendError("Transfert interrompu");
+                } else {
+                    chained.send(new HdfsMessage(HdfsAction.END));
+                    stored += chained.receive(HdfsAction.PONG).getInt();
+                }
+            } catch (IOException | HdfsRuntimeException e) {
+                System.err.println("Noeud suivant " + chain.get(0) + " en erreur, réplication interrompue.");
+            }
         }
-        sock.close();
+
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putInt(stored));
+        this.fragmentAdded(fileName, fragment, lastPart, f);
+
     }
 
-    private void handleWrite(Socket sock, ObjectInputStream inputStream) throws ClassNotFoundException, IOException {
+    /**
+     * Copie un fragment stocké sur le noeud vers une chaîne de noeuds, pour
+     * rétablir sa réplication. La réponse donne le nombre de noeuds de la chaîne
+     * qui ont enregistré le fragment.
+     */
+    private void handleReplicate(HdfsExchange exchange, HdfsMessage request) throws IOException {
+
+        String fileName = request.getString();
+        int fragment = request.getInt();
+        boolean lastPart = request.getBoolean();
+        List<HdfsNodeInfo> chain = request.getNodes();
+        if (chain.isEmpty()) {
+            // Aucune copie demandée : le fragment n'est pas concerné
+            exchange.send(new HdfsMessage(HdfsAction.PONG).putInt(0));
+            return;
+        }
+        File file = this.getFragment(fileName, fragment);
 
-        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-        BufferedInputStream rawInput = new BufferedInputStream(sock.getInputStream());
+        FileChannel channel;
+        try {
+            if (file == null) {
+                throw new NoSuchFileException(fileName);
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            this.fragmentLost(fileName, fragment);
+            exchange.sendError("Fragment " + fragment + " de " + fileName + " introuvable");
+            return;
+        }
 
-        String fileName = (String) inputStream.readObject();
-        int fragment = (int) inputStream.readObject();
-        boolean lastPart = (boolean) inputStream.readObject();
+        int stored = 0;
+        try (channel; HdfsExchange downstream = this.pool.open(chain.get(0))) {
+            downstream.setTimeout(1000 * chain.size());
+            downstream.send(new HdfsMessage(HdfsAction.WRITE).putString(fileName).putInt(fragment)
+                    .putBoolean(lastPart).putNodes(chain.subList(1, chain.size()))
+                    .putBoolean(HdfsCompression.isCompressed(file)));
+            downstream.sendFile(channel, 0, channel.size());
+            downstream.send(new HdfsMessage(HdfsAction.END));
+            stored = downstream.receive(HdfsAction.PONG).getInt();
+        } catch (IOException | HdfsRuntimeException e) {
+            System.err.println("Copie du fragment " + file.getName() + " vers " + chain.get(0) + " impossible.");
+        }
 
-        File f = new File(this.nodeRoot, FragmentInfo.makeFragmentName(fileName, fragment, lastPart));
-        Files.copy(rawInput, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        exchange.send(new HdfsMessage(HdfsAction.PONG).putInt(stored));
 
-        outputStream.writeObject(HdfsAction.PONG);
-        this.scanDir();
+    }
 
+    /**
+     * Supprime un fragment déplacé vers un autre noeud. Sa disparition est
+     * signalée au NameServer dans le prochain rapport incrémental.
+     */
+    private void handleDeleteFragment(HdfsExchange exchange, HdfsMessage request) throws IOException {
+        String fileName = request.getString();
+        int fragment = request.getInt();
+        File file = this.getFragment(fileName, fragment);
+        if (file != null) {
+            file.delete();
+        }
+        this.fragmentLost(fileName, fragment);
+        exchange.send(new HdfsMessage(HdfsAction.PONG));
     }
 
-    private void handleDelete(Socket sock, ObjectInputStream inputStream) {
+    private void handleDelete(HdfsExchange exchange, HdfsMessage request) {
         boolean done = false;
         try {
-            String filename = (String) inputStream.readObject();
-            if (this.files.containsKey(filename)) {
-                for (File fragment : this.files.get(filename).values()) {
+            // Suppression demandée par le NameServer : pas besoin de la lui signaler
+            String filename = request.getString();
+            Map<Integer, File> fragments;
+            synchronized (this) {
+                fragments = this.files.remove(filename);
+                this.reportAdded.remove(filename);
+                this.reportRemoved.remove(filename);
+            }
+            if (fragments != null) {
+                for (File fragment : fragments.values()) {
                     if (fragment != null) {
                         fragment.delete();
+                        this.cache.invalidate(fragment);
                     }
                 }
             }
-            this.files.remove(filename);
             done = true;
-            ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-            outputStream.writeObject(HdfsAction.PONG);
-        } catch (ClassNotFoundException | IOException e) {
+            exchange.send(new HdfsMessage(HdfsAction.PONG));
+        } catch (IOException e) {
             if (done) {
                 System.err.println(
                         "Erreur de connexion lors de la suppression, la suppression a quand même été effectuée.");
@@ -283,14 +741,19 @@ public class HdfsNode {
      *
      * @throws IOException
      */
-    private void handleForceRescan(Socket sock, ObjectInputStream inputStream) throws IOException {
+    private void handleForceRescan(HdfsExchange exchange, HdfsMessage request) throws IOException {
         this.scanDir();
-        ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
-        outputStream.writeObject(this.files);
+        HdfsMessage response = new HdfsMessage(HdfsAction.PONG);
+        synchronized (this) {
+            response.putFragmentMap(this.files);
+            this.reportAdded.clear();
+            this.reportRemoved.clear();
+        }
+        exchange.send(response);
     }
 
     /**
-     * Lance le service de vérification de l'activité du NameServer.
+     * Lance l'envoi des battements de coeur au NameServer.
      */
     private void runPinger() {
         new Thread(new Runnable() {
@@ -299,7 +762,7 @@ public class HdfsNode {
                 while (true) {
                     HdfsNode.this.sendPing();
                     try {
-                        Thread.sleep(5000);
+                        Thread.sleep(HdfsFailureDetector.HEARTBEAT_INTERVAL);
                     } catch (InterruptedException e) {
                         break;
                     }
@@ -309,30 +772,39 @@ public class HdfsNode {
     }
 
     /**
-     * Vérifie que le NameServer est en ligne.
+     * Envoie un battement de coeur au NameServer, avec la charge du noeud.
      */
     public void sendPing() {
-        try {
-            Socket sock = this.newNameServerSocket();
-
-            ObjectOutputStream outputStream = new ObjectOutputStream(sock.getOutputStream());
+        try (HdfsExchange exchange = this.newNameServerExchange()) {
 
-            outputStream.writeObject(HdfsAction.PING);
-            outputStream.writeObject(this.server.getLocalPort());
-
-            ObjectInputStream inputStream = new ObjectInputStream(sock.getInputStream());
-            Object answer = inputStream.readObject();
+            exchange.send(new HdfsMessage(HdfsAction.PING).putInt(this.server.getLocalPort())
+                    .putNodeStats(this.getStats()));
+            HdfsAction answer = exchange.receive().getAction();
 
             if (answer != HdfsAction.PONG) {
                 System.err.println("Ping : Le NameServer ne reconnaît pas le noeud, initialisation...");
                 this.initNode();
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException | HdfsRuntimeException e) {
             System.err.println("Ping : Le NameServer n'est pas joignable.");
         }
     }
 
+    /**
+     * @return La charge actuelle du noeud
+     */
+    public HdfsNodeStats getStats() {
+        int fragments = 0;
+        synchronized (this) {
+            for (Map<Integer, File> file : this.files.values()) {
+                fragments += (int) file.values().stream().filter(f -> f != null).count();
+            }
+        }
+        return new HdfsNodeStats(new File(this.nodeRoot).getUsableSpace(), this.activeRequests.get(), fragments,
+                this.cache.getHits(), this.cache.getMisses());
+    }
+
     /**
      * Getter du serveur d'écoute.
      */
@@ -377,14 +849,19 @@ public class HdfsNode {
             nodeRoot = args[1];
         }
 
-        new HdfsNode(uri.getHost(), uri.getPort(), nodeRoot).run();
+        long cacheCapacity = HdfsFragmentCache.DEFAULT_CAPACITY;
+        if (args.length >= 3) {
+            cacheCapacity = Long.parseLong(args[2]) * 1048576;
+        }
+
+        new HdfsNode(uri.getHost(), uri.getPort(), nodeRoot, cacheCapacity).run();
     }
 
     /**
      * Affiche les paramètres CLI.
      */
     private static void printUsage() {
-        System.out.println("Usage: HdfsNode <master_host:master_port> <root>");
+        System.out.println("Usage: HdfsNode <master_host:master_port> <root> <optional cache size in Mo, 0 to disable>");
     }
 
 }
@@ -44,4 +44,8 @@ public class HdfsNodeInfo implements Serializable {
         return toString().hashCode();
     }
 
+    public boolean equals(Object o) {
+        return o instanceof HdfsNodeInfo && this.matches((HdfsNodeInfo) o);
+    }
+
 }
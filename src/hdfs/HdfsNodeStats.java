@@ -0,0 +1,73 @@
+package hdfs;
+
+/**
+ * Charge d'un noeud, transmise au NameServer avec chaque battement de coeur.
+ */
+public class HdfsNodeStats {
+
+    /**
+     * Statistiques d'un noeud qui n'a encore rien transmis.
+     */
+    final public static HdfsNodeStats UNKNOWN = new HdfsNodeStats(-1, 0, 0);
+
+    /**
+     * Espace disque disponible dans le dossier du noeud, en octets, -1 s'il est
+     * inconnu.
+     */
+    private final long freeSpace;
+
+    /**
+     * Nombre de requêtes en cours de traitement.
+     */
+    private final int activeRequests;
+
+    /**
+     * Nombre de fragments stockés.
+     */
+    private final int fragments;
+
+    /**
+     * Lectures servies depuis le cache des fragments, et lues sur le disque.
+     */
+    private final long cacheHits;
+    private final long cacheMisses;
+
+    public HdfsNodeStats(long freeSpace, int activeRequests, int fragments) {
+        this(freeSpace, activeRequests, fragments, 0, 0);
+    }
+
+    public HdfsNodeStats(long freeSpace, int activeRequests, int fragments, long cacheHits, long cacheMisses) {
+        this.freeSpace = freeSpace;
+        this.activeRequests = activeRequests;
+        this.fragments = fragments;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    public long getFreeSpace() {
+        return this.freeSpace;
+    }
+
+    public int getActiveRequests() {
+        return this.activeRequests;
+    }
+
+    public int getFragments() {
+        return this.fragments;
+    }
+
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return this.cacheMisses;
+    }
+
+    public String toString() {
+        return (this.freeSpace < 0 ? "?" : this.freeSpace / 1048576) + " Mo libres, " + this.activeRequests
+                + " requêtes, " + this.fragments + " fragments, cache : " + this.cacheHits + " succès, "
+                + this.cacheMisses + " échecs";
+    }
+
+}
@@ -0,0 +1,212 @@
+package hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Écriture en flux d'un fichier HDFS, sans fichier local intermédiaire.
+ *
+ * Les données écrites sont accumulées par blocs de {@link #BUFFER_SIZE}
+ * octets, envoyés au NameServer par un thread dédié pendant que l'appelant
+ * continue d'écrire. Au plus {@link #WRITE_BEHIND} blocs attendent d'être
+ * envoyés : au-delà, l'écriture est bloquée jusqu'à ce que le réseau suive.
+ *
+ * Le fichier n'existe sur HDFS qu'une fois le flux fermé sans erreur.
+ */
+public class HdfsOutputStream extends OutputStream {
+
+    /**
+     * Taille des blocs envoyés.
+     */
+    final public static int BUFFER_SIZE = 1048576;
+
+    /**
+     * Nombre de blocs en attente d'envoi.
+     */
+    final public static int WRITE_BEHIND = 4;
+
+    /**
+     * Bloc qui indique la fin du fichier au thread d'envoi.
+     */
+    private static final byte[] END = new byte[0];
+
+    /**
+     * Délai (en ms) entre deux vérifications de l'état du thread d'envoi
+     * lorsque la file est pleine.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    private final String name;
+    private final HdfsExchange exchange;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(WRITE_BEHIND);
+    private final Thread sender;
+
+    /**
+     * Erreur rencontrée par le thread d'envoi.
+     */
+    private volatile IOException failure = null;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Crée un fichier HDFS et l'ouvre en écriture.
+     *
+     * @param hdfsFname Nom du fichier sur HDFS
+     * @param repFactor Facteur de duplication
+     * @param codec     Nom du codec de compression, null pour ne pas compresser
+     * @throws HdfsRuntimeException Si le NameServer refuse le fichier
+     */
+    public HdfsOutputStream(String hdfsFname, int repFactor, String codec) throws IOException {
+        this(hdfsFname, repFactor, codec, null);
+    }
+
+    /**
+     * @param erasure Codage à effacement, null pour répliquer
+     */
+    HdfsOutputStream(String hdfsFname, int repFactor, String codec, String erasure) throws IOException {
+        this.name = hdfsFname;
+        this.exchange = HdfsClient.openWrite(hdfsFname, repFactor, codec, erasure);
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HdfsOutputStream.this.send();
+            }
+        }, "hdfs-write-behind");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Envoie les blocs de la file jusqu'au bloc de fin. En cas d'erreur, le
+     * NameServer est prévenu et le fichier abandonné.
+     */
+    private void send() {
+        OutputStream output = this.exchange.dataOutputStream();
+        try {
+            byte[] block;
+            while ((block = this.queue.take()) != END) {
+                output.write(block);
+            }
+            output.flush();
+        } catch (IOException e) {
+            this.abort(e);
+        } catch (InterruptedException e) {
+            this.abort(new InterruptedIOException("Transfert interrompu"));
+        }
+    }
+
+    private void abort(IOException e) {
+        this.failure = e;
+        this.queue.clear();
+        try {
+            this.exchange.sendError("Transfert interrompu");
+        } catch (IOException ignored) {
+            // Connexion perdue, le NameServer abandonne déjà le fichier
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Flux fermé");
+        }
+        if (this.failure != null) {
+            throw new IOException("Échec de l'écriture de " + this.name, this.failure);
+        }
+    }
+
+    /**
+     * Confie un bloc au thread d'envoi, en attendant qu'une place se libère.
+     */
+    private void enqueue(byte[] block) throws IOException {
+        try {
+            while (!this.queue.offer(block, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                this.ensureOpen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.ensureOpen();
+        if (this.count == this.buffer.length) {
+            this.flush();
+        }
+        this.buffer[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.ensureOpen();
+        while (len > 0) {
+            if (this.count == this.buffer.length) {
+                this.flush();
+            }
+            int n = Math.min(len, this.buffer.length - this.count);
+            System.arraycopy(b, off, this.buffer, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Confie les données déjà écrites au thread d'envoi, sans attendre qu'elles
+     * soient envoyées.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.ensureOpen();
+        if (this.count > 0) {
+            byte[] block = this.count == this.buffer.length ? this.buffer : Arrays.copyOf(this.buffer, this.count);
+            this.enqueue(block);
+            this.buffer = new byte[BUFFER_SIZE];
+            this.count = 0;
+        }
+    }
+
+    /**
+     * Termine l'envoi et attend que le NameServer ait distribué le fichier.
+     *
+     * @throws HdfsRuntimeException Si le NameServer signale une erreur
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.flush();
+            this.enqueue(END);
+            this.sender.join();
+            this.closed = true;
+            if (this.failure != null) {
+                throw new IOException("Échec de l'écriture de " + this.name, this.failure);
+            }
+
+            // Fin des données, puis confirmation du NameServer
+            this.exchange.dataOutputStream().close();
+            this.exchange.receive(HdfsAction.PONG);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            this.closed = true;
+            if (this.sender.isAlive()) {
+                this.sender.interrupt();
+            }
+            this.exchange.close();
+            HdfsClient.invalidateLocations(this.name);
+        }
+    }
+
+}
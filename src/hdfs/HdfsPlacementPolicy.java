@@ -0,0 +1,30 @@
+package hdfs;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Politique de placement des répliques sur les noeuds.
+ *
+ * Le NameServer l'utilise pour choisir les noeuds d'une chaîne d'écriture, les
+ * destinations d'une copie de réplication et pour répondre aux demandes de
+ * placement des clients.
+ */
+public interface HdfsPlacementPolicy {
+
+    /**
+     * Classe les noeuds candidats par ordre de préférence pour recevoir une
+     * réplique d'un fragment. Les premiers noeuds de la liste sont utilisés, les
+     * suivants remplacent ceux qui échouent.
+     *
+     * @param fileName      Nom du fichier
+     * @param candidates    Noeuds actifs qui ne possèdent pas le fragment
+     * @param fileFragments Nombre de fragments du fichier déjà placés sur chaque
+     *                      noeud, 0 si absent
+     * @param stats         Dernière charge transmise par chaque noeud
+     * @return Tous les candidats, du plus au moins adapté
+     */
+    List<HdfsNodeInfo> rank(String fileName, List<HdfsNodeInfo> candidates, Map<HdfsNodeInfo, Integer> fileFragments,
+            Map<HdfsNodeInfo, HdfsNodeStats> stats);
+
+}
@@ -0,0 +1,84 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plage d'octets d'un fichier HDFS, lue par {@link HdfsClient#HdfsPread}.
+ */
+public class HdfsRange {
+
+    /**
+     * Position du premier octet dans le fichier.
+     */
+    public final long offset;
+
+    /**
+     * Nombre d'octets.
+     */
+    public final int length;
+
+    public HdfsRange(long offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Plage invalide : " + offset + "+" + length);
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return La position qui suit le dernier octet
+     */
+    public long getEnd() {
+        return this.offset + this.length;
+    }
+
+    /**
+     * Indique si la plage contient entièrement une autre plage.
+     */
+    public boolean contains(HdfsRange range) {
+        return this.offset <= range.offset && range.getEnd() <= this.getEnd();
+    }
+
+    /**
+     * Regroupe des plages qui se chevauchent ou sont proches, pour les lire en
+     * une seule requête : les octets qui les séparent sont lus en trop.
+     *
+     * @param ranges    Plages, dans n'importe quel ordre
+     * @param gap       Écart maximal entre deux plages regroupées
+     * @param maxLength Taille au-delà de laquelle une plage regroupée n'est plus
+     *                  étendue
+     * @return Les plages regroupées, triées, qui contiennent chacune des plages
+     *         données
+     */
+    public static List<HdfsRange> coalesce(List<HdfsRange> ranges, int gap, int maxLength) {
+        List<HdfsRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong((HdfsRange range) -> range.offset));
+
+        List<HdfsRange> merged = new ArrayList<>();
+        HdfsRange current = null;
+        for (HdfsRange range : sorted) {
+            if (current != null && range.offset <= current.getEnd() + gap) {
+                long end = Math.max(current.getEnd(), range.getEnd());
+                if (end - current.offset <= maxLength || range.getEnd() <= current.getEnd()) {
+                    current = new HdfsRange(current.offset, (int) (end - current.offset));
+                    continue;
+                }
+            }
+            if (current != null) {
+                merged.add(current);
+            }
+            current = range;
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged;
+    }
+
+    public String toString() {
+        return this.offset + "+" + this.length;
+    }
+
+}
@@ -0,0 +1,199 @@
+package hdfs;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Rééquilibrage de la répartition des fragments entre les noeuds.
+ *
+ * Les fragments restent sur les noeuds qui les ont reçus à l'écriture : un
+ * noeud ajouté ensuite n'a rien à traiter pendant les maps. Pour chaque
+ * fichier, le rééquilibrage vise une répartition où les nombres de répliques
+ * des noeuds actifs diffèrent d'au plus un, et déplace des fragments du noeud
+ * le plus chargé vers le moins chargé jusqu'à l'atteindre.
+ *
+ * Un déplacement copie le fragment vers sa destination, puis remplace la
+ * source par la destination dans le catalogue en une seule modification. La
+ * copie de la source n'est supprimée qu'après {@link #MOVE_GRACE} ms, pour que
+ * les lectures et les maps qui l'utilisent encore se terminent.
+ */
+public class HdfsRebalancer {
+
+    /**
+     * Temps (en ms) entre deux rééquilibrages automatiques.
+     */
+    final public static int REBALANCE_INTERVAL = 60000;
+
+    /**
+     * Temps (en ms) pendant lequel l'ancienne copie d'un fragment déplacé est
+     * conservée.
+     */
+    final public static int MOVE_GRACE = 60000;
+
+    /**
+     * NameServer rééquilibré.
+     */
+    private final HdfsNameServer server;
+
+    /**
+     * Limite du débit des déplacements.
+     */
+    private final HdfsThrottle throttle;
+
+    /**
+     * Suppressions différées des anciennes copies.
+     */
+    private final Timer timer = new Timer("hdfs-rebalancer", true);
+
+    /**
+     * Verrou des rééquilibrages, faits l'un après l'autre.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param server   NameServer rééquilibré
+     * @param throttle Limite du débit des déplacements, partagée avec les autres
+     *                 transferts de fond
+     */
+    public HdfsRebalancer(HdfsNameServer server, HdfsThrottle throttle) {
+        this.server = server;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Lance le rééquilibrage périodique.
+     */
+    public void start() {
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    int moved = HdfsRebalancer.this.rebalance();
+                    if (moved > 0) {
+                        System.out.println("Rééquilibrage : " + moved + " fragments déplacés");
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Rééquilibrage : " + e.getMessage());
+                }
+            }
+        }, REBALANCE_INTERVAL, REBALANCE_INTERVAL);
+    }
+
+    /**
+     * Rééquilibre tous les fichiers.
+     *
+     * @return Le nombre de fragments déplacés
+     */
+    public int rebalance() {
+        this.lock.lock();
+        try {
+            List<HdfsNodeInfo> nodes = this.server.getNodes().stream().filter(node -> !this.server.isSuspect(node))
+                    .collect(Collectors.toList());
+            if (nodes.size() < 2) {
+                return 0;
+            }
+
+            int moved = 0;
+            try {
+                for (String name : this.server.getNamespace().getFileNames()) {
+                    moved += this.rebalance(name, nodes);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return moved;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Rééquilibre un fichier entre des noeuds.
+     *
+     * @return Le nombre de fragments déplacés
+     */
+    private int rebalance(String name, List<HdfsNodeInfo> nodes) throws InterruptedException {
+        HdfsNamespace namespace = this.server.getNamespace();
+        int replication = namespace.getReplication(name);
+        List<List<FragmentInfo>> fragments = namespace.listFragments(name);
+        if (replication <= 0 || fragments == null) {
+            // Fichier en cours d'écriture
+            return 0;
+        }
+        if (namespace.getErasure(name) != null) {
+            // Les fragments d'une bande restent sur les noeuds distincts choisis à l'écriture
+            return 0;
+        }
+
+        Map<HdfsNodeInfo, Integer> counts = new HashMap<>();
+        for (HdfsNodeInfo node : nodes) {
+            counts.put(node, 0);
+        }
+        for (List<FragmentInfo> replicas : fragments) {
+            for (FragmentInfo replica : replicas) {
+                counts.computeIfPresent(replica.node, (node, count) -> count + 1);
+            }
+        }
+
+        int moved = 0;
+        while (true) {
+            HdfsNodeInfo from = nodes.stream().max((a, b) -> counts.get(a) - counts.get(b)).get();
+            HdfsNodeInfo to = nodes.stream().min((a, b) -> counts.get(a) - counts.get(b)).get();
+            if (counts.get(from) - counts.get(to) <= 1) {
+                return moved;
+            }
+
+            // Un fragment complètement répliqué de la source, absent de la destination
+            FragmentInfo fragment = null;
+            for (List<FragmentInfo> replicas : fragments) {
+                if (replicas.size() >= replication && replicas.stream().anyMatch(r -> r.node.matches(from))
+                        && replicas.stream().noneMatch(r -> r.node.matches(to))) {
+                    fragment = replicas.get(0);
+                    fragments.remove(replicas);
+                    break;
+                }
+            }
+            if (fragment == null) {
+                return moved;
+            }
+
+            if (!this.move(fragment, from, to)) {
+                return moved;
+            }
+            counts.merge(from, -1, Integer::sum);
+            counts.merge(to, 1, Integer::sum);
+            moved++;
+        }
+    }
+
+    /**
+     * Déplace un fragment d'un noeud à un autre.
+     *
+     * @return false si la copie a échoué
+     */
+    private boolean move(FragmentInfo fragment, HdfsNodeInfo from, HdfsNodeInfo to) throws InterruptedException {
+        this.throttle.acquire(Math.max(fragment.size, 0));
+        if (this.server.copyFragment(fragment.filename, fragment.id, fragment.lastPart, from, List.of(to)) < 1) {
+            return false;
+        }
+        this.server.getNamespace().moveReplica(fragment.filename, fragment.id, from, to);
+
+        // Suppression différée, sauf si le fragment est revenu sur la source entre temps
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                if (HdfsRebalancer.this.server.getNamespace().getReplicas(fragment.filename, fragment.id).stream()
+                        .noneMatch(node -> node.matches(from))) {
+                    HdfsRebalancer.this.server.deleteFragment(from, fragment.filename, fragment.id);
+                }
+            }
+        }, MOVE_GRACE);
+        return true;
+    }
+
+}
@@ -0,0 +1,311 @@
+package hdfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codage à effacement de Reed-Solomon RS(k, m), sur le corps GF(256).
+ *
+ * Les fragments d'un fichier sont regroupés en bandes de k fragments de
+ * données, auxquelles s'ajoutent m fragments de parité. N'importe quels k
+ * fragments d'une bande suffisent à reconstruire les autres : une bande
+ * survit à la perte de m noeuds, pour un surcoût de stockage de (k + m) / k au
+ * lieu du facteur de réplication.
+ *
+ * Les fragments d'une bande sont de tailles différentes, car alignés sur les
+ * fins de ligne : ils sont complétés par des zéros jusqu'au plus long, qui
+ * donne la taille des fragments de parité. La dernière bande d'un fichier peut
+ * avoir moins de k fragments de données, les fragments absents valent zéro.
+ *
+ * Les fragments de parité ont des numéros négatifs, ils ne sont donc jamais
+ * listés avec les fragments de données : le fragment de parité j de la bande s
+ * porte le numéro -1 - (s * m + j).
+ *
+ * La matrice de codage est systématique (les fragments de données sont stockés
+ * tels quels) et de Cauchy pour la parité : toutes ses sous-matrices carrées
+ * sont inversibles, ce qui garantit la reconstruction.
+ */
+public class HdfsReedSolomon {
+
+    /**
+     * Codage par défaut des fichiers à effacement : RS(6, 3), surcoût 1,5.
+     */
+    final public static String DEFAULT_SCHEME = "rs-6-3";
+
+    /**
+     * Polynôme générateur du corps GF(256).
+     */
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    /**
+     * Table de multiplication du corps, MUL[a][b] = a * b.
+     */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    /**
+     * Codages déjà construits, par nom.
+     */
+    private static final Map<String, HdfsReedSolomon> SCHEMES = new ConcurrentHashMap<>();
+
+    /**
+     * Nombre de fragments de données par bande.
+     */
+    private final int dataFragments;
+
+    /**
+     * Nombre de fragments de parité par bande.
+     */
+    private final int parityFragments;
+
+    /**
+     * Coefficients des fragments de parité, parity[j][i] pour le fragment de
+     * données i.
+     */
+    private final byte[][] parity;
+
+    /**
+     * @param dataFragments   Nombre de fragments de données par bande
+     * @param parityFragments Nombre de fragments de parité par bande
+     */
+    public HdfsReedSolomon(int dataFragments, int parityFragments) {
+        if (dataFragments <= 0 || parityFragments <= 0 || dataFragments + parityFragments > 256) {
+            throw new HdfsRuntimeException("Codage RS(" + dataFragments + ", " + parityFragments + ") invalide");
+        }
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.parity = new byte[parityFragments][dataFragments];
+        for (int j = 0; j < parityFragments; j++) {
+            for (int i = 0; i < dataFragments; i++) {
+                this.parity[j][i] = (byte) inverse((dataFragments + j) ^ i);
+            }
+        }
+    }
+
+    /**
+     * @param name Nom d'un codage, de la forme rs-k-m
+     * @return Le codage, null si le nom est null ou invalide
+     */
+    public static HdfsReedSolomon forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        HdfsReedSolomon scheme = SCHEMES.get(name);
+        if (scheme != null) {
+            return scheme;
+        }
+        String[] parts = name.split("-");
+        if (parts.length != 3 || !parts[0].equals("rs")) {
+            return null;
+        }
+        try {
+            scheme = new HdfsReedSolomon(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (NumberFormatException | HdfsRuntimeException e) {
+            return null;
+        }
+        SCHEMES.putIfAbsent(scheme.getName(), scheme);
+        return scheme;
+    }
+
+    /**
+     * @return Le nom du codage, de la forme rs-k-m
+     */
+    public String getName() {
+        return "rs-" + this.dataFragments + "-" + this.parityFragments;
+    }
+
+    public int getDataFragments() {
+        return this.dataFragments;
+    }
+
+    public int getParityFragments() {
+        return this.parityFragments;
+    }
+
+    /**
+     * @return Le nombre total de fragments d'une bande
+     */
+    public int getStripeWidth() {
+        return this.dataFragments + this.parityFragments;
+    }
+
+    /**
+     * @return Le numéro de la bande d'un fragment de données ou de parité
+     */
+    public int getStripe(int id) {
+        return id >= 0 ? id / this.dataFragments : (-1 - id) / this.parityFragments;
+    }
+
+    /**
+     * @return La position d'un fragment dans sa bande : de 0 à k - 1 pour les
+     *         données, de k à k + m - 1 pour la parité
+     */
+    public int getMember(int id) {
+        return id >= 0 ? id % this.dataFragments : this.dataFragments + (-1 - id) % this.parityFragments;
+    }
+
+    /**
+     * @return Le numéro du fragment à une position d'une bande
+     */
+    public int getId(int stripe, int member) {
+        if (member < this.dataFragments) {
+            return stripe * this.dataFragments + member;
+        }
+        return -1 - (stripe * this.parityFragments + member - this.dataFragments);
+    }
+
+    /**
+     * Ajoute la contribution d'un fragment de données aux fragments de parité de
+     * sa bande. Les fragments de données peuvent être ajoutés dans n'importe
+     * quel ordre.
+     *
+     * @param member Position du fragment dans la bande
+     * @param data   Contenu du fragment
+     * @param length Taille du fragment
+     * @param parity Fragments de parité en cours de calcul, d'au moins length
+     *               octets, initialement nuls
+     */
+    public void encode(int member, byte[] data, int length, byte[][] parity) {
+        for (int j = 0; j < this.parityFragments; j++) {
+            mulAdd(this.parity[j][member], data, parity[j], length);
+        }
+    }
+
+    /**
+     * Reconstruit les fragments manquants d'une bande.
+     *
+     * @param members Fragments de la bande par position, null pour les fragments
+     *                manquants, remplacés par leur contenu reconstruit. Les
+     *                fragments présents font au moins length octets.
+     * @param length  Taille des fragments de la bande
+     * @throws IOException S'il reste moins de k fragments
+     */
+    public void decode(byte[][] members, int length) throws IOException {
+        int k = this.dataFragments;
+
+        // Les k premiers fragments présents suffisent
+        int[] chosen = new int[k];
+        int n = 0;
+        for (int member = 0; member < members.length && n < k; member++) {
+            if (members[member] != null) {
+                chosen[n++] = member;
+            }
+        }
+        if (n < k) {
+            throw new IOException("Bande irrécupérable : " + n + " fragments sur les " + k + " nécessaires");
+        }
+
+        // Lignes de la matrice de codage correspondant aux fragments choisis
+        byte[][] matrix = new byte[k][];
+        for (int r = 0; r < k; r++) {
+            if (chosen[r] < k) {
+                matrix[r] = new byte[k];
+                matrix[r][chosen[r]] = 1;
+            } else {
+                matrix[r] = this.parity[chosen[r] - k].clone();
+            }
+        }
+        byte[][] inverse = invert(matrix);
+
+        for (int i = 0; i < k; i++) {
+            if (members[i] == null) {
+                byte[] data = new byte[length];
+                for (int r = 0; r < k; r++) {
+                    mulAdd(inverse[i][r], members[chosen[r]], data, length);
+                }
+                members[i] = data;
+            }
+        }
+        for (int j = 0; j < this.parityFragments; j++) {
+            if (members[k + j] == null) {
+                byte[] parity = new byte[length];
+                for (int i = 0; i < k; i++) {
+                    mulAdd(this.parity[j][i], members[i], parity, length);
+                }
+                members[k + j] = parity;
+            }
+        }
+    }
+
+    /**
+     * Ajoute c * input à output, octet par octet.
+     */
+    private static void mulAdd(byte c, byte[] input, byte[] output, int length) {
+        if (c == 0) {
+            return;
+        }
+        byte[] table = MUL[c & 0xFF];
+        for (int b = 0; b < length; b++) {
+            output[b] ^= table[input[b] & 0xFF];
+        }
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Inverse une matrice carrée par la méthode de Gauss-Jordan.
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] inverse = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            inverse[i][i] = 1;
+        }
+
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && matrix[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new HdfsRuntimeException("Matrice de codage non inversible");
+            }
+            byte[] swap = matrix[pivot];
+            matrix[pivot] = matrix[column];
+            matrix[column] = swap;
+            swap = inverse[pivot];
+            inverse[pivot] = inverse[column];
+            inverse[column] = swap;
+
+            byte scale = (byte) inverse(matrix[column][column] & 0xFF);
+            for (int c = 0; c < n; c++) {
+                matrix[column][c] = MUL[scale & 0xFF][matrix[column][c] & 0xFF];
+                inverse[column][c] = MUL[scale & 0xFF][inverse[column][c] & 0xFF];
+            }
+            for (int row = 0; row < n; row++) {
+                byte factor = matrix[row][column];
+                if (row != column && factor != 0) {
+                    mulAdd(factor, matrix[column], matrix[row], n);
+                    mulAdd(factor, inverse[column], inverse[row], n);
+                }
+            }
+        }
+        return inverse;
+    }
+
+}
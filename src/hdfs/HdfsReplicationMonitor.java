@@ -0,0 +1,197 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Surveillance de la réplication des fragments.
+ *
+ * Quand un noeud disparaît, ses répliques sont retirées du catalogue et le
+ * facteur de réplication des fichiers n'est plus respecté. Le moniteur parcourt
+ * régulièrement le catalogue et demande aux noeuds qui possèdent encore les
+ * fragments concernés de les copier vers d'autres noeuds, les fragments les
+ * plus menacés en premier.
+ *
+ * Les fragments disparus des fichiers codés à effacement n'ont pas d'autre
+ * réplique : leur bande est reconstruite par le NameServer.
+ *
+ * Les copies sont limitées en nombre et en débit moyen, pour ne pas pénaliser
+ * les lectures et écritures en cours.
+ */
+public class HdfsReplicationMonitor {
+
+    /**
+     * Temps (en ms) entre deux parcours du catalogue.
+     */
+    final public static int MONITOR_INTERVAL = 3000;
+
+    /**
+     * Nombre maximal de copies simultanées.
+     */
+    final public static int MAX_REPLICATIONS = 2;
+
+    /**
+     * NameServer surveillé.
+     */
+    private final HdfsNameServer server;
+
+    /**
+     * Limite du débit des copies.
+     */
+    private final HdfsThrottle throttle;
+
+    /**
+     * Copies en cours.
+     */
+    private final Semaphore slots = new Semaphore(MAX_REPLICATIONS);
+
+    /**
+     * Fragments en cours de copie.
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Noeuds sources d'une copie en cours, un noeud n'envoie qu'une copie à la
+     * fois.
+     */
+    private final Set<HdfsNodeInfo> busySources = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Exécuteur des copies.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_REPLICATIONS);
+
+    /**
+     * @param server   NameServer surveillé
+     * @param throttle Limite du débit des copies, partagée avec les autres
+     *                 transferts de fond
+     */
+    public HdfsReplicationMonitor(HdfsNameServer server, HdfsThrottle throttle) {
+        this.server = server;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Lance le thread de surveillance.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(MONITOR_INTERVAL);
+                        HdfsReplicationMonitor.this.scan();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (RuntimeException e) {
+                        System.err.println("Surveillance de la réplication : " + e.getMessage());
+                    }
+                }
+            }
+        }, "hdfs-replication");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Parcourt le catalogue et lance les copies nécessaires.
+     */
+    private void scan() throws InterruptedException {
+        HdfsNamespace namespace = this.server.getNamespace();
+        List<HdfsNodeInfo> nodes = this.server.getNodes();
+
+        for (HdfsNamespace.UnderReplicated fragment : namespace.getUnderReplicated()) {
+
+            String key = FragmentInfo.makeFragmentName(fragment.name, fragment.id, fragment.lastPart);
+            if (this.inFlight.contains(key)) {
+                continue;
+            }
+
+            // Source : un noeud actif qui possède le fragment
+            HdfsNodeInfo source = nodes.stream()
+                    .filter(node -> fragment.replicas.stream().anyMatch(replica -> replica.matches(node)))
+                    .filter(node -> !this.server.isSuspect(node) && !this.busySources.contains(node)).findFirst()
+                    .orElse(null);
+            if (source == null) {
+                continue;
+            }
+
+            // Destinations : les noeuds actifs qui ne le possèdent pas, selon la politique de placement
+            List<HdfsNodeInfo> candidates = nodes.stream()
+                    .filter(node -> fragment.replicas.stream().noneMatch(replica -> replica.matches(node)))
+                    .filter(node -> !this.server.isSuspect(node)).collect(Collectors.toList());
+            List<HdfsNodeInfo> targets = this.server
+                    .rankNodes(fragment.name, candidates, namespace.countFragments(fragment.name)).stream()
+                    .limit(fragment.missing).collect(Collectors.toCollection(ArrayList::new));
+            if (targets.isEmpty()) {
+                continue;
+            }
+
+            this.slots.acquire();
+            this.throttle.acquire(Math.max(fragment.size, 0) * targets.size());
+
+            // Le fragment a pu être complété pendant l'attente
+            int replication = this.server.getNamespace().getReplication(fragment.name);
+            int missing = replication - this.server.getNamespace().getReplicas(fragment.name, fragment.id).size();
+            if (missing <= 0) {
+                this.slots.release();
+                continue;
+            }
+            List<HdfsNodeInfo> chain = targets.subList(0, Math.min(missing, targets.size()));
+
+            this.inFlight.add(key);
+            this.busySources.add(source);
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int stored = HdfsReplicationMonitor.this.server.copyFragment(fragment.name, fragment.id,
+                                fragment.lastPart, source, chain);
+                        HdfsReplicationMonitor.this.server.getNamespace().addReplicas(fragment.name, fragment.id,
+                                chain.subList(0, stored));
+                        System.out.println("Réplication de " + key + " : " + stored + "/" + chain.size()
+                                + " copies depuis " + source);
+                    } finally {
+                        HdfsReplicationMonitor.this.inFlight.remove(key);
+                        HdfsReplicationMonitor.this.busySources.remove(source);
+                        HdfsReplicationMonitor.this.slots.release();
+                    }
+                }
+            });
+        }
+
+        for (HdfsNamespace.Stripe stripe : namespace.getDamagedStripes()) {
+
+            String key = stripe.name + "#" + stripe.index;
+            if (this.inFlight.contains(key)) {
+                continue;
+            }
+
+            // Lecture de k fragments et écriture des fragments disparus
+            this.slots.acquire();
+            this.throttle.acquire(stripe.getLength()
+                    * (stripe.scheme.getDataFragments() + stripe.getLost().size()));
+
+            this.inFlight.add(key);
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HdfsReplicationMonitor.this.server.reconstructStripe(stripe.name, stripe.index);
+                    } finally {
+                        HdfsReplicationMonitor.this.inFlight.remove(key);
+                        HdfsReplicationMonitor.this.slots.release();
+                    }
+                }
+            });
+        }
+    }
+
+}
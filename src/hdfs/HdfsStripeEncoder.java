@@ -0,0 +1,124 @@
+package hdfs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calcul des fragments de parité d'un fichier codé à effacement pendant son
+ * écriture.
+ *
+ * Les fragments de données arrivent dans le désordre, depuis les threads
+ * d'envoi du NameServer. Chacun est ajouté à la parité de sa bande dès son
+ * arrivée, sans être conservé : seuls les m fragments de parité des bandes en
+ * cours sont en mémoire.
+ */
+public class HdfsStripeEncoder {
+
+    /**
+     * Bande en cours d'écriture.
+     */
+    public static final class Stripe {
+
+        /**
+         * Numéro de la bande.
+         */
+        public final int index;
+
+        /**
+         * Noeuds qui ont reçu un fragment de la bande : les fragments d'une bande
+         * sont tous placés sur des noeuds différents.
+         */
+        public final Set<HdfsNodeInfo> nodes = ConcurrentHashMap.newKeySet();
+
+        private byte[][] parity;
+        private int length = 0;
+        private int added = 0;
+        private int expected;
+
+        private Stripe(int index, int parityFragments, int expected) {
+            this.index = index;
+            this.parity = new byte[parityFragments][0];
+            this.expected = expected;
+        }
+
+        /**
+         * @return La taille des fragments de parité, celle du plus long fragment
+         *         de données
+         */
+        public int getLength() {
+            return this.length;
+        }
+
+        /**
+         * @return Le contenu d'un fragment de parité, de taille
+         *         {@link #getLength()}
+         */
+        public byte[] getParity(int j) {
+            return this.parity[j];
+        }
+    }
+
+    /**
+     * Codage du fichier.
+     */
+    private final HdfsReedSolomon scheme;
+
+    /**
+     * Bandes commencées et pas encore complètes, par numéro.
+     */
+    private final Map<Integer, Stripe> stripes = new HashMap<>();
+
+    public HdfsStripeEncoder(HdfsReedSolomon scheme) {
+        this.scheme = scheme;
+    }
+
+    public HdfsReedSolomon getScheme() {
+        return this.scheme;
+    }
+
+    /**
+     * @return La bande d'un fragment de données, créée si nécessaire
+     */
+    public synchronized Stripe getStripe(int id) {
+        return this.stripes.computeIfAbsent(this.scheme.getStripe(id), index -> new Stripe(index,
+                this.scheme.getParityFragments(), this.scheme.getDataFragments()));
+    }
+
+    /**
+     * Ajoute un fragment de données à la parité de sa bande.
+     *
+     * @param id       Numéro du fragment
+     * @param lastPart Le fragment est-il le dernier du fichier ? La dernière
+     *                 bande est alors complète avec moins de k fragments.
+     * @param data     Contenu du fragment
+     * @param length   Taille du fragment
+     * @return La bande si ce fragment la complète, null sinon
+     */
+    public Stripe add(int id, boolean lastPart, byte[] data, int length) {
+        Stripe stripe = this.getStripe(id);
+        synchronized (stripe) {
+            if (length > stripe.length) {
+                for (int j = 0; j < stripe.parity.length; j++) {
+                    stripe.parity[j] = Arrays.copyOf(stripe.parity[j], length);
+                }
+                stripe.length = length;
+            }
+            this.scheme.encode(this.scheme.getMember(id), data, length, stripe.parity);
+            stripe.added++;
+            if (lastPart) {
+                stripe.expected = this.scheme.getMember(id) + 1;
+            }
+            if (stripe.added < stripe.expected) {
+                return null;
+            }
+        }
+        synchronized (this) {
+            this.stripes.remove(stripe.index);
+        }
+        return stripe;
+    }
+
+}
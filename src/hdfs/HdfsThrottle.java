@@ -0,0 +1,81 @@
+package hdfs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limite le débit moyen des transferts de fond (réplication, rééquilibrage)
+ * pour ne pas pénaliser les lectures et écritures des clients.
+ *
+ * Les octets autorisés s'accumulent au débit fixé, jusqu'à une seconde de
+ * transfert.
+ */
+public class HdfsThrottle {
+
+    /**
+     * Débit moyen par défaut des transferts de fond, en octets par seconde.
+     */
+    final public static long DEFAULT_BANDWIDTH = 16777216;
+
+    /**
+     * Débit moyen autorisé, en octets par seconde.
+     */
+    private final long bandwidth;
+
+    /**
+     * Octets qui peuvent être transférés immédiatement, négatif si les
+     * transferts sont en avance sur le débit autorisé.
+     */
+    private long available;
+
+    /**
+     * Date (en ms) du dernier calcul de available.
+     */
+    private long refilled = System.currentTimeMillis();
+
+    /**
+     * Verrou de available et refilled.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition attendue par les transferts en avance sur le débit autorisé.
+     */
+    private final Condition refill = this.lock.newCondition();
+
+    /**
+     * @param bandwidth Débit moyen autorisé, en octets par seconde
+     */
+    public HdfsThrottle(long bandwidth) {
+        this.bandwidth = bandwidth;
+        this.available = bandwidth;
+    }
+
+    /**
+     * Attend que le débit autorisé permette de transférer bytes octets.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                this.available = Math.min(this.bandwidth,
+                        this.available + (now - this.refilled) * this.bandwidth / 1000);
+                this.refilled = now;
+
+                // Un transfert plus gros que le débit par seconde passe quand la réserve est pleine
+                long needed = Math.min(bytes, this.bandwidth);
+                if (this.available >= needed) {
+                    this.available -= bytes;
+                    return;
+                }
+                this.refill.await(Math.max(1, (needed - this.available) * 1000 / this.bandwidth),
+                        TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+}
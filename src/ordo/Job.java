@@ -3,9 +3,12 @@ package ordo;
 import formats.Format;
 import formats.Format.OpenMode;
 import formats.KVFormat;
+import formats.KVFormatMapped;
 import formats.LineFormat;
+import formats.LineFormatMapped;
 import hdfs.FragmentInfo;
 import hdfs.HdfsClient;
+import hdfs.HdfsInputStream;
 import hdfs.HdfsNodeInfo;
 import map.FileLessMapperReducer;
 import map.MapReduce;
@@ -381,23 +384,13 @@ public class Job implements JobInterfaceX {
      */
     public void doReduceJob() {
 
-        System.out.println("> Let's reduce " + getTempFolderPath() + this.getTempFileName());
+        String processedName = this.getTempFileName().replace("_result", "_processed");
+        System.out.println("> Let's reduce " + processedName);
 
-        // Create tmp folder if not existing
-        Path path = Paths.get(getTempFolderPath());
-        try {
-            Files.createDirectories(path);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        // Get the complete file from the HDFS and replace the empty file
-        System.out.println("> On telecharge les résultats des machines");
-        // TODO : verifier que ça remplace bien
-        HdfsClient.HdfsRead(this.getTempFileName().replace("_result", "_processed") , getTempFolderPath() + this.getTempFileName());
-        System.out.println("> Telechargement termine");
-        // We open the temp file
-        Format iFormat = this.getFormatFromType(this.outputFormat, getTempFolderPath() + this.getTempFileName());
+        // The results are streamed from the HDFS while being reduced, without a local copy
+        System.out.println("> On lit les résultats des machines en flux");
+        Format iFormat = this.getFormatFromType(getStreamingType(this.outputFormat),
+                HdfsInputStream.SCHEME + processedName);
 
         // Create res folder if not existing
         Path pathRes = Paths.get(getResFolderPath());
@@ -426,7 +419,22 @@ public class Job implements JobInterfaceX {
 
         // Delete temp file
         System.out.println("> Let's delete temporary files");
-        HdfsClient.HdfsDelete(getTempFileName().replace("_result", "_processed"));
+        HdfsClient.HdfsDelete(processedName);
+    }
+
+    /**
+     * Mapped formats need a local file: their streaming counterpart is used to
+     * read from the HDFS.
+     */
+    private static Format.Type getStreamingType(Format.Type type) {
+        switch (type) {
+            case KV_MAPPED:
+                return Format.Type.KV;
+            case LINE_MAPPED:
+                return Format.Type.LINE;
+            default:
+                return type;
+        }
     }
 
     public Format getFormatFromType(Format.Type type, String fName) {
@@ -438,6 +446,12 @@ public class Job implements JobInterfaceX {
             case LINE:
                 format = new LineFormat(fName);
                 break;
+            case KV_MAPPED:
+                format = new KVFormatMapped(fName);
+                break;
+            case LINE_MAPPED:
+                format = new LineFormatMapped(fName);
+                break;
             default:
                 format = null;
         }
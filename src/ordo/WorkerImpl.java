@@ -3,6 +3,7 @@ package ordo;
 import application.RmiCustomInterface;
 import formats.Format;
 import formats.Format.OpenMode;
+import hdfs.HdfsExecutors;
 import hdfs.HdfsNodeInfo;
 import map.FileLessMapperReducer;
 import map.Mapper;
@@ -17,6 +18,7 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Deamon running on the server
@@ -29,6 +31,12 @@ public class WorkerImpl extends UnicastRemoteObject implements Worker {
 
     public HdfsNodeInfo uri;
 
+    /**
+     * Exécuteur des tâches map, en threads classiques ou virtuels selon
+     * {@link HdfsExecutors#PROPERTY}.
+     */
+    private final transient ExecutorService tasks = HdfsExecutors.newTaskExecutor("hidoop-map");
+
     /**
      *
      * @param hostDuRmi
@@ -142,7 +150,7 @@ public class WorkerImpl extends UnicastRemoteObject implements Worker {
     public void runFileLessMap(FileLessMapperReducer m, HidoopTask task, Format writer, CallBack cb) throws RemoteException {
         System.out.println("> Je m'occupe d'une tache");
 
-        Thread thread = new Thread() {
+        this.tasks.execute(new Runnable() {
             public void run() {
 
                 long startTime = System.currentTimeMillis();
@@ -179,9 +187,7 @@ public class WorkerImpl extends UnicastRemoteObject implements Worker {
 
 
             }
-        };
-
-        thread.start();
+        });
 
     }
 
@@ -190,7 +196,7 @@ public class WorkerImpl extends UnicastRemoteObject implements Worker {
 
         System.out.println("> Voici le nom de mon fragment a ouvrir " + reader.getFname());
 
-        Thread thread = new Thread() {
+        this.tasks.execute(new Runnable() {
             public void run() {
 
                 long startTime = System.currentTimeMillis();
@@ -237,9 +243,7 @@ public class WorkerImpl extends UnicastRemoteObject implements Worker {
                 }
 
             }
-        };
-
-        thread.start();
+        });
 
     }
 